@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the ENA APIs a run calls, serving the latest snapshot of a {@link SnapshotGenerator} as it is
+ * generated, in the shuffled order of a download: the livelist under /browser/api, search and count under
+ * /portal/api, with the last_updated ranges of a partitioned or delta fetch, and placeholder flatfiles under
+ * /browser/api/embl. Any requested field other than accession and last_updated is served empty.
+ * <p>
+ * Response bodies share a link of bytesPerSecond, and a fraction of livelist and search requests can be made to
+ * fail: answered with 503, or cut off at a random point of the body.
+ */
+public class EnaApiStub implements AutoCloseable {
+
+    private static final Pattern BEFORE = Pattern.compile("last_updated<(\\d{4}-\\d{2}-\\d{2})");
+    private static final Pattern FROM = Pattern.compile("last_updated>=(\\d{4}-\\d{2}-\\d{2})");
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final SnapshotGenerator generator;
+    private final Map<String, Long> counts = new ConcurrentHashMap<>();
+    private final Random faults;
+
+    /**
+     * Bandwidth shared by all response bodies, 0 for none.
+     */
+    volatile long bytesPerSecond;
+    /**
+     * Fraction of livelist and search requests answered with 503.
+     */
+    volatile double errorRate;
+    /**
+     * Fraction of livelist and search responses cut off part way.
+     */
+    volatile double truncateRate;
+
+    private long linkFreeAt;
+    final AtomicLong bytesServed = new AtomicLong();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicInteger activeStreams = new AtomicInteger();
+    /**
+     * System.nanoTime at which the last livelist or search body was sent in full.
+     */
+    volatile long lastStreamEnd;
+
+    public EnaApiStub(SnapshotGenerator generator, long seed) throws IOException {
+        this.generator = generator;
+        this.faults = new Random(seed);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/browser/api/livelist/", this::rows);
+        server.createContext("/browser/api/embl/", this::embl);
+        server.createContext("/portal/api/search", this::rows);
+        server.createContext("/portal/api/count", this::count);
+        server.start();
+    }
+
+    /**
+     * Whether a livelist or search body was sent in full and none is being sent now.
+     */
+    boolean isFetched() {
+        return lastStreamEnd != 0 && activeStreams.get() == 0;
+    }
+
+    public String getPortalApiBase() {
+        return "http://localhost:" + server.getAddress().getPort() + "/portal/api";
+    }
+
+    public String getBrowserApiBase() {
+        return "http://localhost:" + server.getAddress().getPort() + "/browser/api";
+    }
+
+    /**
+     * Whether the last_updated of a row is in the range of query, if it has one.
+     */
+    private static boolean inRange(String lastUpdated, String query) {
+        if (query == null) {
+            return true;
+        }
+        Matcher before = BEFORE.matcher(query);
+        Matcher from = FROM.matcher(query);
+        return !(before.find() && lastUpdated.compareTo(before.group(1)) >= 0 ||
+                from.find() && lastUpdated.compareTo(from.group(1)) < 0);
+    }
+
+    private void rows(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Map<String, String> params = params(exchange);
+        String query = params.get("query");
+        String[] fields = params.getOrDefault("fields", "accession,last_updated").split(",");
+        double r;
+        synchronized (faults) {
+            r = faults.nextDouble();
+        }
+        if (r < errorRate) {
+            failures.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        activeStreams.incrementAndGet();
+        try {
+            stream(exchange, query, fields, r);
+        } finally {
+            activeStreams.decrementAndGet();
+        }
+    }
+
+    private void stream(HttpExchange exchange, String query, String[] fields, double r) throws IOException {
+        long rows = generator.getRows();
+        long cutAt = r < errorRate + truncateRate ? (long) (rows * (r - errorRate) / truncateRate) : Long.MAX_VALUE;
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        byte[] chunk = new byte[CHUNK_BYTES];
+        int size = put(chunk, 0, String.join("\t", fields));
+        for (long i = 0; i < rows; i++) {
+            if (i == cutAt) {
+                failures.incrementAndGet();
+                write(out, chunk, size);
+                // left unclosed, so the server drops the connection before the end of the chunked body
+                throw new IOException("cut off after " + i + " rows");
+            }
+            long slot = generator.shuffled(i);
+            String lastUpdated = generator.lastUpdated(slot, false);
+            if (lastUpdated == null || !inRange(lastUpdated, query)) {
+                continue;
+            }
+            String line = line(generator.row(slot, false), fields);
+            if (size + line.length() + 1 > CHUNK_BYTES) {
+                write(out, chunk, size);
+                size = 0;
+            }
+            size = put(chunk, size, line);
+        }
+        write(out, chunk, size);
+        out.close();
+        lastStreamEnd = System.nanoTime();
+    }
+
+    private static String line(String row, String[] fields) {
+        int tab = row.indexOf('\t');
+        StringBuilder line = new StringBuilder(row.length() + 8);
+        for (int f = 0; f < fields.length; f++) {
+            if (f > 0) {
+                line.append('\t');
+            }
+            if ("accession".equals(fields[f])) {
+                line.append(row, 0, tab);
+            } else if ("last_updated".equals(fields[f])) {
+                line.append(row, tab + 1, row.length());
+            }
+        }
+        return line.toString();
+    }
+
+    private static int put(byte[] chunk, int size, String line) {
+        for (int i = 0; i < line.length(); i++) {
+            chunk[size++] = (byte) line.charAt(i);
+        }
+        chunk[size++] = '\n';
+        return size;
+    }
+
+    private void write(OutputStream out, byte[] chunk, int size) throws IOException {
+        pace(size);
+        out.write(chunk, 0, size);
+        bytesServed.addAndGet(size);
+    }
+
+    /**
+     * Waits for the link to have carried the bytes before these.
+     */
+    private void pace(int bytes) throws IOException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFreeAt = Math.max(linkFreeAt, now) + bytes * 1_000_000_000L / rate;
+            wait = linkFreeAt - now;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private void count(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String query = params(exchange).get("query");
+        long count = counts.computeIfAbsent(String.valueOf(query), q -> {
+            long n = 0;
+            for (long slot = 0; slot < generator.getRows(); slot++) {
+                String lastUpdated = generator.lastUpdated(slot, false);
+                if (lastUpdated != null && inRange(lastUpdated, query)) {
+                    n++;
+                }
+            }
+            return n;
+        });
+        respond(exchange, "{\"count\":\"" + count + "\"}");
+    }
+
+    private void embl(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        StringBuilder body = new StringBuilder();
+        for (String acc : path.substring(path.lastIndexOf('/') + 1).split(",")) {
+            body.append("ID   ").append(acc).append(";\n//\n");
+        }
+        respond(exchange, body.toString());
+    }
+
+    private void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        pace(bytes.length);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        bytesServed.addAndGet(bytes.length);
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                try {
+                    params.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(pair, e);
+                }
+            }
+        }
+        return params;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.bench;
+
+import uk.ac.ebi.ena.dcap.scl.service.MainService;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Runs {@link MainService#fetchSnapshotAndCompare} end to end against an {@link EnaApiStub}, at each of a list of
+ * sizes, with the previous snapshot made by the same {@link SnapshotGenerator}. Reports, for the fetch (until the
+ * stub has sent the whole snapshot, in every partition) and for the rest of the run (the final merge, the diff and the change lists),
+ * the wall time, the peak resident memory of the process and the peak bytes in the output location, as sampled
+ * every sampleMillis.
+ * <p>
+ * Arguments, all optional: sizes=1000000,10000000 dataType=SEQUENCE dir= mix= changeRate= deletionRate=
+ * bandwidthMbps= (0 for none) errorRate= truncateRate= fetchPartitions= sortMemoryMb= sortThreads= diffThreads=
+ * sampleMillis=. The report is printed and appended to [dir]/e2e-report.tsv.
+ */
+public class EndToEndBenchmark {
+
+    private final Map<String, String> args = new LinkedHashMap<>();
+
+    EndToEndBenchmark(String[] args) {
+        this.args.put("sizes", "1000000,10000000");
+        this.args.put("dataType", "SEQUENCE");
+        this.args.put("dir", SyntheticState.benchDir().getPath());
+        this.args.put("mix", "AB:1+CAA:1+AAAA01:4");
+        this.args.put("changeRate", "0.01");
+        this.args.put("deletionRate", "0.001");
+        this.args.put("bandwidthMbps", "0");
+        this.args.put("errorRate", "0");
+        this.args.put("truncateRate", "0");
+        this.args.put("fetchPartitions", "1");
+        this.args.put("sortMemoryMb", "0");
+        this.args.put("sortThreads", "0");
+        this.args.put("diffThreads", "1");
+        this.args.put("sampleMillis", "100");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            if (eq < 0 || !this.args.containsKey(name)) {
+                throw new IllegalArgumentException("unknown argument:" + arg + ", expected one of " +
+                        this.args.keySet());
+            }
+            this.args.put(name, arg.substring(eq + 1));
+        }
+    }
+
+    private String get(String name) {
+        return args.get(name);
+    }
+
+    /**
+     * Peaks of resident memory and output bytes, of the fetch until fetched says it is over, and of the rest after.
+     */
+    static class Sampler implements AutoCloseable {
+        private final File dir;
+        private final BooleanSupplier fetched;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private long peakRss;
+        private long peakDisk;
+        private long[] fetchPeaks;
+
+        Sampler(File dir, long millis, BooleanSupplier fetched) {
+            this.dir = dir;
+            this.fetched = fetched;
+            thread = new Thread(() -> {
+                while (running) {
+                    sample();
+                    try {
+                        Thread.sleep(millis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "e2e-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void sample() {
+            peakRss = Math.max(peakRss, rss());
+            peakDisk = Math.max(peakDisk, bytes(dir));
+            if (fetchPeaks == null && fetched.getAsBoolean()) {
+                fetchPeaks = new long[]{peakRss, peakDisk};
+                peakRss = 0;
+                peakDisk = 0;
+            }
+        }
+
+        /**
+         * The peaks of the fetch, or null if it never ended, and of the rest.
+         */
+        synchronized long[][] peaks() {
+            sample();
+            return new long[][]{fetchPeaks, {peakRss, peakDisk}};
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Resident memory from /proc/self/status, or the used heap where there is none.
+     */
+    static long rss() {
+        File status = new File("/proc/self/status");
+        if (status.canRead()) {
+            try (Stream<String> lines = Files.lines(status.toPath())) {
+                return lines.filter(line -> line.startsWith("VmRSS:")).findFirst()
+                        .map(line -> Long.parseLong(line.replaceAll("\\D", "")) << 10).orElse(0L);
+            } catch (IOException | RuntimeException e) {
+                // fall through
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long bytes(File dir) {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            return paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        } catch (IOException | RuntimeException e) {
+            // a file removed while walking
+            return 0;
+        }
+    }
+
+    static void delete(File dir) throws IOException {
+        if (dir.exists()) {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    void run() throws Exception {
+        File dir = new File(get("dir"));
+        SnapshotClient.setFetchPartitions(Integer.parseInt(get("fetchPartitions")));
+        SnapshotClient.setSortMemoryBytes(Long.parseLong(get("sortMemoryMb")) << 20);
+        SnapshotClient.setSortThreads(Integer.parseInt(get("sortThreads")));
+        List<String> report = new ArrayList<>();
+        report.add("rows\tphase\tseconds\tpeak_rss_mb\tpeak_disk_mb\tserved_mb\trequests\tfailures");
+        System.out.println(report.get(0));
+        for (String size : get("sizes").split(",")) {
+            long rows = Long.parseLong(size.trim());
+            SnapshotGenerator generator = new SnapshotGenerator(rows, get("mix"),
+                    Double.parseDouble(get("changeRate")), Double.parseDouble(get("deletionRate")), 1);
+            File previous = generator.previous(dir);
+            File output = new File(dir, "e2e_" + rows);
+            delete(output);
+            output.mkdirs();
+
+            try (EnaApiStub stub = new EnaApiStub(generator, rows)) {
+                stub.bytesPerSecond = (long) (Double.parseDouble(get("bandwidthMbps")) * 1_000_000 / 8);
+                stub.errorRate = Double.parseDouble(get("errorRate"));
+                stub.truncateRate = Double.parseDouble(get("truncateRate"));
+                SnapshotClient.setPortalApiBase(stub.getPortalApiBase());
+                SnapshotClient.setBrowserApiBase(stub.getBrowserApiBase());
+                MainService service = new MainService();
+                service.setDiffThreads(Integer.parseInt(get("diffThreads")));
+                System.gc();
+
+                long start = System.nanoTime();
+                long[][] peaks;
+                try (Sampler sampler = new Sampler(output, Long.parseLong(get("sampleMillis")),
+                        stub::isFetched)) {
+                    service.fetchSnapshotAndCompare(get("dataType"), previous.getPath(), output.getPath(), null,
+                            false);
+                    peaks = sampler.peaks();
+                } finally {
+                    SnapshotClient.setPortalApiBase(null);
+                    SnapshotClient.setBrowserApiBase(null);
+                }
+                long end = System.nanoTime();
+                long streamEnd = stub.lastStreamEnd == 0 ? start : stub.lastStreamEnd;
+                long[] fetch = peaks[0] == null ? new long[2] : peaks[0];
+                long[] rest = peaks[1];
+                String served = (stub.bytesServed.get() >> 20) + "\t" + stub.requests.get() + "\t" +
+                        stub.failures.get();
+                String[] lines = {
+                        line(rows, "fetch", streamEnd - start, fetch, served),
+                        line(rows, "merge_diff", end - streamEnd, rest, served),
+                        line(rows, "total", end - start, new long[]{Math.max(fetch[0], rest[0]),
+                                Math.max(fetch[1], rest[1])}, served)};
+                for (String line : lines) {
+                    System.out.println(line);
+                    report.add(line);
+                }
+            }
+            delete(output);
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "e2e-report.tsv"), true))) {
+            for (String line : report) {
+                out.println(line);
+            }
+        }
+    }
+
+    private static String line(long rows, String phase, long nanos, long[] peaks, String served) {
+        return rows + "\t" + phase + "\t" + String.format("%.2f", nanos / 1e9) + "\t" + (peaks[0] >> 20) + "\t" +
+                (peaks[1] >> 20) + "\t" + served;
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EndToEndBenchmark(args).run();
+    }
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Bytes a benchmark wrote, which JMH reports next to its time: the files it produced, and the temporary runs a sort
+ * spilled on the way.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class OutputBytes {
+
+    public long outputBytes;
+    public long spillBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        outputBytes = 0;
+        spillBytes = 0;
+    }
+}
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.TreeMap;
+
+/**
+ * Deterministic synthetic snapshots to benchmark on. The same parameters always give the same previous and latest
+ * snapshot, byte for byte, so runs of different engines can be compared on identical input of any size.
+ * <p>
+ * Rows are generated from slots, each an accession made of a prefix of the mix and a zero padded number. Every slot
+ * is decided on its own from a hash of its index: with deletionRate it is only in the previous snapshot, with
+ * changeRate it is either new, only in the latest, or updated, with a later last_updated there; otherwise it is in
+ * both unchanged. No prefix of the mix may be the start of another, so the slots are in accession order and both
+ * snapshots come out sorted. The latest snapshot can also be written unsorted, in a fixed shuffle of its slots, as
+ * a download is.
+ */
+public class SnapshotGenerator {
+
+    public static final String HEADER = "accession\tlast_updated";
+    /**
+     * Digits of the number after the prefix, enough for 10^10 slots of one prefix.
+     */
+    static final int DIGITS = 10;
+    static final LocalDate FIRST_DATE = LocalDate.of(2010, 1, 1);
+    static final int DATES = 4096;
+
+    private final long rows;
+    private final String[] prefixes;
+    /**
+     * Names the files of the mix, weights included.
+     */
+    private final int mixHash;
+    /**
+     * First slot of each prefix, and rows after the last.
+     */
+    private final long[] starts;
+    private final double changeRate;
+    private final double deletionRate;
+    private final long seed;
+    private final long step;
+    private final String[] dates = new String[2 * DATES];
+
+    /**
+     * @param rows         slots, about the number of rows of each snapshot
+     * @param mix          prefixes with their weights, joined by +, e.g. AB:1+CAA:1+AAAA01:4
+     * @param changeRate   fraction of slots that are new or updated in the latest snapshot
+     * @param deletionRate fraction of slots only in the previous snapshot
+     */
+    public SnapshotGenerator(long rows, String mix, double changeRate, double deletionRate, long seed) {
+        if (changeRate < 0 || deletionRate < 0 || changeRate + deletionRate > 1) {
+            throw new IllegalArgumentException("rates need to add up to at most 1:" + changeRate + "," + deletionRate);
+        }
+        TreeMap<String, Double> weights = new TreeMap<>();
+        // not comma separated, as JMH splits parameter values on commas
+        for (String entry : mix.split("\\+")) {
+            int at = entry.indexOf(':');
+            weights.put((at < 0 ? entry : entry.substring(0, at)).trim(),
+                    at < 0 ? 1 : Double.parseDouble(entry.substring(at + 1)));
+        }
+        String last = null;
+        for (String prefix : weights.keySet()) {
+            if (last != null && prefix.startsWith(last)) {
+                throw new IllegalArgumentException("prefix " + last + " starts " + prefix);
+            }
+            last = prefix;
+        }
+        double total = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+        this.rows = rows;
+        this.prefixes = weights.keySet().toArray(new String[0]);
+        this.mixHash = weights.toString().hashCode();
+        this.starts = new long[prefixes.length + 1];
+        double cumulative = 0;
+        for (int i = 0; i < prefixes.length; i++) {
+            starts[i] = (long) (rows * cumulative / total);
+            cumulative += weights.get(prefixes[i]);
+        }
+        starts[prefixes.length] = rows;
+        this.changeRate = changeRate;
+        this.deletionRate = deletionRate;
+        this.seed = seed;
+        long step = Math.max(1, (long) (rows * 0.6180339887));
+        while (gcd(step, rows) != 1) {
+            step++;
+        }
+        this.step = step;
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = FIRST_DATE.plusDays(i).toString();
+        }
+    }
+
+    /**
+     * The files of one set of parameters, their rows and the number of accessions a diff of them lists.
+     */
+    public static class Snapshots {
+        public final File previous;
+        public final File latest;
+        public final File latestUnsorted;
+        public final long previousRows;
+        public final long latestRows;
+        public final long newOrUpdated;
+        public final long deleted;
+
+        Snapshots(File previous, File latest, File latestUnsorted, long previousRows, long latestRows,
+                  long newOrUpdated, long deleted) {
+            this.previous = previous;
+            this.latest = latest;
+            this.latestUnsorted = latestUnsorted;
+            this.previousRows = previousRows;
+            this.latestRows = latestRows;
+            this.newOrUpdated = newOrUpdated;
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * Writes the snapshots to dir, unless an earlier run with the same parameters already did, so that forks and
+     * repeated runs reuse them.
+     */
+    public Snapshots generate(File dir) throws IOException {
+        File previous = previous(dir), latest = latest(dir), unsorted = latestUnsorted(dir);
+        long added = 0, updated = 0, deleted = 0;
+        for (long slot = 0; slot < rows; slot++) {
+            int kind = kind(hash(slot));
+            if (kind == DELETED) {
+                deleted++;
+            } else if (kind == NEW) {
+                added++;
+            } else if (kind == UPDATED) {
+                updated++;
+            }
+        }
+        return new Snapshots(previous, latest, unsorted, rows - added, rows - deleted, added + updated, deleted);
+    }
+
+    public File previous(File dir) throws IOException {
+        return cached(dir, "_previous.tsv", true, false);
+    }
+
+    public File latest(File dir) throws IOException {
+        return cached(dir, "_latest.tsv", false, false);
+    }
+
+    public File latestUnsorted(File dir) throws IOException {
+        return cached(dir, "_latest.tsv.unsorted", false, true);
+    }
+
+    private File cached(File dir, String suffix, boolean previous, boolean shuffled) throws IOException {
+        File file = new File(dir, "synthetic_" + rows + "_" + Integer.toHexString(mixHash) + "_c" + changeRate +
+                "_d" + deletionRate + "_s" + seed + suffix);
+        if (!file.isFile()) {
+            dir.mkdirs();
+            write(file, previous, shuffled);
+        }
+        return file;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * The i-th slot in the order a download gives the rows, a fixed shuffle: a step coprime to rows visits every
+     * slot once, in an order far from sorted.
+     */
+    public long shuffled(long i) {
+        return Math.multiplyExact(i, step) % rows;
+    }
+
+    static final int UNCHANGED = 0, DELETED = 1, NEW = 2, UPDATED = 3;
+
+    private int kind(long hash) {
+        double r = (hash >>> 11) * 0x1.0p-53;
+        if (r < deletionRate) {
+            return DELETED;
+        }
+        if (r < deletionRate + changeRate) {
+            return (hash & 1) == 0 ? NEW : UPDATED;
+        }
+        return UNCHANGED;
+    }
+
+    /**
+     * The row of slot in the previous or latest snapshot, or null if it has none there.
+     */
+    public String row(long slot, boolean previous) {
+        String lastUpdated = lastUpdated(slot, previous);
+        return lastUpdated == null ? null : accession(slot) + '\t' + lastUpdated;
+    }
+
+    /**
+     * The last_updated of that row, without making its accession.
+     */
+    public String lastUpdated(long slot, boolean previous) {
+        long hash = hash(slot);
+        int kind = kind(hash);
+        if (previous ? kind == NEW : kind == DELETED) {
+            return null;
+        }
+        int day = (int) ((hash >>> 16) % DATES);
+        if (!previous && kind == UPDATED) {
+            day += 1 + (int) ((hash >>> 40) % DATES);
+        }
+        return dates[day];
+    }
+
+    String accession(long slot) {
+        int p = 0;
+        while (slot >= starts[p + 1]) {
+            p++;
+        }
+        String number = Long.toString(slot - starts[p]);
+        StringBuilder acc = new StringBuilder(prefixes[p].length() + DIGITS).append(prefixes[p]);
+        for (int i = number.length(); i < DIGITS; i++) {
+            acc.append('0');
+        }
+        return acc.append(number).toString();
+    }
+
+    private void write(File file, boolean previous, boolean shuffled) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()),
+                StandardCharsets.US_ASCII), 1 << 20)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (long i = 0; i < rows; i++) {
+                long slot = shuffled ? shuffled(i) : i;
+                String row = row(slot, previous);
+                if (row != null) {
+                    writer.write(row);
+                    writer.write('\n');
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * SplitMix64 of the seeded slot index.
+     */
+    private long hash(long slot) {
+        long z = seed + (slot + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Writes the snapshots of rows=, mix=, changeRate=, deletionRate=, seed= and dir= arguments, all optional.
+     */
+    public static void main(String[] args) throws IOException {
+        long rows = 1_000_000, seed = 1;
+        String mix = "AB:1+CAA:1+AAAA01:4";
+        double changeRate = 0.01, deletionRate = 0.001;
+        File dir = new File(".");
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("rows=")) {
+                rows = Long.parseLong(value);
+            } else if (arg.startsWith("mix=")) {
+                mix = value;
+            } else if (arg.startsWith("changeRate=")) {
+                changeRate = Double.parseDouble(value);
+            } else if (arg.startsWith("deletionRate=")) {
+                deletionRate = Double.parseDouble(value);
+            } else if (arg.startsWith("seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("dir=")) {
+                dir = new File(value);
+            } else {
+                throw new IllegalArgumentException(arg);
+            }
+        }
+        Snapshots snapshots = new SnapshotGenerator(rows, mix, changeRate, deletionRate, seed).generate(dir);
+        System.out.println(snapshots.previous + "\n" + snapshots.latest + "\n" + snapshots.latestUnsorted +
+                "\nnew or updated:" + snapshots.newOrUpdated + " deleted:" + snapshots.deleted);
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Synthetic snapshots for the file based benchmarks, sized by -p rows=, and a directory for their output. The
+ * snapshots are kept in -Dscl.bench.dir, by default scl-bench in the temporary directory, and reused by later runs
+ * with the same parameters.
+ */
+@State(Scope.Benchmark)
+public class SyntheticState {
+
+    @Param("1000000")
+    public long rows;
+
+    @Param("AB:1+CAA:1+AAAA01:4")
+    public String mix;
+
+    @Param("0.01")
+    public double changeRate;
+
+    @Param("0.001")
+    public double deletionRate;
+
+    public SnapshotGenerator.Snapshots snapshots;
+    public File workDir;
+
+    public static File benchDir() {
+        return new File(System.getProperty("scl.bench.dir", System.getProperty("java.io.tmpdir") + "/scl-bench"));
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        File dir = benchDir();
+        snapshots = new SnapshotGenerator(rows, mix, changeRate, deletionRate, 1).generate(dir);
+        workDir = Files.createTempDirectory(dir.toPath(), "run").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorkDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(workDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Lines in file, plain or compressed, to check a benchmark's output against what the generator made.
+     */
+    public static long lines(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Codec.open(file),
+                StandardCharsets.UTF_8))) {
+            return reader.lines().count();
+        }
+    }
+}
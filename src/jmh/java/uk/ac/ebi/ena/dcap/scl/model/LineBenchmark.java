@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.ebi.ena.dcap.scl.bench.SnapshotGenerator;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a snapshot row into a {@link Line} and into a {@link PackedLine}, per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineBenchmark {
+
+    static final int ROWS = 4096;
+
+    @Param("AB:1+CAA:1+AAAA01:4")
+    public String mix;
+
+    private final String[] rows = new String[ROWS];
+    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+    @Setup
+    public void rows() {
+        SnapshotGenerator generator = new SnapshotGenerator(1_000_000, mix, 0.5, 0, 1);
+        for (int i = 0; i < ROWS; i++) {
+            // spread over the prefixes
+            rows[i] = generator.row(i * 1_000_000L / ROWS, false);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void lineOf(Blackhole blackhole) {
+        for (String row : rows) {
+            blackhole.consume(Line.of(row, dateFormat));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void packedLineOf(Blackhole blackhole) {
+        for (String row : rows) {
+            blackhole.consume(PackedLine.of(row));
+        }
+    }
+}
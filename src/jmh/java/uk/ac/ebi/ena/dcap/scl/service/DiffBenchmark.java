@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ebi.ena.dcap.scl.bench.OutputBytes;
+import uk.ac.ebi.ena.dcap.scl.bench.SyntheticState;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.DiffFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MainService#compareSnapshots(java.io.File, java.io.File, java.io.File, String)} of two sorted snapshots, as
+ * lines or packed records, in one merge or several ranges, with the snapshots and change lists compressed by each
+ * codec, reporting the bytes of the change lists.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DiffBenchmark extends SyntheticState {
+
+    @Param({"true", "false"})
+    public boolean packedRecords;
+
+    @Param("1")
+    public int diffThreads;
+
+    @Param({"none", "gzip", "zstd"})
+    public String compression;
+
+    private File previous;
+    private File latest;
+    private DiffFiles diffFiles;
+
+    /**
+     * Copies of the snapshots compressed as a run with this compression would have written them.
+     */
+    @Setup(Level.Trial)
+    public void compress() throws IOException {
+        previous = compressed(snapshots.previous);
+        latest = compressed(snapshots.latest);
+    }
+
+    private File compressed(File snapshot) throws IOException {
+        Codec codec = Codec.of(compression);
+        if (codec == Codec.NONE) {
+            return snapshot;
+        }
+        File copy = codec.name(new File(workDir, snapshot.getName()));
+        try (InputStream in = Codec.open(snapshot); OutputStream out = codec.create(copy, false)) {
+            IOUtils.copy(in, out);
+        }
+        return copy;
+    }
+
+    @Benchmark
+    public DiffFiles compareSnapshots(OutputBytes bytes) {
+        MainService service = new MainService();
+        service.setPackedRecords(packedRecords);
+        service.setDiffThreads(diffThreads);
+        service.setCompression(Codec.of(compression));
+        diffFiles = service.compareSnapshots(previous, latest, workDir, "bench");
+        bytes.outputBytes += diffFiles.getNewOrChangedList().length() + diffFiles.getDeletedList().length();
+        return diffFiles;
+    }
+
+    @TearDown(Level.Invocation)
+    public void check() throws IOException {
+        long newOrUpdated = lines(diffFiles.getNewOrChangedList());
+        long deleted = lines(diffFiles.getDeletedList());
+        if (newOrUpdated != snapshots.newOrUpdated || deleted != snapshots.deleted) {
+            throw new IllegalStateException("listed " + newOrUpdated + " new or updated and " + deleted +
+                    " deleted, generated " + snapshots.newOrUpdated + " and " + snapshots.deleted);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ebi.ena.dcap.scl.bench.SyntheticState;
+import uk.ac.ebi.ena.dcap.scl.model.Line;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reading a whole snapshot into the queue of {@link Line}s the line based diff takes from, with a thread taking
+ * them as fast as it can.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class QueueBenchmark extends SyntheticState {
+
+    @Benchmark
+    public long loadToQueues() throws Exception {
+        // as mergeLines sizes them
+        BlockingQueue<Line> queue = new LinkedBlockingQueue<>(1000);
+        AtomicLong taken = new AtomicLong();
+        Thread consumer = new Thread(() -> {
+            try {
+                while (queue.take() != Line.POISON) {
+                    taken.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        MainService.loadToQueues(snapshots.latest, queue);
+        consumer.join();
+        if (taken.get() != snapshots.latestRows) {
+            throw new IllegalStateException("took " + taken.get() + " rows of " + snapshots.latest);
+        }
+        return taken.get();
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ebi.ena.dcap.scl.bench.OutputBytes;
+import uk.ac.ebi.ena.dcap.scl.bench.SyntheticState;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.sort.SortStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SnapshotClient#bigSortFile} of the latest snapshot in the order a download gives it, with its runs and output
+ * compressed by each codec, reporting the bytes spilled and written. 0 for sortMemoryMb or sortThreads keeps the
+ * defaults.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SortBenchmark extends SyntheticState {
+
+    @Param("0")
+    public long sortMemoryMb;
+
+    @Param("0")
+    public int sortThreads;
+
+    @Param({"none", "gzip", "zstd"})
+    public String compression;
+
+    private File sorted;
+
+    @Setup(Level.Trial)
+    public void configure() {
+        SnapshotClient.setSortMemoryBytes(sortMemoryMb << 20);
+        SnapshotClient.setSortThreads(sortThreads);
+        SnapshotClient.setSortCodec(Codec.of(compression));
+    }
+
+    @Benchmark
+    public SortStats bigSortFile(OutputBytes bytes) {
+        sorted = Codec.of(compression).name(new File(workDir, "sorted.tsv"));
+        SortStats stats = SnapshotClient.bigSortFile(snapshots.latestUnsorted, sorted);
+        bytes.spillBytes += stats.getSpillBytes().get();
+        bytes.outputBytes += sorted.length();
+        return stats;
+    }
+
+    @TearDown(Level.Invocation)
+    public void check() throws IOException {
+        long rows = lines(sorted) - 1;
+        if (rows != snapshots.latestRows) {
+            throw new IllegalStateException(sorted + " has " + rows + " rows, " + snapshots.latest + " has " +
+                    snapshots.latestRows);
+        }
+        sorted.delete();
+    }
+}
@@ -22,10 +22,17 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
 import uk.ac.ebi.ena.dcap.scl.service.MainService;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotDaemon;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
 
+import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
 
 @Component
 @Slf4j
@@ -34,13 +41,13 @@ public class MainRunner implements CommandLineRunner {
 
     public static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd");
 
-    @Value("${dataType}")
+    @Value("${dataType:#{null}}")
     public String dataTypeStr;
 
-    @Value("${previousSnapshot}")
+    @Value("${previousSnapshot:#{null}}")
     public String previousSnapshotPath;
 
-    @Value("${outputLocation}")
+    @Value("${outputLocation:#{null}}")
     public String outputLocationPath;
 
     @Value("${query:#{null}}")
@@ -49,14 +56,203 @@ public class MainRunner implements CommandLineRunner {
     @Value("${includeParentAccession:#{false}}")
     public boolean includeParentAccession;
 
+    @Value("${packedRecords:#{true}}")
+    public boolean packedRecords;
+
+    @Value("${diffThreads:#{1}}")
+    public int diffThreads;
+
+    @Value("${fusedDiff:#{true}}")
+    public boolean fusedDiff;
+
+    @Value("${sortMemoryMb:#{0}}")
+    public long sortMemoryMb;
+
+    @Value("${sortThreads:#{0}}")
+    public int sortThreads;
+
+    @Value("${fetchPartitions:#{1}}")
+    public int fetchPartitions;
+
+    @Value("${fetchRetries:#{3}}")
+    public int fetchRetries;
+
+    @Value("${checkpoint:#{true}}")
+    public boolean checkpoint;
+
+    @Value("${compression:#{null}}")
+    public String compression;
+
+    @Value("${sortCompression:#{null}}")
+    public String sortCompression;
+
+    @Value("${binarySnapshot:#{false}}")
+    public boolean binarySnapshot;
+
+    @Value("${manifest:#{true}}")
+    public boolean manifest;
+
+    @Value("${deltaFetch:#{false}}")
+    public boolean deltaFetch;
+
+    @Value("${deltaMaxFraction:#{0.2}}")
+    public double deltaMaxFraction;
+
+    @Value("${diffEngine:#{null}}")
+    public String diffEngine;
+
+    @Value("${hashDiffMemoryMb:#{0}}")
+    public long hashDiffMemoryMb;
+
+    @Value("${changedColumns:#{false}}")
+    public boolean changedColumns;
+
+    @Value("${outputShards:#{1}}")
+    public int outputShards;
+
+    @Value("${fetchFlatfiles:#{false}}")
+    public boolean fetchFlatfiles;
+
+    @Value("${flatfileBatchSize:#{100}}")
+    public int flatfileBatchSize;
+
+    @Value("${flatfileThreads:#{4}}")
+    public int flatfileThreads;
+
+    @Value("${flatfileRetries:#{3}}")
+    public int flatfileRetries;
+
+    @Value("${tempDiskMb:#{0}}")
+    public long tempDiskMb;
+
+    @Value("${portalApiBase:#{null}}")
+    public String portalApiBase;
+
+    @Value("${browserApiBase:#{null}}")
+    public String browserApiBase;
+
+    @Value("${metricsReport:#{true}}")
+    public boolean metricsReport;
+
+    @Value("${changeHistory:#{false}}")
+    public boolean changeHistory;
+
+    @Value("${historyFrom:#{null}}")
+    public String historyFrom;
+
+    @Value("${historyTo:#{null}}")
+    public String historyTo;
+
+    @Value("${daemon:#{false}}")
+    public boolean daemon;
+
+    @Value("${daemonPort:#{8080}}")
+    public int daemonPort;
+
+    @Value("${daemonIntervalMinutes:#{1440}}")
+    public long daemonIntervalMinutes;
+
+    @Value("${convert:#{null}}")
+    public String convert;
+
+    @Value("${convertTo:#{null}}")
+    public String convertTo;
+
     @Autowired
     private MainService mainService;
 
     @SneakyThrows
     @Override
     public void run(String... args) {
+        if (convert != null) {
+            convert(new File(convert), convertTo == null ? null : new File(convertTo));
+            return;
+        }
+        if (historyFrom != null) {
+            if (dataTypeStr == null || outputLocationPath == null) {
+                throw new IllegalArgumentException("dataType and outputLocation are required");
+            }
+            mainService.setCompression(Codec.of(compression));
+            mainService.setOutputShards(outputShards);
+            mainService.listChangesBetween(dataTypeStr, outputLocationPath, historyFrom, historyTo);
+            return;
+        }
+        if (dataTypeStr == null || previousSnapshotPath == null || outputLocationPath == null) {
+            throw new IllegalArgumentException("dataType, previousSnapshot and outputLocation are required");
+        }
+        mainService.setPackedRecords(packedRecords);
+        mainService.setDiffThreads(diffThreads);
+        mainService.setFusedDiff(fusedDiff);
+        if (diffEngine != null) {
+            mainService.setDiffEngine(MainService.DiffEngine.valueOf(diffEngine.toUpperCase()));
+        }
+        if (hashDiffMemoryMb > 0) {
+            mainService.setHashDiffMemoryBytes(hashDiffMemoryMb << 20);
+        }
+        mainService.setChangedColumns(changedColumns);
+        mainService.setOutputShards(outputShards);
+        mainService.setFetchFlatfiles(fetchFlatfiles);
+        mainService.setFlatfileBatchSize(flatfileBatchSize);
+        mainService.setFlatfileThreads(flatfileThreads);
+        mainService.setFlatfileRetries(flatfileRetries);
+        mainService.setTempDiskBytes(tempDiskMb << 20);
+        mainService.setMetricsReport(metricsReport);
+        mainService.setChangeHistory(changeHistory);
+        SnapshotClient.setSortMemoryBytes(sortMemoryMb << 20);
+        SnapshotClient.setSortThreads(sortThreads);
+        SnapshotClient.setFetchPartitions(fetchPartitions);
+        SnapshotClient.setFetchRetries(fetchRetries);
+        SnapshotClient.setCheckpoints(checkpoint);
+        mainService.setCompression(Codec.of(compression));
+        SnapshotClient.setSortCodec(Codec.of(sortCompression));
+        SnapshotClient.setBinarySnapshots(binarySnapshot);
+        SnapshotClient.setManifests(manifest);
+        SnapshotClient.setDeltaFetch(deltaFetch);
+        SnapshotClient.setDeltaMaxFraction(deltaMaxFraction);
+        SnapshotClient.setPortalApiBase(portalApiBase);
+        SnapshotClient.setBrowserApiBase(browserApiBase);
+        if (daemon) {
+            runDaemon();
+            return;
+        }
+        if (dataTypeStr.contains(",")) {
+            mainService.fetchSnapshotsAndCompare(dataTypeStr, previousSnapshotPath, outputLocationPath, query,
+                    includeParentAccession);
+            return;
+        }
         mainService.fetchSnapshotAndCompare(dataTypeStr, previousSnapshotPath, outputLocationPath, query,
                 includeParentAccession);
     }
 
+    /**
+     * Runs every daemonIntervalMinutes and answers queries on the latest snapshot until the process is stopped.
+     */
+    private void runDaemon() throws Exception {
+        if (dataTypeStr.contains(",") || previousSnapshotPath.contains(",")) {
+            throw new IllegalArgumentException("a daemon runs a single data type against a single previous snapshot");
+        }
+        SnapshotDaemon snapshotDaemon = new SnapshotDaemon(mainService, DataType.valueOf(dataTypeStr.toUpperCase()),
+                new File(previousSnapshotPath), new File(outputLocationPath), query, includeParentAccession,
+                daemonPort, TimeUnit.MINUTES.toMillis(daemonIntervalMinutes));
+        Runtime.getRuntime().addShutdownHook(new Thread(snapshotDaemon::close, "snapshot-daemon-stop"));
+        snapshotDaemon.start();
+        snapshotDaemon.await();
+    }
+
+    /**
+     * Exports a binary snapshot as TSV, or writes the binary form of a TSV snapshot.
+     */
+    @SneakyThrows
+    static void convert(File from, File to) {
+        if (BinarySnapshot.isBinary(from)) {
+            File tsv = to != null ? to : new File(from.getPath().substring(0,
+                    from.getPath().length() - BinarySnapshot.EXTENSION.length()));
+            long rows = BinarySnapshot.toTsv(from, tsv);
+            log.info("exported {} rows to:{}", rows, tsv.getAbsolutePath());
+        } else {
+            File binary = to != null ? to : BinarySnapshot.sidecarFor(from);
+            long rows = BinarySnapshot.fromTsv(from, binary);
+            log.info("wrote {} rows to:{}", rows, binary.getAbsolutePath());
+        }
+    }
 }
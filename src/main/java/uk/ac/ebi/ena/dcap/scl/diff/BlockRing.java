@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer handoff of {@link RecordBlock}s between a snapshot reader and the merge. Filled
+ * blocks travel forward over one lock-free ring and are returned over a second one for reuse, so the pool never
+ * grows beyond {@code slots + 2} blocks. End of stream is a flag rather than a sentinel row.
+ */
+public class BlockRing {
+
+    public static final int DEFAULT_SLOTS = 4;
+
+    private final Spsc full;
+    private final Spsc free;
+    private final int blockCapacity;
+    private final int poolSize;
+    private int allocated;
+
+    private volatile boolean closed;
+    private volatile boolean cancelled;
+    private volatile Throwable failure;
+
+    public BlockRing() {
+        this(DEFAULT_SLOTS, RecordBlock.DEFAULT_CAPACITY);
+    }
+
+    public BlockRing(int slots, int blockCapacity) {
+        int size = Integer.highestOneBit(Math.max(1, slots) * 2 - 1);
+        this.poolSize = size + 2;
+        this.full = new Spsc(size);
+        this.free = new Spsc(Integer.highestOneBit(poolSize * 2 - 1));
+        this.blockCapacity = blockCapacity;
+    }
+
+    /**
+     * Producer: an empty block, recycled when one is available.
+     */
+    public RecordBlock acquire() {
+        int idle = 0;
+        while (true) {
+            checkCancelled();
+            RecordBlock block = free.poll();
+            if (block != null) {
+                block.clear();
+                return block;
+            }
+            if (allocated < poolSize) {
+                allocated++;
+                return new RecordBlock(blockCapacity);
+            }
+            idle = backoff(idle);
+        }
+    }
+
+    /**
+     * Producer: hand a filled block to the consumer.
+     */
+    public void publish(RecordBlock block) {
+        int idle = 0;
+        while (!full.offer(block)) {
+            checkCancelled();
+            idle = backoff(idle);
+        }
+    }
+
+    /**
+     * Producer: no more blocks will follow.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Producer: the stream ended abnormally; the consumer rethrows on its next take.
+     */
+    public void fail(Throwable t) {
+        failure = t;
+        closed = true;
+    }
+
+    /**
+     * Consumer: the next filled block, or null at end of stream.
+     */
+    public RecordBlock take() {
+        int idle = 0;
+        while (true) {
+            RecordBlock block = full.poll();
+            if (block != null) {
+                return block;
+            }
+            if (closed) {
+                block = full.poll();
+                if (block != null) {
+                    return block;
+                }
+                if (failure != null) {
+                    throw new IllegalStateException("snapshot reader failed", failure);
+                }
+                return null;
+            }
+            idle = backoff(idle);
+        }
+    }
+
+    /**
+     * Consumer: return a consumed block to the producer.
+     */
+    public void release(RecordBlock block) {
+        free.offer(block);
+    }
+
+    /**
+     * Filled blocks waiting for the consumer, as seen from any thread.
+     */
+    public int size() {
+        return full.size();
+    }
+
+    /**
+     * Consumer: stop the producer, e.g. when the merge has failed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("consumer cancelled");
+        }
+    }
+
+    private static int backoff(int idle) {
+        if (idle < 100) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(1_000_000L, 1_000L << Math.min(10, (idle - 100) / 10)));
+        }
+        return idle + 1;
+    }
+
+    private static final class Spsc {
+        private final RecordBlock[] buffer;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Spsc(int size) {
+            buffer = new RecordBlock[size];
+            mask = size - 1;
+        }
+
+        boolean offer(RecordBlock block) {
+            long t = tail.get();
+            if (t - head.get() == buffer.length) {
+                return false;
+            }
+            buffer[(int) t & mask] = block;
+            tail.lazySet(t + 1);
+            return true;
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head.get());
+        }
+
+        RecordBlock poll() {
+            long h = head.get();
+            if (h == tail.get()) {
+                return null;
+            }
+            int i = (int) h & mask;
+            RecordBlock block = buffer[i];
+            buffer[i] = null;
+            head.lazySet(h + 1);
+            return block;
+        }
+    }
+}
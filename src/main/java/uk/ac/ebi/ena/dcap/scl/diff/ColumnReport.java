@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import lombok.Getter;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshotReader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lists each accession whose row changed, a tab, and the names of the columns that differ, e.g.
+ * parent_accession,last_updated. Columns are told apart by the slices of the {@link RecordBlock} column hashes,
+ * and named after the snapshot's fields.
+ */
+public class ColumnReport implements Closeable {
+
+    private final Writer writer;
+    private final List<String> columns;
+    @Getter
+    private long rows;
+
+    /**
+     * @param fields all columns of the snapshot, the accession first
+     */
+    public ColumnReport(Writer writer, List<String> fields) {
+        this.writer = writer;
+        this.columns = fields.isEmpty() ? fields : fields.subList(1, fields.size());
+    }
+
+    public void changed(String acc, long prevHashes, long nextHashes) throws IOException {
+        long diff = prevHashes ^ nextHashes;
+        StringBuilder names = new StringBuilder();
+        for (int slice = 0; slice < RecordBlock.COLUMN_SLICES; slice++) {
+            if ((diff >>> (slice * RecordBlock.SLICE_BITS) & RecordBlock.SLICE_MASK) != 0) {
+                append(names, slice, slice == RecordBlock.COLUMN_SLICES - 1 ? columns.size() - 1 : slice);
+            }
+        }
+        if (names.length() == 0) {
+            // the fingerprints differ in a way the slices missed
+            append(names, 0, columns.size() - 1);
+        }
+        writer.write(acc + "\t" + names + System.lineSeparator());
+        rows++;
+    }
+
+    private void append(StringBuilder names, int from, int to) {
+        for (int i = from; i <= Math.max(from, to); i++) {
+            if (names.length() > 0) {
+                names.append(',');
+            }
+            names.append(i < columns.size() ? columns.get(i) : "column" + (i + 2));
+        }
+    }
+
+    /**
+     * The columns of the header line of a snapshot in any format, or none if it has no header.
+     */
+    public static List<String> fields(File snapshot) throws IOException {
+        File binary = BinarySnapshot.find(snapshot);
+        if (binary != null) {
+            try (BinarySnapshotReader reader = new BinarySnapshotReader(binary)) {
+                return fields(reader.getHeader());
+            }
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Codec.open(snapshot)))) {
+            return fields(reader.readLine());
+        }
+    }
+
+    public static List<String> fields(String header) {
+        if (header == null || !header.startsWith("accession")) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(header.trim().split("\t"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,396 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.io.ChangeListWriter;
+import uk.ac.ebi.ena.dcap.scl.model.PackedLine;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Diffs without sorting: the previous snapshot is held in an off-heap open-addressing hash table keyed by packed
+ * accession, and the rows of the new snapshot are probed against it as they are downloaded, in any order. A slot
+ * records the row fingerprint from each side, so loading and probing may interleave, and a row probed twice (a
+ * retried partition) counts once. The change lists come from a final scan of the table and are sorted like those
+ * of {@link MergeDiff}, whose fingerprint comparison they follow.
+ */
+@Slf4j
+public class HashDiff implements Consumer<RecordBlock> {
+
+    /**
+     * hi, lo, previous fingerprint, new fingerprint, tail offset + 1 (0 for none), flags.
+     */
+    static final int SLOT_BYTES = 40;
+    private static final int HI = 0;
+    private static final int LO = 8;
+    private static final int PREV_PRINT = 16;
+    private static final int NEXT_PRINT = 24;
+    private static final int TAIL = 32;
+    private static final int FLAGS = 36;
+    private static final int IN_PREV = 1;
+    private static final int IN_NEXT = 2;
+    private static final double MAX_LOAD = 0.7;
+    /**
+     * Room per row for the tails of accessions longer than {@link PackedLine#PACKED_BYTES}, each kept after its
+     * length in two bytes. Few accessions have one, and the tail store grows past this when they are more.
+     */
+    static final int TAIL_BYTES = 4;
+
+    private ByteBuffer table;
+    private int mask;
+    private long used;
+    private ByteBuffer tails;
+    private int tailsSize;
+    @Getter
+    private long previousRows;
+    @Getter
+    private long latestRows;
+
+    /**
+     * @param rows number of accessions expected in the table, which grows past them when needed
+     */
+    public HashDiff(long rows) {
+        allocate(capacity(rows));
+        tails = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(1024, rows * TAIL_BYTES)));
+    }
+
+    /**
+     * Bytes a diff of rows accessions, old and new, takes: the table and tails off-heap, and the slots of the
+     * changes {@link #write} sorts on the heap.
+     */
+    public static long tableBytes(long rows) {
+        return capacity(rows) * SLOT_BYTES + rows * (TAIL_BYTES + Integer.BYTES);
+    }
+
+    /**
+     * @return whether a table for rows accessions fits in budget bytes
+     */
+    public static boolean fits(long rows, long budget) {
+        return tableBytes(rows) <= budget && capacity(rows) * SLOT_BYTES <= Integer.MAX_VALUE;
+    }
+
+    private static long capacity(long rows) {
+        return Long.highestOneBit(Math.max(1024, (long) (rows / MAX_LOAD)) * 2 - 1);
+    }
+
+    private void allocate(long capacity) {
+        if (capacity * SLOT_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalStateException("hash diff table of " + capacity + " slots is too large");
+        }
+        table = ByteBuffer.allocateDirect((int) (capacity * SLOT_BYTES));
+        mask = (int) capacity - 1;
+    }
+
+    /**
+     * Reads the previous snapshot, in any format {@link SnapshotReader} reads, into the table.
+     */
+    public void load(File previousSnapshot) throws Exception {
+        long start = System.currentTimeMillis();
+        BlockRing ring = new BlockRing();
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> reading = reader.submit(() -> SnapshotReader.readTo(previousSnapshot, ring));
+            RecordBlock block;
+            while ((block = ring.take()) != null) {
+                add(block, IN_PREV);
+                ring.release(block);
+            }
+            reading.get();
+        } finally {
+            reader.shutdownNow();
+        }
+        log.info("{} previous records hashed in {}ms", previousRows, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Probes rows of the new snapshot.
+     */
+    @Override
+    public void accept(RecordBlock block) {
+        add(block, IN_NEXT);
+    }
+
+    private synchronized void add(RecordBlock block, int side) {
+        for (int i = 0; i < block.getSize(); i++) {
+            int slot = find(block.getHi()[i], block.getLo()[i], block.getTail()[i]);
+            int flags = table.getInt(slot + FLAGS);
+            if ((flags & side) == 0) {
+                if (side == IN_PREV) {
+                    previousRows++;
+                } else {
+                    latestRows++;
+                }
+            }
+            table.putLong(slot + (side == IN_PREV ? PREV_PRINT : NEXT_PRINT), block.getFingerprint()[i]);
+            table.putInt(slot + FLAGS, flags | side);
+        }
+    }
+
+    /**
+     * @return the byte offset of the slot of the accession, claimed if it was not in the table yet
+     */
+    private int find(long hi, long lo, String tail) {
+        long h = hi * 0x9e3779b97f4a7c15L + lo;
+        if (tail != null) {
+            h = h * 31 + tail.hashCode();
+        }
+        int index = (int) (mix(h) & mask);
+        while (true) {
+            int slot = index * SLOT_BYTES;
+            long slotHi = table.getLong(slot + HI);
+            if (slotHi == 0) {
+                if (used + 1 > (mask + 1) * MAX_LOAD) {
+                    grow();
+                    return find(hi, lo, tail);
+                }
+                table.putLong(slot + HI, hi);
+                table.putLong(slot + LO, lo);
+                if (tail != null) {
+                    table.putInt(slot + TAIL, addTail(tail) + 1);
+                }
+                used++;
+                return slot;
+            }
+            if (slotHi == hi && table.getLong(slot + LO) == lo && equalTails(tail, table.getInt(slot + TAIL))) {
+                return slot;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private int addTail(String tail) {
+        if (tail.length() > 0xffff) {
+            throw new IllegalArgumentException("accession too long at:" + tail);
+        }
+        int need = tailsSize + Short.BYTES + tail.length();
+        if (need < 0) {
+            throw new IllegalStateException("hash diff tails past " + tailsSize + " bytes are too large");
+        }
+        if (need > tails.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE,
+                    Math.max(need, 2L * tails.capacity())));
+            ByteBuffer old = tails.duplicate();
+            old.clear();
+            grown.put(old);
+            grown.clear();
+            tails = grown;
+        }
+        int at = tailsSize;
+        tails.putShort(at, (short) tail.length());
+        for (int i = 0; i < tail.length(); i++) {
+            tails.put(at + Short.BYTES + i, (byte) tail.charAt(i));
+        }
+        tailsSize = need;
+        return at;
+    }
+
+    private boolean equalTails(String tail, int tailIndex) {
+        if (tail == null || tailIndex == 0) {
+            return tail == null && tailIndex == 0;
+        }
+        int at = tailIndex - 1;
+        if ((tails.getShort(at) & 0xffff) != tail.length()) {
+            return false;
+        }
+        for (int i = 0; i < tail.length(); i++) {
+            if (tails.get(at + Short.BYTES + i) != (byte) tail.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        ByteBuffer old = table;
+        int oldSlots = mask + 1;
+        log.info("growing hash diff table past {} slots", oldSlots);
+        allocate(2L * oldSlots);
+        for (int i = 0; i < oldSlots; i++) {
+            int from = i * SLOT_BYTES;
+            long hi = old.getLong(from + HI);
+            if (hi == 0) {
+                continue;
+            }
+            long lo = old.getLong(from + LO);
+            int tailIndex = old.getInt(from + TAIL);
+            long h = hi * 0x9e3779b97f4a7c15L + lo;
+            if (tailIndex != 0) {
+                h = h * 31 + tailAt(tailIndex).hashCode();
+            }
+            int index = (int) (mix(h) & mask);
+            while (table.getLong(index * SLOT_BYTES + HI) != 0) {
+                index = (index + 1) & mask;
+            }
+            for (int b = 0; b < SLOT_BYTES; b += 4) {
+                table.putInt(index * SLOT_BYTES + b, old.getInt(from + b));
+            }
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Scans the table for accessions that are new or whose other columns changed, and previous accessions that
+     * were not seen, and writes each list in accession order.
+     *
+     * @return new-or-updated and deleted counts
+     */
+    public synchronized long[] write(ChangeListWriter newWriter, ChangeListWriter delWriter) throws IOException {
+        int changedCount = 0, deletedCount = 0;
+        for (int slot = 0; slot <= mask * SLOT_BYTES; slot += SLOT_BYTES) {
+            int change = change(slot);
+            if (change == IN_NEXT) {
+                changedCount++;
+            } else if (change == IN_PREV) {
+                deletedCount++;
+            }
+        }
+        int[] changed = new int[changedCount];
+        int[] deleted = new int[deletedCount];
+        changedCount = 0;
+        deletedCount = 0;
+        for (int slot = 0; slot <= mask * SLOT_BYTES; slot += SLOT_BYTES) {
+            int change = change(slot);
+            if (change == IN_NEXT) {
+                changed[changedCount++] = slot;
+            } else if (change == IN_PREV) {
+                deleted[deletedCount++] = slot;
+            }
+        }
+        write(changed, newWriter);
+        write(deleted, delWriter);
+        return new long[]{changed.length, deleted.length};
+    }
+
+    /**
+     * @return IN_NEXT if the slot is new or updated, IN_PREV if it was deleted, and 0 otherwise
+     */
+    private int change(int slot) {
+        if (table.getLong(slot + HI) == 0) {
+            return 0;
+        }
+        int flags = table.getInt(slot + FLAGS);
+        if ((flags & IN_NEXT) == 0) {
+            return IN_PREV;
+        }
+        return (flags & IN_PREV) == 0 || table.getLong(slot + PREV_PRINT) != table.getLong(slot + NEXT_PRINT) ?
+                IN_NEXT : 0;
+    }
+
+    private void write(int[] slots, ChangeListWriter writer) throws IOException {
+        sort(slots, 0, slots.length);
+        for (int slot : slots) {
+            writer.add(table.getLong(slot + HI), table.getLong(slot + LO), tail(slot));
+        }
+    }
+
+    /**
+     * In-place quicksort of slots by accession, so the write phase needs no more than the slot offsets.
+     */
+    private void sort(int[] a, int from, int to) {
+        while (to - from > 32) {
+            int mid = (from + to) >>> 1;
+            // median of three as the pivot, moved to from
+            if (compare(a[mid], a[from]) < 0) {
+                swap(a, mid, from);
+            }
+            if (compare(a[to - 1], a[mid]) < 0) {
+                swap(a, to - 1, mid);
+                if (compare(a[mid], a[from]) < 0) {
+                    swap(a, mid, from);
+                }
+            }
+            swap(a, from, mid);
+            int pivot = a[from];
+            int i = from, j = to;
+            while (true) {
+                do {
+                    i++;
+                } while (i < to && compare(a[i], pivot) < 0);
+                do {
+                    j--;
+                } while (compare(a[j], pivot) > 0);
+                if (i >= j) {
+                    break;
+                }
+                swap(a, i, j);
+            }
+            swap(a, from, j);
+            // recurse into the smaller side, so the stack stays logarithmic
+            if (j - from < to - j - 1) {
+                sort(a, from, j);
+                from = j + 1;
+            } else {
+                sort(a, j + 1, to);
+                to = j;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            int v = a[i];
+            int j = i - 1;
+            while (j >= from && compare(a[j], v) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = v;
+        }
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    private int compare(int a, int b) {
+        int c = Long.compare(table.getLong(a + HI), table.getLong(b + HI));
+        if (c == 0) {
+            c = Long.compare(table.getLong(a + LO), table.getLong(b + LO));
+        }
+        return c != 0 ? c : PackedLine.compare(0, 0, tail(a), 0, 0, tail(b));
+    }
+
+    private String tail(int slot) {
+        return tailAt(table.getInt(slot + TAIL));
+    }
+
+    private String tailAt(int tailIndex) {
+        if (tailIndex == 0) {
+            return null;
+        }
+        int at = tailIndex - 1;
+        byte[] bytes = new byte[tails.getShort(at) & 0xffff];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = tails.get(at + Short.BYTES + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BlockManifest;
+
+import java.util.*;
+
+/**
+ * Compares the block trees of two snapshot manifests from the root down, descending only into nodes whose hash has
+ * no match on the other side. Rows of matching nodes are identical in both snapshots, so diffing the rows left
+ * over on each side gives the same change lists as diffing everything.
+ */
+@Slf4j
+public class ManifestDiff {
+
+    /**
+     * Byte ranges, as {from, to}, of the blocks of each snapshot that are left to diff.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Changes {
+        private final List<long[]> previous;
+        private final List<long[]> latest;
+    }
+
+    public static Changes compare(BlockManifest previous, BlockManifest latest) {
+        boolean[] prevSame = new boolean[previous.getLeaves().size()];
+        boolean[] nextSame = new boolean[latest.getLeaves().size()];
+        List<BlockManifest.Node> prev = roots(previous);
+        List<BlockManifest.Node> next = roots(latest);
+        while (true) {
+            Map<String, BlockManifest.Node> nextByHash = new LinkedHashMap<>();
+            for (BlockManifest.Node node : next) {
+                nextByHash.put(node.getHash(), node);
+            }
+            List<BlockManifest.Node> prevLeft = new ArrayList<>();
+            for (BlockManifest.Node node : prev) {
+                BlockManifest.Node match = nextByHash.remove(node.getHash());
+                if (match == null) {
+                    prevLeft.add(node);
+                } else {
+                    Arrays.fill(prevSame, node.getFrom(), node.getTo(), true);
+                    Arrays.fill(nextSame, match.getFrom(), match.getTo(), true);
+                }
+            }
+            List<BlockManifest.Node> nextLeft = new ArrayList<>(nextByHash.values());
+            int top = Math.max(maxLevel(prevLeft), maxLevel(nextLeft));
+            if (top <= 0) {
+                break;
+            }
+            prev = expand(prevLeft, top);
+            next = expand(nextLeft, top);
+        }
+        Changes changes = new Changes(ranges(previous, prevSame), ranges(latest, nextSame));
+        log.info("{} of {} previous and {} of {} latest blocks changed", count(prevSame, false), prevSame.length,
+                count(nextSame, false), nextSame.length);
+        return changes;
+    }
+
+    private static List<BlockManifest.Node> roots(BlockManifest manifest) {
+        BlockManifest.Node root = manifest.tree();
+        return root == null ? Collections.emptyList() : Collections.singletonList(root);
+    }
+
+    private static int maxLevel(List<BlockManifest.Node> nodes) {
+        int max = -1;
+        for (BlockManifest.Node node : nodes) {
+            max = Math.max(max, node.getLevel());
+        }
+        return max;
+    }
+
+    private static List<BlockManifest.Node> expand(List<BlockManifest.Node> nodes, int level) {
+        List<BlockManifest.Node> expanded = new ArrayList<>();
+        for (BlockManifest.Node node : nodes) {
+            if (node.getLevel() == level) {
+                expanded.addAll(node.getChildren());
+            } else {
+                expanded.add(node);
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * The byte ranges of the leaves not marked same, adjacent ones joined.
+     */
+    private static List<long[]> ranges(BlockManifest manifest, boolean[] same) {
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < same.length; i++) {
+            if (same[i]) {
+                continue;
+            }
+            BlockManifest.Leaf leaf = manifest.getLeaves().get(i);
+            long from = leaf.getOffset(), to = from + leaf.getBytes();
+            long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[1] == from) {
+                last[1] = to;
+            } else {
+                ranges.add(new long[]{from, to});
+            }
+        }
+        return ranges;
+    }
+
+    private static int count(boolean[] flags, boolean value) {
+        int count = 0;
+        for (boolean flag : flags) {
+            if (flag == value) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import uk.ac.ebi.ena.dcap.scl.io.ChangeListWriter;
+
+import java.io.IOException;
+
+public class MergeDiff {
+
+    public static long[] merge(RecordCursor prev, RecordCursor next, ChangeListWriter newWriter,
+                               ChangeListWriter delWriter) throws IOException {
+        return merge(prev, next, newWriter, delWriter, null);
+    }
+
+    /**
+     * Merges two accession-sorted streams, writing accessions that are new or whose other columns changed to
+     * newWriter and accessions missing from next to delWriter. Rows are compared by fingerprint.
+     *
+     * @param report also told which columns of each changed row differ, when not null
+     * @return new-or-updated and deleted counts
+     */
+    public static long[] merge(RecordCursor prev, RecordCursor next, ChangeListWriter newWriter,
+                               ChangeListWriter delWriter, ColumnReport report) throws IOException {
+        long delCount = 0, newCount = 0;
+        boolean hasP = prev.next();
+        boolean hasN = next.next();
+        while (hasP || hasN) {
+            int compare;
+            if (!hasP) {
+                compare = 1;
+            } else if (!hasN) {
+                compare = -1;
+            } else {
+                compare = RecordCursor.compare(prev, next);
+            }
+            if (compare > 0) {
+                newWriter.add(next.hi(), next.lo(), next.tail());
+                newCount++;
+                hasN = next.next();
+            } else if (compare < 0) {
+                delWriter.add(prev.hi(), prev.lo(), prev.tail());
+                delCount++;
+                hasP = prev.next();
+            } else {
+                if (prev.fingerprint() != next.fingerprint()) {
+                    // acc is same. other columns changed
+                    newWriter.add(next.hi(), next.lo(), next.tail());
+                    newCount++;
+                    if (report != null) {
+                        report.changed(next.acc(), prev.columnHashes(), next.columnHashes());
+                    }
+                }
+                hasP = prev.next();
+                hasN = next.next();
+            }
+        }
+        return new long[]{newCount, delCount};
+    }
+
+    /**
+     * Merges next against each of the previous streams in one pass over next, writing the changes since prev[i] to
+     * newWriters[i] and delWriters[i].
+     *
+     * @param reports also told which columns of each changed row differ, when not null
+     * @return new-or-updated and deleted counts for each previous stream
+     */
+    public static long[][] merge(RecordCursor[] prev, RecordCursor next, ChangeListWriter[] newWriters,
+                                 ChangeListWriter[] delWriters, ColumnReport[] reports) throws IOException {
+        int n = prev.length;
+        long[][] counts = new long[n][2];
+        boolean[] hasP = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            hasP[i] = prev[i].next();
+        }
+        while (next.next()) {
+            for (int i = 0; i < n; i++) {
+                RecordCursor p = prev[i];
+                int compare = -1;
+                while (hasP[i] && (compare = RecordCursor.compare(p, next)) < 0) {
+                    delWriters[i].add(p.hi(), p.lo(), p.tail());
+                    counts[i][1]++;
+                    hasP[i] = p.next();
+                }
+                boolean found = hasP[i] && compare == 0;
+                if (found && p.fingerprint() == next.fingerprint()) {
+                    hasP[i] = p.next();
+                    continue;
+                }
+                newWriters[i].add(next.hi(), next.lo(), next.tail());
+                counts[i][0]++;
+                if (found) {
+                    if (reports != null) {
+                        reports[i].changed(next.acc(), p.columnHashes(), next.columnHashes());
+                    }
+                    hasP[i] = p.next();
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            while (hasP[i]) {
+                delWriters[i].add(prev[i].hi(), prev[i].lo(), prev[i].tail());
+                counts[i][1]++;
+                hasP[i] = prev[i].next();
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.io.ChangeListWriter;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits both sorted snapshots into accession ranges at the same split keys and diffs each range on its own
+ * worker. The per-range change lists are concatenated in range order, so the output is byte-identical to the
+ * single merge.
+ */
+@Slf4j
+public class PartitionedDiff {
+
+    private static final int MAX_LINE_BYTES = 4096;
+
+    public static long[] diff(File previousSnapshot, File latestSnapshot, File newOrUpdated, File deleted,
+                              int partitions) throws Exception {
+        return diff(previousSnapshot, latestSnapshot, newOrUpdated, deleted, null, null, partitions, 1);
+    }
+
+    /**
+     * @param changedColumns where to write a {@link ColumnReport} with the columns named by fields, or null
+     * @param shards         number of files each change list is spread over, see {@link ChangeListWriter}
+     */
+    public static long[] diff(File previousSnapshot, File latestSnapshot, File newOrUpdated, File deleted,
+                              File changedColumns, List<String> fields, int partitions, int shards)
+            throws Exception {
+        List<String> keys = splitKeys(latestSnapshot, partitions);
+        // a binary previous snapshot is split by seeking its index to the same keys
+        File prevBinary = BinarySnapshot.find(previousSnapshot);
+        long[] prevOffsets = prevBinary == null ? offsets(previousSnapshot, keys) : null;
+        long[] nextOffsets = offsets(latestSnapshot, keys);
+        int n = keys.size() + 1;
+        log.info("diffing {} accession ranges split at:{}", n, keys);
+
+        ExecutorService pool = Executors.newFixedThreadPool(3 * n);
+        List<File> newParts = new ArrayList<>();
+        List<File> delParts = new ArrayList<>();
+        List<File> changedParts = new ArrayList<>();
+        boolean complete = false;
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                File newPart = new File(newOrUpdated.getAbsolutePath() + ".part" + i);
+                File delPart = new File(deleted.getAbsolutePath() + ".part" + i);
+                File changedPart = changedColumns == null ? null :
+                        new File(changedColumns.getAbsolutePath() + ".part" + i);
+                newParts.add(newPart);
+                delParts.add(delPart);
+                if (changedPart != null) {
+                    changedParts.add(changedPart);
+                }
+                long nextFrom = nextOffsets[i], nextTo = nextOffsets[i + 1];
+                int range = i;
+                futures.add(pool.submit(() -> {
+                    BlockRing prevRing = new BlockRing();
+                    BlockRing nextRing = new BlockRing();
+                    if (prevBinary != null) {
+                        String fromKey = range == 0 ? null : keys.get(range - 1);
+                        String toKey = range == keys.size() ? null : keys.get(range);
+                        pool.submit(() -> BinarySnapshot.readTo(prevBinary, fromKey, toKey, prevRing));
+                    } else {
+                        long prevFrom = prevOffsets[range], prevTo = prevOffsets[range + 1];
+                        pool.submit(() -> SnapshotReader.readTo(previousSnapshot, prevFrom, prevTo, prevRing));
+                    }
+                    pool.submit(() -> SnapshotReader.readTo(latestSnapshot, nextFrom, nextTo, nextRing));
+                    RecordCursor prev = new RecordCursor(prevRing);
+                    RecordCursor next = new RecordCursor(nextRing);
+                    // compressed parts concatenate to a valid multi-member file
+                    try (ChangeListWriter newWriter = new ChangeListWriter(newPart, Codec.forName(newOrUpdated),
+                            shards);
+                         ChangeListWriter delWriter = new ChangeListWriter(delPart, Codec.forName(deleted), shards);
+                         ColumnReport report = changedPart == null ? null :
+                                 new ColumnReport(Codec.forName(changedColumns).writer(changedPart), fields)) {
+                        return MergeDiff.merge(prev, next, newWriter, delWriter, report);
+                    } finally {
+                        prev.cancel();
+                        next.cancel();
+                    }
+                }));
+            }
+            long newCount = 0, delCount = 0;
+            for (Future<long[]> future : futures) {
+                long[] counts = future.get();
+                newCount += counts[0];
+                delCount += counts[1];
+            }
+            concat(newParts, newOrUpdated, shards);
+            concat(delParts, deleted, shards);
+            if (changedColumns != null) {
+                concat(changedParts, changedColumns);
+            }
+            complete = true;
+            return new long[]{newCount, delCount};
+        } finally {
+            pool.shutdownNow();
+            if (!complete) {
+                deleteParts(pool, newParts, delParts, changedParts, shards);
+            }
+        }
+    }
+
+    /**
+     * Removes the parts of a diff that did not complete, once the ranges still running have stopped writing them.
+     */
+    private static void deleteParts(ExecutorService pool, List<File> newParts, List<File> delParts,
+                                    List<File> changedParts, int shards) {
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<File> parts = new ArrayList<>(changedParts);
+        for (File part : newParts) {
+            parts.addAll(ChangeListWriter.files(part, shards));
+        }
+        for (File part : delParts) {
+            parts.addAll(ChangeListWriter.files(part, shards));
+        }
+        for (File part : parts) {
+            if (part.exists() && !part.delete()) {
+                log.warn("could not delete:{}", part.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Accessions of the lines found at evenly spaced byte offsets of the snapshot, strictly increasing.
+     */
+    static List<String> splitKeys(File snapshot, int partitions) throws IOException {
+        List<String> keys = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long firstLine = firstDataLine(channel);
+            for (int i = 1; i < partitions; i++) {
+                long at = lineStartAtOrAfter(channel, Math.max(firstLine, size * i / partitions));
+                if (at >= size) {
+                    break;
+                }
+                String key = accessionAt(channel, at);
+                if (keys.isEmpty() || key.compareTo(keys.get(keys.size() - 1)) > 0) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * For each key, the offset of the first line whose accession is not less than it, bracketed by 0 and the file
+     * size.
+     */
+    static long[] offsets(File snapshot, List<String> keys) throws IOException {
+        long[] offsets = new long[keys.size() + 2];
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            long firstLine = firstDataLine(channel);
+            for (int i = 0; i < keys.size(); i++) {
+                offsets[i + 1] = lowerBound(channel, Math.max(firstLine, offsets[i]), keys.get(i));
+            }
+            offsets[keys.size() + 1] = channel.size();
+        }
+        return offsets;
+    }
+
+    static long lowerBound(FileChannel channel, long lo, String key) throws IOException {
+        long hi = channel.size();
+        while (hi - lo > MAX_LINE_BYTES) {
+            long mid = lo + (hi - lo) / 2;
+            long at = lineStartAtOrAfter(channel, mid);
+            if (at >= hi) {
+                break;
+            }
+            if (accessionAt(channel, at).compareTo(key) < 0) {
+                lo = lineStartAtOrAfter(channel, at + 1);
+            } else {
+                hi = at;
+            }
+        }
+        long at = lo;
+        while (at < hi && accessionAt(channel, at).compareTo(key) < 0) {
+            at = lineStartAtOrAfter(channel, at + 1);
+        }
+        return Math.min(at, hi);
+    }
+
+    private static long firstDataLine(FileChannel channel) throws IOException {
+        if (channel.size() > 0 && accessionAt(channel, 0).equals("accession")) {
+            return lineStartAtOrAfter(channel, 1);
+        }
+        return 0;
+    }
+
+    static long lineStartAtOrAfter(FileChannel channel, long pos) throws IOException {
+        long size = channel.size();
+        if (pos == 0 || pos >= size) {
+            return Math.min(pos, size);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LINE_BYTES);
+        long at = pos - 1;
+        while (at < size) {
+            buf.clear();
+            int read = channel.read(buf, at);
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += read;
+        }
+        return size;
+    }
+
+    private static String accessionAt(FileChannel channel, long at) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_LINE_BYTES);
+        int read = Math.max(0, channel.read(buf, at));
+        int end = 0;
+        while (end < read && buf.get(end) != '\t' && buf.get(end) != '\n' && buf.get(end) != '\r') {
+            end++;
+        }
+        return new String(buf.array(), 0, end, StandardCharsets.US_ASCII);
+    }
+
+    private static void concat(List<File> parts, File target, int shards) throws IOException {
+        List<File> targets = ChangeListWriter.files(target, shards);
+        for (int shard = 0; shard < targets.size(); shard++) {
+            List<File> shardParts = new ArrayList<>();
+            for (File part : parts) {
+                shardParts.add(ChangeListWriter.files(part, shards).get(shard));
+            }
+            concat(shardParts, targets.get(shard));
+        }
+    }
+
+    private static void concat(List<File> parts, File target) throws IOException {
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (File part : parts) {
+                try (FileChannel in = FileChannel.open(part.toPath(), StandardOpenOption.READ)) {
+                    long pos = 0, size = in.size();
+                    while (pos < size) {
+                        pos += in.transferTo(pos, size - pos, out);
+                    }
+                }
+                Files.delete(part.toPath());
+            }
+        }
+    }
+}
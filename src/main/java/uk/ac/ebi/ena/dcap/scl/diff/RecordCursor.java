@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import uk.ac.ebi.ena.dcap.scl.model.PackedLine;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+
+/**
+ * Row-at-a-time view over the blocks arriving on a {@link BlockRing}. Consumed blocks are released back to the ring.
+ */
+public class RecordCursor {
+
+    private final BlockRing ring;
+    private RecordBlock block;
+    private int index;
+    private boolean done;
+
+    public RecordCursor(BlockRing ring) {
+        this.ring = ring;
+    }
+
+    public boolean next() {
+        if (done) {
+            return false;
+        }
+        index++;
+        while (block == null || index >= block.getSize()) {
+            if (block != null) {
+                ring.release(block);
+            }
+            block = ring.take();
+            index = 0;
+            if (block == null) {
+                done = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long hi() {
+        return block.getHi()[index];
+    }
+
+    public long lo() {
+        return block.getLo()[index];
+    }
+
+    public String tail() {
+        return block.getTail()[index];
+    }
+
+    public long fingerprint() {
+        return block.getFingerprint()[index];
+    }
+
+    public long columnHashes() {
+        return block.getColumnHashes()[index];
+    }
+
+    public String acc() {
+        return block.getAcc(index);
+    }
+
+    public void cancel() {
+        ring.cancel();
+    }
+
+    public static int compare(RecordCursor a, RecordCursor b) {
+        return PackedLine.compare(a.hi(), a.lo(), a.tail(), b.hi(), b.lo(), b.tail());
+    }
+}
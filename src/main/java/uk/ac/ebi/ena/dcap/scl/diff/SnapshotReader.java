@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a sorted snapshot by memory-mapping it segment by segment and scanning for tab and newline bytes in place.
+ * Rows go straight from the mapped bytes into packed {@link RecordBlock}s; no line Strings are decoded. Compressed
+ * snapshots are streamed through a buffer instead.
+ */
+@Slf4j
+public class SnapshotReader {
+
+    static final int SEGMENT_BYTES = 1 << 30;
+
+    static final int STREAM_BUFFER_BYTES = 1 << 22;
+
+    static final int RANGE_SLACK_BYTES = 1 << 16;
+
+    /**
+     * Reads the whole snapshot, which may be compressed with any {@link Codec}, or from its binary form when there
+     * is one.
+     */
+    public static long readTo(File snapshot, BlockRing ring) {
+        Codec codec;
+        try {
+            File binary = BinarySnapshot.find(snapshot);
+            if (binary != null) {
+                return BinarySnapshot.readTo(binary, ring);
+            }
+            codec = Codec.detect(snapshot);
+        } catch (IOException e) {
+            log.error(snapshot.getName() + " Error:", e);
+            ring.fail(e);
+            return 0;
+        }
+        if (codec != Codec.NONE) {
+            return readStream(snapshot, ring, STREAM_BUFFER_BYTES);
+        }
+        return readTo(snapshot, 0, Long.MAX_VALUE, ring);
+    }
+
+    /**
+     * Reads a compressed snapshot, which cannot be mapped, by decompressing it into a buffer and scanning the rows
+     * of the buffer in place the same way.
+     */
+    static long readStream(File snapshot, BlockRing ring, int bufferBytes) {
+        log.info("decompressing {}", snapshot);
+        long count = 0;
+        byte[] buf = new byte[bufferBytes];
+        ByteBuffer view = ByteBuffer.wrap(buf);
+        int size = 0;
+        boolean first = true;
+        boolean eof = false;
+        try (InputStream in = Codec.open(snapshot)) {
+            RecordBlock block = ring.acquire();
+            reading:
+            while (!eof) {
+                int n = in.read(buf, size, buf.length - size);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    size += n;
+                    if (size < buf.length) {
+                        continue;
+                    }
+                }
+                int lineStart = 0;
+                while (lineStart < size) {
+                    int nl = RecordBlock.indexOf(view, (byte) '\n', lineStart, size);
+                    if (nl < 0 && !eof) {
+                        break;
+                    }
+                    int lineEnd = nl < 0 ? size : nl;
+                    if (first) {
+                        first = false;
+                        if (lineEnd == 0 || isBlank(view, lineStart, lineEnd)) {
+                            // empty snapshot
+                            break reading;
+                        }
+                        if (isHeader(view, lineStart, lineEnd)) {
+                            lineStart = lineEnd + 1;
+                            continue;
+                        }
+                    }
+                    if (block.isFull()) {
+                        ring.publish(block);
+                        block = ring.acquire();
+                    }
+                    block.addRow(view, lineStart, lineEnd);
+                    count++;
+                    if (count % 100000000 == 0) {
+                        log.info("read {} from {}: {}", count, snapshot.getName(),
+                                block.getAcc(block.getSize() - 1));
+                    }
+                    lineStart = lineEnd + 1;
+                }
+                if (!eof) {
+                    if (lineStart == 0) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                        view = ByteBuffer.wrap(buf);
+                    } else {
+                        System.arraycopy(buf, lineStart, buf, 0, size - lineStart);
+                        size -= lineStart;
+                    }
+                }
+            }
+            if (!block.isEmpty()) {
+                ring.publish(block);
+            }
+            log.info("{} read. closing:{}", count, snapshot.getName());
+            ring.close();
+        } catch (Throwable e) {
+            log.error(snapshot.getName() + " Error:", e);
+            ring.fail(e);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the rows starting in [from, to) of the file. from must be the start of a line. A header line is
+     * skipped when it is the first line of the file. Any failure is passed on to the consumer through
+     * {@link BlockRing#fail}.
+     */
+    public static long readTo(File snapshot, long from, long to, BlockRing ring) {
+        return readTo(snapshot, from, to, ring, SEGMENT_BYTES);
+    }
+
+    static long readTo(File snapshot, long from, long to, BlockRing ring, int segmentBytes) {
+        return readRanges(snapshot, Collections.singletonList(new long[]{from, to}), ring, segmentBytes);
+    }
+
+    /**
+     * As {@link #readTo(File, long, long, BlockRing)} for each of the {from, to} byte ranges in turn, which must be
+     * in file order.
+     */
+    public static long readRanges(File snapshot, List<long[]> ranges, BlockRing ring) {
+        return readRanges(snapshot, ranges, ring, SEGMENT_BYTES);
+    }
+
+    static long readRanges(File snapshot, List<long[]> ranges, BlockRing ring, int segmentBytes) {
+        log.info("mapping {} from byte {}{}", snapshot, ranges.isEmpty() ? 0 : ranges.get(0)[0],
+                ranges.size() > 1 ? " in " + ranges.size() + " ranges" : "");
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            RecordBlock block = ring.acquire();
+            for (long[] range : ranges) {
+                long pos = range[0];
+                long end = Math.min(range[1], channel.size());
+                while (pos < end) {
+                    // short ranges map little more than themselves
+                    long segmentEnd = Math.min(channel.size(),
+                            pos + Math.min(segmentBytes, end - pos + RANGE_SLACK_BYTES));
+                    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, segmentEnd - pos);
+                    int limit = buf.limit();
+                    int lineStart = 0;
+                    while (pos + lineStart < end) {
+                        int nl = RecordBlock.indexOf(buf, (byte) '\n', lineStart, limit);
+                        int lineEnd = nl < 0 ? limit : nl;
+                        if (nl < 0 && segmentEnd < channel.size()) {
+                            // line continues in the next segment
+                            break;
+                        }
+                        if (pos + lineStart == 0) {
+                            if (lineEnd == 0 || isBlank(buf, lineStart, lineEnd)) {
+                                // empty snapshot
+                                pos = end;
+                                break;
+                            }
+                            if (isHeader(buf, lineStart, lineEnd)) {
+                                lineStart = lineEnd + 1;
+                                continue;
+                            }
+                        }
+                        if (block.isFull()) {
+                            ring.publish(block);
+                            block = ring.acquire();
+                        }
+                        try {
+                            block.addRow(buf, lineStart, lineEnd);
+                        } catch (RuntimeException e) {
+                            log.error("Error in line at byte:{}", pos + lineStart);
+                            throw e;
+                        }
+                        count++;
+                        if (count % 100000000 == 0) {
+                            log.info("read {} from {}: {}", count, snapshot.getName(),
+                                    block.getAcc(block.getSize() - 1));
+                        }
+                        lineStart = lineEnd + 1;
+                    }
+                    if (pos < end) {
+                        if (lineStart == 0 && segmentEnd < channel.size()) {
+                            throw new IOException("line longer than " + (segmentEnd - pos) + " bytes at " + pos);
+                        }
+                        pos += lineStart;
+                    }
+                    if (segmentEnd == channel.size()) {
+                        break;
+                    }
+                }
+            }
+            if (!block.isEmpty()) {
+                ring.publish(block);
+            }
+            log.info("{} read. closing:{}", count, snapshot.getName());
+            ring.close();
+        } catch (Throwable e) {
+            log.error(snapshot.getName() + " Error:", e);
+            ring.fail(e);
+        }
+        return count;
+    }
+
+    private static boolean isHeader(ByteBuffer buf, int start, int end) {
+        byte[] header = {'a', 'c', 'c', 'e', 's', 's', 'i', 'o', 'n'};
+        if (end - start < header.length) {
+            return false;
+        }
+        for (int i = 0; i < header.length; i++) {
+            if (buf.get(start + i) != header[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(ByteBuffer buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(buf.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,551 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.history;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The change lists of every run of a data type, kept so that the net changes between any two recorded runs can be
+ * listed without their snapshots. Each run appends a segment: a file of accession, run date and N (new or updated)
+ * or D (deleted), sorted by accession then run, named by the first and last run it holds, e.g.
+ * 20210701_20210701.tsv.gz. runs.tsv catalogues the runs, each with the run it was compared against, and a segment
+ * counts only once its runs are catalogued.
+ * <p>
+ * Compaction merges the newest {@link #FAN_IN} segments into one whenever they hold about as many runs each, so a
+ * history of n runs has O(log n) segments and each entry is rewritten O(log n) times. Nothing is dropped, so any two
+ * recorded runs can still be queried. A merged segment replaces its inputs by a rename, and inputs left behind by an
+ * interrupted compaction are removed when next listed.
+ * <p>
+ * Appends, compactions and the opening of a query's segments hold a lock on the directory, so one process can
+ * compact while another queries.
+ */
+@Slf4j
+public class ChangeHistory {
+
+    public static final String DIRECTORY_SUFFIX = "_history";
+    static final String CATALOGUE = "runs.tsv";
+    static final String LOCK = "lock";
+    static final int FAN_IN = 4;
+    static final char NEW_OR_UPDATED = 'N';
+    static final char DELETED = 'D';
+    /**
+     * The previous run of a run compared against a snapshot not named by date.
+     */
+    static final String UNKNOWN = "-";
+
+    private static final Pattern SEGMENT = Pattern.compile("(\\d{8})_(\\d{8})\\.tsv(\\.gz|\\.zst)?");
+    private static final Pattern DATE = Pattern.compile("\\d{8}");
+    private static final Map<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    @Getter
+    private final File directory;
+    private final Codec codec;
+
+    /**
+     * @param codec compression of the segments written, those read may be in any
+     */
+    public ChangeHistory(File directory, Codec codec) {
+        this.directory = directory;
+        this.codec = codec;
+    }
+
+    /**
+     * coding_history in the output location, for the runs of coding.
+     */
+    public static File directoryFor(File outputLocation, String dataType) {
+        return new File(outputLocation, dataType.toLowerCase() + DIRECTORY_SUFFIX);
+    }
+
+    public boolean exists() {
+        return new File(directory, CATALOGUE).isFile();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Run {
+        private final String date;
+        /**
+         * The run this one was compared against, or {@link #UNKNOWN}.
+         */
+        private final String previous;
+        private final long newOrUpdated;
+        private final long deleted;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Segment {
+        private final File file;
+        private final String first;
+        private final String last;
+
+        boolean covers(Segment other) {
+            return first.compareTo(other.first) <= 0 && last.compareTo(other.last) >= 0;
+        }
+    }
+
+    /**
+     * The date in a snapshot name, e.g. 20210701 for coding_20210701, or {@link #UNKNOWN}.
+     */
+    public static String runOf(String snapshotName) {
+        String date = snapshotName.substring(snapshotName.lastIndexOf('_') + 1);
+        return DATE.matcher(date).matches() ? date : UNKNOWN;
+    }
+
+    private <T> T locked(Callable<T> action) throws IOException {
+        directory.mkdirs();
+        synchronized (LOCKS.computeIfAbsent(directory.getCanonicalPath(), d -> new Object())) {
+            try (FileChannel channel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    return action.call();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * The catalogued runs, oldest first.
+     */
+    public List<Run> runs() throws IOException {
+        List<Run> runs = new ArrayList<>();
+        File catalogue = new File(directory, CATALOGUE);
+        if (!catalogue.isFile()) {
+            return runs;
+        }
+        for (String line : Files.readAllLines(catalogue.toPath(), StandardCharsets.US_ASCII)) {
+            String[] fields = line.split("\t");
+            if (fields.length == 4) {
+                runs.add(new Run(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * The segments of catalogued runs, oldest first. Under the lock, also removes what an interrupted append or
+     * compaction left.
+     */
+    List<Segment> segments(boolean tidy) throws IOException {
+        Set<String> catalogued = new HashSet<>();
+        for (Run run : runs()) {
+            catalogued.add(run.getDate());
+        }
+        List<Segment> found = new ArrayList<>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            Matcher matcher = SEGMENT.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            Segment segment = new Segment(file, matcher.group(1), matcher.group(2));
+            if (!catalogued.contains(segment.first) || !catalogued.contains(segment.last)) {
+                // appended but never catalogued, even if later runs were
+                if (tidy) {
+                    file.delete();
+                }
+                continue;
+            }
+            found.add(segment);
+        }
+        // widest first, so a merged segment is kept over its inputs
+        found.sort(Comparator.comparing(Segment::getFirst).thenComparing(Segment::getLast, Comparator.reverseOrder()));
+        List<Segment> segments = new ArrayList<>();
+        for (Segment segment : found) {
+            if (!segments.isEmpty() && segments.get(segments.size() - 1).covers(segment)) {
+                if (tidy) {
+                    segment.file.delete();
+                }
+                continue;
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Appends the change lists of the run of date, compared against the run of previous, each list in accession
+     * order or spread over shards that are.
+     *
+     * @return false if the history already has a run of date or a later one, which it is then left with
+     */
+    public boolean append(String date, String previous, List<File> newOrUpdated, List<File> deleted)
+            throws IOException {
+        return locked(() -> {
+            List<Run> runs = runs();
+            if (!runs.isEmpty() && runs.get(runs.size() - 1).getDate().compareTo(date) >= 0) {
+                log.warn("{} already has a run of {}, the run of {} is not recorded", directory.getName(),
+                        runs.get(runs.size() - 1).getDate(), date);
+                return false;
+            }
+            List<Cursor> cursors = new ArrayList<>();
+            for (File list : newOrUpdated) {
+                cursors.add(new ListCursor(list, date, NEW_OR_UPDATED));
+            }
+            for (File list : deleted) {
+                cursors.add(new ListCursor(list, date, DELETED));
+            }
+            long[] counts = write(segmentFile(date, date), cursors);
+            try (Writer out = Files.newBufferedWriter(new File(directory, CATALOGUE).toPath(),
+                    StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(date + "\t" + previous + "\t" + counts[0] + "\t" + counts[1] + "\n");
+            }
+            log.info("recorded the run of {} in {}: {} new or updated, {} deleted", date, directory.getName(),
+                    counts[0], counts[1]);
+            return true;
+        });
+    }
+
+    private File segmentFile(String first, String last) {
+        return codec.name(new File(directory, first + "_" + last + ".tsv"));
+    }
+
+    private static int runsIn(Segment segment, List<Run> runs) {
+        int n = 0;
+        for (Run run : runs) {
+            if (run.getDate().compareTo(segment.first) >= 0 && run.getDate().compareTo(segment.last) <= 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static int tier(int runs) {
+        int tier = 0;
+        for (long size = FAN_IN; size <= runs; size *= FAN_IN) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Merges the newest segments while there are {@link #FAN_IN} of a tier.
+     *
+     * @return the number of merges
+     */
+    public int compact() throws IOException {
+        return locked(() -> {
+            int merges = 0;
+            List<Run> runs = runs();
+            for (List<Segment> segments = segments(true); segments.size() >= FAN_IN; segments = segments(true)) {
+                List<Segment> newest = segments.subList(segments.size() - FAN_IN, segments.size());
+                int tier = tier(runsIn(newest.get(0), runs));
+                if (newest.stream().anyMatch(segment -> tier(runsIn(segment, runs)) != tier)) {
+                    break;
+                }
+                List<Cursor> cursors = new ArrayList<>();
+                for (Segment segment : newest) {
+                    cursors.add(new SegmentCursor(segment.file));
+                }
+                File merged = segmentFile(newest.get(0).first, newest.get(FAN_IN - 1).last);
+                write(merged, cursors);
+                for (Segment segment : newest) {
+                    if (!segment.file.equals(merged)) {
+                        segment.file.delete();
+                    }
+                }
+                log.info("compacted {} segments of {} into:{}", FAN_IN, directory.getName(), merged.getName());
+                merges++;
+            }
+            return merges;
+        });
+    }
+
+    /**
+     * Compacts on a thread of its own, which the process waits for before it exits.
+     */
+    public Thread compactInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                // the segments are left as they were, for the next compaction
+                log.error("compacting " + directory.getName() + " failed:", e);
+            }
+        }, "compact-" + directory.getName());
+        thread.start();
+        return thread;
+    }
+
+    public interface ChangeSink {
+        void accept(String accession, boolean deleted) throws IOException;
+    }
+
+    /**
+     * Hands each accession changed by the runs after from, up to and including to, in accession order, to sink,
+     * as deleted if the last of those runs to list it deleted it. An accession both added and deleted in between is
+     * handed as deleted, as the history cannot tell it from one that was updated and then deleted.
+     *
+     * @param from a recorded run, or the run the first recorded run was compared against
+     * @return the number of new or updated and of deleted accessions
+     */
+    public long[] query(String from, String to, ChangeSink sink) throws IOException {
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("from " + from + " is after to " + to);
+        }
+        List<Cursor> cursors = locked(() -> {
+            List<Run> runs = runs();
+            checkChain(runs, from, to);
+            List<Cursor> opened = new ArrayList<>();
+            for (Segment segment : segments(false)) {
+                if (segment.last.compareTo(from) > 0 && segment.first.compareTo(to) <= 0) {
+                    opened.add(new SegmentCursor(segment.file));
+                }
+            }
+            return opened;
+        });
+        long[] counts = new long[2];
+        try (Merge merge = new Merge(cursors)) {
+            String accession = null;
+            char change = 0;
+            for (Cursor cursor = merge.next(); ; cursor = merge.next()) {
+                if (cursor != null && (cursor.run.compareTo(from) <= 0 || cursor.run.compareTo(to) > 0)) {
+                    continue;
+                }
+                if (accession != null && (cursor == null || !cursor.accession.equals(accession))) {
+                    sink.accept(accession, change == DELETED);
+                    counts[change == DELETED ? 1 : 0]++;
+                }
+                if (cursor == null) {
+                    break;
+                }
+                // entries of an accession come in run order, so the last is the net change
+                accession = cursor.accession;
+                change = cursor.change;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Whether the net changes from from to to can be queried.
+     */
+    public boolean covers(String from, String to) throws IOException {
+        try {
+            checkChain(runs(), from, to);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks that from and to are recorded, and that each run in between was compared against the one before.
+     */
+    private static void checkChain(List<Run> runs, String from, String to) {
+        String previous = from;
+        boolean fromRecorded = !runs.isEmpty() && runs.get(0).getPrevious().equals(from);
+        boolean toRecorded = from.equals(to) && fromRecorded;
+        for (Run run : runs) {
+            if (run.getDate().equals(from)) {
+                fromRecorded = true;
+            }
+            if (run.getDate().compareTo(from) > 0 && run.getDate().compareTo(to) <= 0) {
+                if (!run.getPrevious().equals(previous)) {
+                    throw new IllegalArgumentException("the run of " + run.getDate() + " was compared against " +
+                            run.getPrevious() + " not " + previous + ", so the history has a gap");
+                }
+                previous = run.getDate();
+            }
+            if (run.getDate().equals(to)) {
+                toRecorded = true;
+            }
+        }
+        if (!fromRecorded || !toRecorded) {
+            throw new IllegalArgumentException("no recorded run of " + (fromRecorded ? to : from) + ", runs are " +
+                    runs.stream().map(Run::getDate).reduce((a, b) -> a + "," + b).orElse("none"));
+        }
+    }
+
+    /**
+     * Writes the entries of cursors, in order, to file, by way of a temporary file renamed over it.
+     *
+     * @return the number of new or updated and of deleted entries
+     */
+    private long[] write(File file, List<Cursor> cursors) throws IOException {
+        File temp = new File(directory, "." + file.getName() + ".tmp");
+        long[] counts = new long[2];
+        try (Merge merge = new Merge(cursors); Writer out = new BufferedWriter(new OutputStreamWriter(
+                codec.create(temp, false), StandardCharsets.US_ASCII), 1 << 16)) {
+            for (Cursor cursor = merge.next(); cursor != null; cursor = merge.next()) {
+                out.write(cursor.accession);
+                out.write('\t');
+                out.write(cursor.run);
+                out.write('\t');
+                out.write(cursor.change);
+                out.write('\n');
+                counts[cursor.change == DELETED ? 1 : 0]++;
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return counts;
+    }
+
+    /**
+     * An entry of a change list or segment, and the reader it comes from.
+     */
+    abstract static class Cursor implements Closeable {
+        final BufferedReader reader;
+        String accession;
+        String run;
+        char change;
+
+        Cursor(File file) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(Codec.open(file), StandardCharsets.US_ASCII), 1 << 16);
+        }
+
+        /**
+         * @return false at the end
+         */
+        abstract boolean advance() throws IOException;
+
+        String nextLine() throws IOException {
+            String line = reader.readLine();
+            while (line != null && line.isEmpty()) {
+                line = reader.readLine();
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    static final class ListCursor extends Cursor {
+        ListCursor(File list, String run, char change) throws IOException {
+            super(list);
+            this.run = run;
+            this.change = change;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            accession = nextLine();
+            return accession != null;
+        }
+    }
+
+    static final class SegmentCursor extends Cursor {
+        SegmentCursor(File segment) throws IOException {
+            super(segment);
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            String line = nextLine();
+            if (line == null) {
+                return false;
+            }
+            int tab = line.indexOf('\t');
+            accession = line.substring(0, tab);
+            run = line.substring(tab + 1, line.length() - 2);
+            change = line.charAt(line.length() - 1);
+            return true;
+        }
+    }
+
+    /**
+     * The entries of sorted cursors in accession then run order.
+     */
+    static final class Merge implements Closeable {
+        private final List<Cursor> cursors;
+        private final PriorityQueue<Cursor> queue;
+        private Cursor current;
+
+        Merge(List<Cursor> cursors) throws IOException {
+            this.cursors = cursors;
+            queue = new PriorityQueue<>(Math.max(1, cursors.size()), Comparator.comparing((Cursor c) -> c.accession)
+                    .thenComparing(c -> c.run));
+            try {
+                for (Cursor cursor : cursors) {
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the cursor at the next entry, valid until the next call, or null at the end
+         */
+        Cursor next() throws IOException {
+            if (current != null && current.advance()) {
+                queue.add(current);
+            }
+            current = queue.poll();
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (Cursor cursor : cursors) {
+                try {
+                    cursor.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Hands the bytes written to it over to a thread that writes them to the wrapped stream, so that an expensive
+ * stream such as a compressor runs alongside the writer. A failure of the wrapped stream is rethrown to the
+ * writer on its next buffer hand-over or on close.
+ */
+public class AsyncOutputStream extends OutputStream {
+
+    static final int BUFFER_BYTES = 1 << 20;
+    static final int BUFFERS = 4;
+
+    private static final class Buffer {
+        final byte[] bytes;
+        int size;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+    }
+
+    private static final Buffer END = new Buffer(0);
+
+    private final BlockingQueue<Buffer> full = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<Buffer> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final Thread writer;
+    private volatile Throwable failure;
+    private Buffer buffer;
+    private boolean closed;
+
+    public AsyncOutputStream(OutputStream out, String name) {
+        for (int i = 0; i < BUFFERS - 1; i++) {
+            free.add(new Buffer(BUFFER_BYTES));
+        }
+        buffer = new Buffer(BUFFER_BYTES);
+        writer = new Thread(() -> drain(out), name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * After a failure buffers are still taken and recycled, only not written, so the writer never blocks.
+     */
+    private void drain(OutputStream out) {
+        try {
+            while (true) {
+                Buffer b = full.take();
+                if (b == END) {
+                    break;
+                }
+                if (failure == null) {
+                    try {
+                        out.write(b.bytes, 0, b.size);
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
+                }
+                b.size = 0;
+                free.put(b);
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } finally {
+            try {
+                out.close();
+            } catch (Throwable e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (buffer.size == buffer.bytes.length) {
+            handOver();
+        }
+        buffer.bytes[buffer.size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (buffer.size == buffer.bytes.length) {
+                handOver();
+            }
+            int n = Math.min(len, buffer.bytes.length - buffer.size);
+            System.arraycopy(b, off, buffer.bytes, buffer.size, n);
+            buffer.size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void handOver() throws IOException {
+        check();
+        try {
+            full.put(buffer);
+            buffer = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private void check() throws IOException {
+        Throwable e = failure;
+        if (e != null) {
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (buffer.size > 0) {
+                handOver();
+            }
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        check();
+    }
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes a change list of accessions, one per line. Accessions are encoded straight into byte batches, and full
+ * batches are handed to a thread of its own that writes them through large direct buffers to the file channel, or
+ * through the compressor the file name asks for. The diff thread only pays for encoding.
+ * <p>
+ * The list may be sharded into several files by accession hash: an accession goes to shard
+ * {@code Math.floorMod(accession.hashCode(), shards)}, so each shard stays in accession order. A failure of the
+ * writing thread is rethrown on the next batch hand-over or on close.
+ */
+public class ChangeListWriter implements Closeable {
+
+    static final int BATCH_BYTES = 1 << 16;
+    static final int BATCHES = 16;
+    static final int CHANNEL_BUFFER_BYTES = 1 << 20;
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private static final class Batch {
+        final byte[] bytes = new byte[BATCH_BYTES];
+        int size;
+        int shard;
+    }
+
+    private static final Batch END = new Batch();
+
+    private final Shard[] shards;
+    private final Batch[] batches;
+    private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(BATCHES);
+    private final BlockingQueue<Batch> free;
+    private final Thread writer;
+    private volatile Throwable failure;
+    private long count;
+    private boolean closed;
+
+    public ChangeListWriter(File file) throws IOException {
+        this(file, 1);
+    }
+
+    public ChangeListWriter(File file, int shards) throws IOException {
+        this(file, Codec.forName(file), shards);
+    }
+
+    /**
+     * @param shards number of files to spread the list over, named by {@link #files}
+     */
+    public ChangeListWriter(File file, Codec codec, int shards) throws IOException {
+        List<File> files = files(file, shards);
+        this.shards = new Shard[files.size()];
+        try {
+            for (int i = 0; i < this.shards.length; i++) {
+                this.shards[i] = new Shard(files.get(i), codec);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Shard shard : this.shards) {
+                if (shard != null) {
+                    shard.channel.close();
+                }
+            }
+            throw e;
+        }
+        batches = new Batch[this.shards.length];
+        // room for every batch, so the writing thread never blocks returning one
+        free = new ArrayBlockingQueue<>(batches.length + BATCHES);
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = new Batch();
+            batches[i].shard = i;
+        }
+        for (int i = 0; i < BATCHES - 1; i++) {
+            free.add(new Batch());
+        }
+        writer = new Thread(this::drain, "write-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * The files a list written to file with this many shards ends up in: file itself when there is one, else
+     * coding_20210803_new-or-updated_0.tsv and so on, numbered before the .tsv and codec extensions.
+     */
+    public static List<File> files(File file, int shards) {
+        List<File> files = new ArrayList<>();
+        if (shards <= 1) {
+            files.add(file);
+            return files;
+        }
+        String name = file.getName();
+        int at = name.lastIndexOf(".tsv");
+        if (at < 0) {
+            at = name.length() - Codec.forName(file).getExtension().length();
+        }
+        for (int i = 0; i < shards; i++) {
+            files.add(new File(file.getParentFile(), name.substring(0, at) + "_" + i + name.substring(at)));
+        }
+        return files;
+    }
+
+    public void add(String acc) throws IOException {
+        int hash = shards.length > 1 ? acc.hashCode() : 0;
+        Batch batch = batchFor(hash, acc.length() + LINE_SEPARATOR.length);
+        int size = batch.size;
+        for (int i = 0; i < acc.length(); i++) {
+            char c = acc.charAt(i);
+            if (c > 0x7f) {
+                // rare enough to encode on its own
+                byte[] b = acc.getBytes(StandardCharsets.UTF_8);
+                batch = batchFor(hash, b.length + LINE_SEPARATOR.length);
+                System.arraycopy(b, 0, batch.bytes, batch.size, b.length);
+                size = batch.size + b.length;
+                break;
+            }
+            batch.bytes[size++] = (byte) c;
+        }
+        endLine(batch, size);
+    }
+
+    /**
+     * Adds the accession packed as by {@link uk.ac.ebi.ena.dcap.scl.model.PackedLine}, without decoding it to a
+     * String.
+     */
+    public void add(long hi, long lo, String tail) throws IOException {
+        int hash = 0;
+        if (shards.length > 1) {
+            hash = hash(lo, hash(hi, 0));
+            if (tail != null) {
+                for (int i = 0; i < tail.length(); i++) {
+                    hash = 31 * hash + tail.charAt(i);
+                }
+            }
+        }
+        int length = 2 * Long.BYTES + (tail == null ? 0 : tail.length()) + LINE_SEPARATOR.length;
+        Batch batch = batchFor(hash, length);
+        int size = put(lo, batch.bytes, put(hi, batch.bytes, batch.size));
+        if (tail != null) {
+            for (int i = 0; i < tail.length(); i++) {
+                batch.bytes[size++] = (byte) tail.charAt(i);
+            }
+        }
+        endLine(batch, size);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * String.hashCode continued over the non-zero bytes of a packed word.
+     */
+    private static int hash(long w, int hash) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            int c = (int) (w >>> shift) & 0xff;
+            if (c == 0) {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    private static int put(long w, byte[] b, int at) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            byte c = (byte) (w >>> shift);
+            if (c == 0) {
+                break;
+            }
+            b[at++] = c;
+        }
+        return at;
+    }
+
+    private void endLine(Batch batch, int size) {
+        System.arraycopy(LINE_SEPARATOR, 0, batch.bytes, size, LINE_SEPARATOR.length);
+        batch.size = size + LINE_SEPARATOR.length;
+        count++;
+    }
+
+    /**
+     * The batch of the accession's shard, handed over first if it has no room for length more bytes.
+     */
+    private Batch batchFor(int hash, int length) throws IOException {
+        int shard = shards.length == 1 ? 0 : Math.floorMod(hash, shards.length);
+        Batch batch = batches[shard];
+        if (batch.size + length > BATCH_BYTES) {
+            if (length > BATCH_BYTES) {
+                throw new IllegalArgumentException("Accession of " + length + " bytes");
+            }
+            batch = handOver(shard);
+        }
+        return batch;
+    }
+
+    private Batch handOver(int shard) throws IOException {
+        check();
+        try {
+            full.put(batches[shard]);
+            Batch batch = free.take();
+            batch.size = 0;
+            batch.shard = shard;
+            batches[shard] = batch;
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * After a failure batches are still taken and recycled, only not written, so the diff never blocks.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                Batch batch = full.take();
+                if (batch == END) {
+                    break;
+                }
+                if (failure == null) {
+                    try {
+                        shards[batch.shard].write(batch.bytes, batch.size);
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
+                }
+                free.put(batch);
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } finally {
+            for (Shard shard : shards) {
+                try {
+                    shard.close(failure == null);
+                } catch (Throwable e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    private void check() throws IOException {
+        Throwable e = failure;
+        if (e != null) {
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Batch batch : batches) {
+                if (batch.size > 0) {
+                    full.put(batch);
+                }
+            }
+            full.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        check();
+    }
+
+    private static final class Shard {
+        final FileChannel channel;
+        final ByteBuffer buffer;
+        final OutputStream compressed;
+
+        Shard(File file, Codec codec) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            if (codec == Codec.NONE) {
+                buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_BYTES);
+                compressed = null;
+            } else {
+                buffer = null;
+                try {
+                    compressed = codec.compress(new BufferedOutputStream(Channels.newOutputStream(channel),
+                            CHANNEL_BUFFER_BYTES));
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+        }
+
+        void write(byte[] bytes, int size) throws IOException {
+            if (compressed != null) {
+                compressed.write(bytes, 0, size);
+                return;
+            }
+            int off = 0;
+            while (off < size) {
+                int n = Math.min(size - off, buffer.remaining());
+                buffer.put(bytes, off, n);
+                off += n;
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            // through Buffer, whose flip and clear a Java 8 runtime has
+            ((Buffer) buffer).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            ((Buffer) buffer).clear();
+        }
+
+        /**
+         * @param complete whether to write out what is buffered, which is dropped after a failure
+         */
+        void close(boolean complete) throws IOException {
+            try {
+                if (compressed != null) {
+                    if (complete) {
+                        compressed.close();
+                    }
+                } else if (complete) {
+                    flush();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
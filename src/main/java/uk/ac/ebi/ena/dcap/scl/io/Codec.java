@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.io;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import lombok.Getter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of snapshot, change list and sort run files. Concatenated gzip members and zstd frames read back as
+ * one stream, so files written in appended or concatenated pieces stay valid.
+ */
+public enum Codec {
+    NONE(""),
+    GZIP(".gz"),
+    ZSTD(".zst");
+
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    @Getter
+    private final String extension;
+
+    Codec(String extension) {
+        this.extension = extension;
+    }
+
+    public static Codec of(String name) {
+        return name == null || name.isEmpty() ? NONE : valueOf(name.toUpperCase());
+    }
+
+    /**
+     * The codec a file name asks for by its extension.
+     */
+    public static Codec forName(File file) {
+        for (Codec codec : values()) {
+            if (codec != NONE && file.getName().endsWith(codec.extension)) {
+                return codec;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * The codec of an existing file, from its magic bytes.
+     */
+    public static Codec detect(File file) throws IOException {
+        byte[] magic = new byte[4];
+        int n;
+        try (InputStream in = new FileInputStream(file)) {
+            n = in.read(magic);
+        }
+        if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return GZIP;
+        }
+        if (n == 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f &&
+                (magic[3] & 0xff) == 0xfd) {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    public File name(File file) {
+        return new File(file.getPath() + extension);
+    }
+
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_BYTES);
+            case ZSTD:
+                return new ZstdInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    public OutputStream compress(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_BYTES);
+            case ZSTD:
+                return new ZstdOutputStream(out);
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Opens a file of any codec, detected from its content.
+     */
+    public static InputStream open(File file) throws IOException {
+        Codec codec = detect(file);
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES);
+        try {
+            return codec.decompress(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a file compressed with this codec. Compression runs on a thread of its own, so the caller only pays
+     * for copying bytes into buffers.
+     */
+    public OutputStream create(File file, boolean append) throws IOException {
+        OutputStream out = new FileOutputStream(file, append);
+        if (this == NONE) {
+            return out;
+        }
+        try {
+            return new AsyncOutputStream(compress(new BufferedOutputStream(out, BUFFER_BYTES)),
+                    "compress-" + file.getName());
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    public BufferedWriter writer(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(create(file, false), StandardCharsets.UTF_8));
+    }
+}
@@ -9,7 +9,14 @@ import java.io.File;
 @AllArgsConstructor
 public class DiffFiles {
 
+    /**
+     * When the lists are sharded, the files ChangeListWriter.files names after these.
+     */
     private File newOrChangedList;
     private File deletedList;
+    /**
+     * null unless changed columns were reported.
+     */
+    private File changedColumnsList;
 
 }
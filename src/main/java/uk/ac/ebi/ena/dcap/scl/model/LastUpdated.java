@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Fixed-width yyyy-MM-dd parser producing epoch days, so dates can be compared as ints instead of
+ * going through SimpleDateFormat and java.util.Date for every row.
+ */
+public final class LastUpdated {
+
+    public static final int NO_DATE = Integer.MIN_VALUE;
+    public static final int WIDTH = 10;
+
+    private LastUpdated() {
+    }
+
+    public static int parse(CharSequence s, int from, int to) {
+        if (to - from != WIDTH || s.charAt(from + 4) != '-' || s.charAt(from + 7) != '-') {
+            throw new IllegalArgumentException("Invalid last_updated:" + s.subSequence(from, to));
+        }
+        int year = digits(s, from, 4);
+        int month = digits(s, from + 5, 2);
+        int day = digits(s, from + 8, 2);
+        return toEpochDay(year, month, day);
+    }
+
+    public static int parse(ByteBuffer b, int from, int to) {
+        if (to - from != WIDTH || b.get(from + 4) != '-' || b.get(from + 7) != '-') {
+            throw new IllegalArgumentException("Invalid last_updated:" + ascii(b, from, to));
+        }
+        int year = digits(b, from, 4);
+        int month = digits(b, from + 5, 2);
+        int day = digits(b, from + 8, 2);
+        return toEpochDay(year, month, day);
+    }
+
+    private static int digits(CharSequence s, int from, int len) {
+        int v = 0;
+        for (int i = from; i < from + len; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalArgumentException("Invalid last_updated:" + s);
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static int digits(ByteBuffer b, int from, int len) {
+        int v = 0;
+        for (int i = from; i < from + len; i++) {
+            int d = b.get(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new IllegalArgumentException("Invalid last_updated:" + ascii(b, from, from + len));
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static String ascii(ByteBuffer b, int from, int to) {
+        byte[] bytes = new byte[Math.max(0, to - from)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = b.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    static int toEpochDay(int year, int month, int day) {
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            throw new IllegalArgumentException("Invalid last_updated:" + year + "-" + month + "-" + day);
+        }
+        // days-from-civil, proleptic Gregorian, same as java.time.LocalDate#toEpochDay
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    public static String format(int epochDay) {
+        if (epochDay == NO_DATE) {
+            return "";
+        }
+        return LocalDate.ofEpochDay(epochDay).toString();
+    }
+}
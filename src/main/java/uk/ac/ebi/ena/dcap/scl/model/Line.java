@@ -31,19 +31,29 @@ import java.util.Date;
 @Slf4j
 public class Line {
 
-    public static Line POISON = new Line(null, null);
+    public static Line POISON = new Line(null, null, null);
 
     private String acc;
     private Date lastUpdated;
+    /**
+     * Everything after the accession, so that a change to any other column makes lines unequal.
+     */
+    private String columns;
 
+    /**
+     * last_updated is the last of the fields a snapshot is fetched with, so the date is read from the last column
+     * of rows with more than one.
+     */
     @SneakyThrows
     public static Line of(String s, DateFormat df) {
         try {
             final String[] split = StringUtils.split(s);
-            if (split.length == 2) {
-                return new Line(split[0], df.parse(split[1]));
+            int tab = s.indexOf('\t');
+            String columns = tab < 0 ? null : s.substring(tab + 1);
+            if (split.length >= 2) {
+                return new Line(split[0], df.parse(split[split.length - 1]), columns);
             } else {
-                return new Line(split[0], null);
+                return new Line(split[0], null, columns);
             }
         } catch (Exception e) {
             log.error("Error in line:{}", s, e);
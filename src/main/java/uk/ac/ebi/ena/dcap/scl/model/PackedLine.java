@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Primitive form of a snapshot row. The first 16 ASCII bytes of the accession are packed big-endian into two longs,
+ * zero padded, so comparing (hi, lo) gives the same order as String.compareTo. The rare accession longer than 16
+ * bytes keeps its remainder in tail. last_updated is held as an epoch day.
+ */
+@Getter
+@AllArgsConstructor
+@Slf4j
+public class PackedLine {
+
+    public static final int WORD_BYTES = 8;
+    public static final int PACKED_BYTES = 2 * WORD_BYTES;
+
+    private final long hi;
+    private final long lo;
+    private final String tail;
+    private final int lastUpdated;
+
+    public static PackedLine of(String s) {
+        try {
+            int end = lineEnd(s);
+            int accEnd = accessionEnd(s, end);
+            return new PackedLine(word(s, 0, accEnd), word(s, WORD_BYTES, accEnd), tail(s, accEnd),
+                    lastUpdated(s, accEnd, end));
+        } catch (RuntimeException e) {
+            log.error("Error in line:{}", s, e);
+            throw e;
+        }
+    }
+
+    static int lineEnd(String s) {
+        int end = s.length();
+        return end > 0 && s.charAt(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    static int accessionEnd(String s, int end) {
+        int tab = s.indexOf('\t');
+        return tab < 0 || tab > end ? end : tab;
+    }
+
+    /**
+     * Like {@link Line#of}, the date is read from the last column.
+     */
+    static int lastUpdated(String s, int accEnd, int end) {
+        int from = s.lastIndexOf('\t', end - 1) + 1;
+        if (from > accEnd && from < end) {
+            return LastUpdated.parse(s, from, end);
+        }
+        return LastUpdated.NO_DATE;
+    }
+
+    public static long word(CharSequence s, int from, int end) {
+        long w = 0;
+        for (int i = from; i < from + WORD_BYTES; i++) {
+            int c = 0;
+            if (i < end) {
+                c = s.charAt(i);
+                if (c == 0 || c > 0x7f) {
+                    throw new IllegalArgumentException("Non-ASCII accession:" + s.subSequence(0, end));
+                }
+            }
+            w = (w << 8) | c;
+        }
+        return w;
+    }
+
+    public static long word(ByteBuffer b, int from, int end) {
+        long w = 0;
+        for (int i = from; i < from + WORD_BYTES; i++) {
+            int c = 0;
+            if (i < end) {
+                c = b.get(i);
+                if (c <= 0) {
+                    throw new IllegalArgumentException("Non-ASCII accession at byte " + i);
+                }
+            }
+            w = (w << 8) | c;
+        }
+        return w;
+    }
+
+    static String tail(String s, int accEnd) {
+        return accEnd > PACKED_BYTES ? s.substring(PACKED_BYTES, accEnd) : null;
+    }
+
+    public static int compare(long hiA, long loA, String tailA, long hiB, long loB, String tailB) {
+        int c = Long.compare(hiA, hiB);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compare(loA, loB);
+        if (c != 0) {
+            return c;
+        }
+        if (tailA == null) {
+            return tailB == null ? 0 : -1;
+        }
+        return tailB == null ? 1 : tailA.compareTo(tailB);
+    }
+
+    public static int compare(PackedLine a, PackedLine b) {
+        return compare(a.hi, a.lo, a.tail, b.hi, b.lo, b.tail);
+    }
+
+    public static String decode(long hi, long lo, String tail) {
+        byte[] b = new byte[PACKED_BYTES];
+        int len = put(hi, b, 0);
+        if (len == WORD_BYTES) {
+            len += put(lo, b, WORD_BYTES);
+        }
+        String acc = new String(b, 0, len, StandardCharsets.US_ASCII);
+        return tail == null ? acc : acc + tail;
+    }
+
+    private static int put(long w, byte[] b, int off) {
+        int len = 0;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            byte c = (byte) (w >>> shift);
+            if (c == 0) {
+                break;
+            }
+            b[off + len++] = c;
+        }
+        return len;
+    }
+
+    public String getAcc() {
+        return decode(hi, lo, tail);
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.model;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Column-wise batch of packed snapshot rows. Blocks are filled by a reader thread and recycled once the merge has
+ * consumed them, so steady-state reading allocates nothing per row.
+ * <p>
+ * The columns after the accession are not parsed. A row keeps a 64-bit fingerprint of all of them, so rows with
+ * any number of columns are compared with one long, and columnHashes, which holds {@link #SLICE_BITS} bits of the
+ * hash of each column to tell which of them changed. The first {@code COLUMN_SLICES - 1} columns have a slice each
+ * and any further ones share the last.
+ */
+@Getter
+public class RecordBlock {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    public static final int COLUMN_SLICES = 4;
+    public static final int SLICE_BITS = 64 / COLUMN_SLICES;
+    public static final long SLICE_MASK = (1L << SLICE_BITS) - 1;
+    /**
+     * Fingerprint of a row that has only an accession.
+     */
+    public static final long NO_COLUMNS = 0;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long[] hi;
+    private final long[] lo;
+    private final String[] tail;
+    private final long[] fingerprint;
+    private final long[] columnHashes;
+    private int size;
+
+    public RecordBlock(int capacity) {
+        hi = new long[capacity];
+        lo = new long[capacity];
+        tail = new String[capacity];
+        fingerprint = new long[capacity];
+        columnHashes = new long[capacity];
+    }
+
+    /**
+     * @param from the tab ending the accession in b, or end for a row with only an accession
+     * @param end  end of the row, excluding any line terminator
+     */
+    public void add(long h, long l, String t, ByteBuffer b, int from, int end) {
+        hi[size] = h;
+        lo[size] = l;
+        tail[size] = t;
+        long print = NO_COLUMNS;
+        long columns = 0;
+        if (from < end) {
+            print = FNV_OFFSET;
+            int column = 0;
+            long hash = FNV_OFFSET;
+            for (int i = from + 1; i <= end; i++) {
+                byte c = i < end ? b.get(i) : (byte) '\t';
+                if (c == '\t') {
+                    long m = fmix(hash);
+                    print = fmix(print ^ m);
+                    columns ^= (m & SLICE_MASK) << (SLICE_BITS * Math.min(column, COLUMN_SLICES - 1));
+                    column++;
+                    hash = FNV_OFFSET;
+                } else {
+                    hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                }
+            }
+        }
+        fingerprint[size] = print;
+        columnHashes[size] = columns;
+        size++;
+    }
+
+    /**
+     * The fingerprint a snapshot row gets.
+     */
+    public static long fingerprint(String row) {
+        RecordBlock block = new RecordBlock(1);
+        ByteBuffer b = ByteBuffer.wrap(row.getBytes(StandardCharsets.US_ASCII));
+        block.addRow(b, 0, b.limit());
+        return block.fingerprint[0];
+    }
+
+    static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Parses the row at [start, end) of the buffer, end excluding the newline. Only an accession longer than
+     * {@link PackedLine#PACKED_BYTES} creates an object.
+     */
+    public void addRow(ByteBuffer b, int start, int end) {
+        if (end > start && b.get(end - 1) == '\r') {
+            end--;
+        }
+        int tab = indexOf(b, (byte) '\t', start, end);
+        int accEnd = tab < 0 ? end : tab;
+        String t = null;
+        if (accEnd - start > PackedLine.PACKED_BYTES) {
+            byte[] bytes = new byte[accEnd - start - PackedLine.PACKED_BYTES];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = b.get(start + PackedLine.PACKED_BYTES + i);
+            }
+            t = new String(bytes, StandardCharsets.US_ASCII);
+        }
+        add(PackedLine.word(b, start, accEnd), PackedLine.word(b, start + PackedLine.WORD_BYTES, accEnd), t, b, accEnd,
+                end);
+    }
+
+    public static int indexOf(ByteBuffer b, byte c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isFull() {
+        return size == hi.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            tail[i] = null;
+        }
+        size = 0;
+    }
+
+    public String getAcc(int i) {
+        return PackedLine.decode(hi[i], lo[i], tail[i]);
+    }
+}
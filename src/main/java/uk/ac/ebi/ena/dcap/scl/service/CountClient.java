@@ -10,20 +10,36 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class CountClient {
-    static final String PORTAL_API_COUNT_URL = "https://www.ebi.ac.uk/ena/portal/api/count?result=%s&format=json";
 
-    @SneakyThrows
+    /**
+     * From the count endpoint of the configured Portal API, see {@link SnapshotClient#setPortalApiBase}.
+     */
     public static long getCountFromResults(String result, String query) {
+        return getCountFromResults(SnapshotClient.portalApiBase + PartitionedFetcher.COUNT_PATH, result, query);
+    }
+
+    /**
+     * @param countUrl count endpoint with a %s placeholder for the result
+     */
+    @SneakyThrows
+    public static long getCountFromResults(String countUrl, String result, String query) {
         // Your JSON array as a string
 
         // Create ObjectMapper
         ObjectMapper objectMapper = new ObjectMapper();
 
         // Parse JSON array
-        JsonNode objNode = objectMapper.readTree(getJson(PORTAL_API_COUNT_URL, result, query));
+        long start = System.nanoTime();
+        JsonNode objNode;
+        try {
+            objNode = objectMapper.readTree(getJson(countUrl, result, query));
+        } finally {
+            RunMetrics.of(result).countRequests().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
 
         // Iterate through objects in the array
         long codingValue = objNode.get("count").asLong();
@@ -33,7 +49,7 @@ public class CountClient {
     @SneakyThrows
     private static String getJson(String portalApiResultsUrl, String result, String query) {
 
-        String urlStr = String.format(PORTAL_API_COUNT_URL, result);
+        String urlStr = String.format(portalApiResultsUrl, result);
         if (StringUtils.isNotBlank(query)) {
             urlStr += "&query=" + query;
         }
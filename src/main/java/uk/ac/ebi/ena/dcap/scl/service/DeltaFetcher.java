@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BlockManifest;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+import uk.ac.ebi.ena.dcap.scl.sort.RowSink;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static uk.ac.ebi.ena.dcap.scl.service.PartitionedFetcher.*;
+
+/**
+ * Builds the new snapshot by patching the previous one instead of downloading it whole. Records updated since the
+ * previous snapshot's latest last_updated are fetched with all fields, the accessions of all records are fetched
+ * on their own to find the deleted ones, and both are merged into the previous snapshot in one streaming pass.
+ * When the delta is too large a share of the records, or the previous snapshot cannot be patched, the caller is
+ * told to fetch the full snapshot instead.
+ */
+@Slf4j
+public class DeltaFetcher {
+
+    private final String portalApiBase;
+    private final double maxFraction;
+
+    /**
+     * @param maxFraction largest share of all records the delta may be for it to be fetched
+     */
+    public DeltaFetcher(String portalApiBase, double maxFraction) {
+        this.portalApiBase = portalApiBase;
+        this.maxFraction = maxFraction;
+    }
+
+    /**
+     * @return the new snapshot, or null if the full snapshot should be fetched instead
+     */
+    public File fetch(DataType dataType, File previousSnapshot, File outputFile, String query,
+                      boolean includeParentAccession) throws Exception {
+        if (!previousSnapshot.isFile() || previousSnapshot.length() == 0 ||
+                BinarySnapshot.isBinary(previousSnapshot)) {
+            log.info("no previous TSV snapshot to patch:{}", previousSnapshot.getAbsolutePath());
+            return null;
+        }
+        String result = dataType.name().toLowerCase();
+        String fields = SnapshotClient.getFields(dataType.name(), includeParentAccession);
+        String header = fields.replace(',', '\t');
+        String since = latestUpdate(previousSnapshot, header);
+        if (since == null) {
+            log.info("previous snapshot has other columns than {} or no dates", header);
+            return null;
+        }
+        String deltaQuery = combine(query, "last_updated>=" + since);
+        long total = CountClient.getCountFromResults(portalApiBase + COUNT_PATH, result, encode(query));
+        long delta = CountClient.getCountFromResults(portalApiBase + COUNT_PATH, result, encode(deltaQuery));
+        if (delta > maxFraction * total) {
+            log.info("{} of {} records updated since {}, fetching the full snapshot", delta, total, since);
+            return null;
+        }
+        log.info("patching {} with {} of {} records updated since {}", previousSnapshot.getName(), delta, total,
+                since);
+        File tempDir = outputFile.getAbsoluteFile().getParentFile();
+        File updated = new File(tempDir, outputFile.getName() + ".delta.tmp");
+        File accessions = new File(tempDir, outputFile.getName() + ".accessions.tmp");
+        RunMetrics metrics = RunMetrics.of(result);
+        long start = System.nanoTime();
+        try (CloseableHttpClient client = HttpClients.createDefault()) {
+            long fetched = fetchSorted(client, search(result, fields, deltaQuery), updated, tempDir, metrics);
+            metrics.fetched(fetched, delta, System.nanoTime() - start);
+            if (fetched < delta) {
+                throw new Exception("Fetched delta count " + fetched + " is lower than index count " + delta);
+            }
+            long listed = fetchSorted(client, search(result, SnapshotClient.ACCESSION, query), accessions, tempDir,
+                    metrics);
+            if (listed < total) {
+                throw new Exception("Fetched accession count " + listed + " is lower than index count " + total);
+            }
+            long missing = patch(previousSnapshot, updated, accessions, outputFile);
+            if (missing > 0) {
+                // records with an older last_updated that the previous snapshot does not have
+                log.info("{} records are neither in the previous snapshot nor updated since {}, fetching the full " +
+                        "snapshot", missing, since);
+                Files.deleteIfExists(outputFile.toPath());
+                Files.deleteIfExists(BinarySnapshot.sidecarFor(outputFile).toPath());
+                Files.deleteIfExists(BlockManifest.fileFor(outputFile).toPath());
+                return null;
+            }
+            return outputFile;
+        } finally {
+            Files.deleteIfExists(updated.toPath());
+            Files.deleteIfExists(accessions.toPath());
+        }
+    }
+
+    private String search(String result, String fields, String query) throws IOException {
+        String url = String.format(portalApiBase + SEARCH_PATH, result, fields);
+        if (StringUtils.isNotBlank(query)) {
+            url += "&query=" + encode(query);
+        }
+        return url;
+    }
+
+    /**
+     * Streams the search response through the sorter into out.
+     *
+     * @return records fetched
+     */
+    private static long fetchSorted(CloseableHttpClient client, String url, File out, File tempDir,
+                                    RunMetrics metrics) throws IOException {
+        log.info("calling:{}", url);
+        long start = System.nanoTime();
+        ExternalSorter sorter = SnapshotClient.sorter(SnapshotClient.sortMemoryBytes(), SnapshotClient.sortThreads(),
+                tempDir);
+        ExternalSorter.Runs runs;
+        try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != 200 || entity == null) {
+                throw new IOException(url + ": " + response.getStatusLine());
+            }
+            try (InputStream in = metrics.download(entity.getContent())) {
+                runs = sorter.createRuns(in);
+            }
+        }
+        metrics.downloaded(sorter.getStats().getRows(), System.nanoTime() - start, sorter.getStats());
+        sorter.merge(runs, out);
+        return sorter.getStats().getRows();
+    }
+
+    /**
+     * The latest last_updated of the snapshot, which must have the given header.
+     *
+     * @return null if the header differs or no row has a date
+     */
+    static String latestUpdate(File snapshot, String header) throws IOException {
+        String latest = null;
+        try (BufferedReader reader = reader(snapshot)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(header)) {
+                return null;
+            }
+            while ((line = reader.readLine()) != null) {
+                String date = line.substring(line.lastIndexOf('\t') + 1);
+                if (date.length() == 10 && (latest == null || date.compareTo(latest) > 0)) {
+                    latest = date;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Merges the three sorted files into the new snapshot: an updated row replaces the previous one, and a previous
+     * row is kept only if its accession is still listed.
+     *
+     * @return listed accessions found neither in the previous snapshot nor among the updated rows
+     */
+    static long patch(File previousSnapshot, File updated, File accessions, File outputFile) throws IOException {
+        long kept = 0, replaced = 0, added = 0, deleted = 0, missing = 0;
+        RowSink sink = SnapshotClient.sinks(outputFile);
+        try (BufferedReader prevReader = reader(previousSnapshot);
+             BufferedReader updatedReader = reader(updated);
+             BufferedReader accessionReader = reader(accessions);
+             OutputStream out = new BufferedOutputStream(Codec.forName(outputFile).create(outputFile, false),
+                     1 << 20)) {
+            String header = prevReader.readLine();
+            write(header, out, sink, true);
+            skipHeader(updatedReader);
+            skipHeader(accessionReader);
+            String p = next(prevReader), u = next(updatedReader), a = next(accessionReader);
+            while (p != null || u != null) {
+                String pAcc = accession(p), uAcc = accession(u);
+                String acc = uAcc == null || pAcc != null && pAcc.compareTo(uAcc) < 0 ? pAcc : uAcc;
+                while (a != null && a.compareTo(acc) < 0) {
+                    missing++;
+                    a = next(accessionReader);
+                }
+                boolean listed = acc.equals(a);
+                if (listed) {
+                    a = next(accessionReader);
+                }
+                if (acc.equals(uAcc)) {
+                    write(u, out, sink, false);
+                    u = next(updatedReader);
+                    if (acc.equals(pAcc)) {
+                        replaced++;
+                        p = next(prevReader);
+                    } else {
+                        added++;
+                    }
+                } else {
+                    if (listed) {
+                        write(p, out, sink, false);
+                        kept++;
+                    } else {
+                        deleted++;
+                    }
+                    p = next(prevReader);
+                }
+            }
+            while (a != null) {
+                missing++;
+                a = next(accessionReader);
+            }
+        }
+        // closed after the snapshot, so that its sidecars are not older than it
+        if (sink != null) {
+            sink.close();
+        }
+        log.info("patched snapshot: {} kept, {} updated, {} added, {} deleted", kept, replaced, added, deleted);
+        return missing;
+    }
+
+    private static BufferedReader reader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(Codec.open(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static void skipHeader(BufferedReader reader) throws IOException {
+        reader.mark(1 << 12);
+        String line = reader.readLine();
+        if (line != null && !line.startsWith(SnapshotClient.ACCESSION)) {
+            reader.reset();
+        }
+    }
+
+    private static String next(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private static String accession(String row) {
+        if (row == null) {
+            return null;
+        }
+        int tab = row.indexOf('\t');
+        return tab < 0 ? row : row.substring(0, tab);
+    }
+
+    private static void write(String row, OutputStream out, RowSink sink, boolean header) throws IOException {
+        byte[] bytes = row.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        out.write(ExternalSorter.RECORD_SEPARATOR);
+        if (sink != null) {
+            if (header) {
+                sink.header(bytes);
+            } else {
+                sink.row(bytes, bytes.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.sort.RunCheckpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Progress of a snapshot download, kept next to the snapshot so that a rerun for the same output location and
+ * date picks up the sorted runs already on disk: the committed offset of a single download, or the partitions of
+ * a partitioned fetch that are complete.
+ */
+@Data
+@NoArgsConstructor
+@Slf4j
+public class FetchCheckpoint {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * The request this is a checkpoint of; a checkpoint for any other request is ignored.
+     */
+    private String request;
+    /**
+     * The strong ETag, or else the Last-Modified date, of the response the stream checkpoint was taken from, sent as
+     * If-Range when resuming so that a changed response comes back whole.
+     */
+    private String validator;
+    private RunCheckpoint stream;
+    private Map<String, RunCheckpoint> partitions = new TreeMap<>();
+
+    public FetchCheckpoint(String request) {
+        this.request = request;
+    }
+
+    public static File fileFor(File snapshot) {
+        return new File(snapshot.getPath() + ".checkpoint");
+    }
+
+    /**
+     * @return the checkpoint of request saved in file, or a new one if there is none or it cannot be used
+     */
+    static FetchCheckpoint load(File file, String request) {
+        // runs can only be resumed with the compression they were written with
+        request += "#runs=" + SnapshotClient.sortCodec;
+        if (file.isFile()) {
+            try {
+                FetchCheckpoint checkpoint = MAPPER.readValue(file, FetchCheckpoint.class);
+                if (request.equals(checkpoint.request) && checkpoint.canRestore()) {
+                    log.info("resuming from checkpoint:{}", file.getAbsolutePath());
+                    return checkpoint;
+                }
+                log.info("ignoring checkpoint:{} of another request or with missing runs", file.getAbsolutePath());
+                checkpoint.deleteRuns();
+            } catch (IOException e) {
+                log.warn("ignoring unreadable checkpoint:{}", file.getAbsolutePath(), e);
+            }
+        }
+        return new FetchCheckpoint(request);
+    }
+
+    private void deleteRuns() throws IOException {
+        if (stream != null) {
+            stream.deleteRuns();
+        }
+        for (RunCheckpoint partition : partitions.values()) {
+            partition.deleteRuns();
+        }
+    }
+
+    private boolean canRestore() {
+        if (stream != null && !stream.canRestore()) {
+            return false;
+        }
+        return partitions.values().stream().allMatch(RunCheckpoint::canRestore);
+    }
+
+    /**
+     * Written to a temporary file first, so that a crash never leaves a half written checkpoint.
+     */
+    synchronized void save(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            MAPPER.writeValue(tmp, this);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches the flatfiles of the accessions in change lists from the browser API, as batches of comma separated
+ * accessions, with a bounded number of requests in flight over reused connections. A batch that fails, or is
+ * answered with 429 or a server error, is retried after a backoff that doubles with every attempt.
+ * <p>
+ * Each batch is written as a compressed member of one of the output shards, [name]_flatfiles_[i].embl.gz, which
+ * read back as one stream. Batches are recorded in a {@link FlatfileLedger} as they are written, so a fetch that
+ * fails part way can be rerun and only fetches the batches that are missing. The ledger is removed once every batch
+ * is written.
+ */
+@Slf4j
+public class FlatfileFetcher {
+
+    public static final String EXTENSION = ".embl";
+    public static final long DEFAULT_BACKOFF_MILLIS = 1000;
+    private static final byte[] ENTRY_END = "\n//".getBytes(StandardCharsets.US_ASCII);
+
+    private final String browserApiBase;
+    private final int batchSize;
+    private final int threads;
+    private final int retries;
+    private final long backoffMillis;
+    private final Codec codec;
+
+    /**
+     * @param browserApiBase URL the comma separated accessions are appended to, e.g.
+     *                       https://www.ebi.ac.uk/ena/browser/api/embl/
+     * @param threads        number of requests in flight, and of output shards
+     * @param codec          compression of the shards, gzip if none is given
+     */
+    public FlatfileFetcher(String browserApiBase, int batchSize, int threads, int retries, long backoffMillis,
+                           Codec codec) {
+        this.browserApiBase = browserApiBase;
+        this.batchSize = batchSize;
+        this.threads = threads;
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+        this.codec = codec == Codec.NONE ? Codec.GZIP : codec;
+    }
+
+    private static final class Shard {
+        final int index;
+        final FileChannel channel;
+
+        Shard(int index, FileChannel channel) {
+            this.index = index;
+            this.channel = channel;
+        }
+    }
+
+    public List<File> shards(File outputLocation, String name) {
+        List<File> shards = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            shards.add(new File(outputLocation, name + "_flatfiles_" + i + EXTENSION + codec.getExtension()));
+        }
+        return shards;
+    }
+
+    public static File ledgerFile(File outputLocation, String name) {
+        return new File(outputLocation, name + "_flatfiles.ledger");
+    }
+
+    /**
+     * Fetches the flatfiles of every accession listed in lists, in batches numbered in list order.
+     *
+     * @return the output shards
+     */
+    public List<File> fetch(List<File> lists, File outputLocation, String name) throws Exception {
+        List<File> files = shards(outputLocation, name);
+        File ledgerFile = ledgerFile(outputLocation, name);
+        StringBuilder request = new StringBuilder(browserApiBase).append("#batch=").append(batchSize)
+                .append("#codec=").append(codec).append("#shards=").append(threads);
+        for (File list : lists) {
+            request.append("#").append(list.getName()).append("=").append(list.length());
+        }
+        BlockingQueue<Shard> free = new ArrayBlockingQueue<>(threads);
+        List<FileChannel> channels = new ArrayList<>();
+        AtomicLong entries = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long batches = 0, accessions = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // one batch waiting per thread, so that the lists are streamed rather than read up front
+        Semaphore inFlight = new Semaphore(2 * threads);
+        try (FlatfileLedger ledger = FlatfileLedger.open(ledgerFile, request.toString());
+             CloseableHttpClient client = HttpClients.custom().setMaxConnPerRoute(threads)
+                     .setMaxConnTotal(threads).build()) {
+            for (int i = 0; i < threads; i++) {
+                FileChannel channel = FileChannel.open(files.get(i).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                channels.add(channel);
+                // drops whatever a failed run wrote after its last recorded batch
+                channel.truncate(ledger.length(i));
+                channel.position(ledger.length(i));
+                free.add(new Shard(i, channel));
+            }
+            if (ledger.getDoneCount() > 0) {
+                log.info("{} flatfile batches already fetched", ledger.getDoneCount());
+            }
+            List<String> batch = new ArrayList<>(batchSize);
+            for (File list : lists) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(Codec.open(list),
+                        StandardCharsets.UTF_8))) {
+                    String acc;
+                    while ((acc = reader.readLine()) != null) {
+                        if (acc.isEmpty()) {
+                            continue;
+                        }
+                        accessions++;
+                        batch.add(acc);
+                        if (batch.size() == batchSize) {
+                            submit(batches++, batch, pool, inFlight, client, free, ledger, entries, failed);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                submit(batches++, batch, pool, inFlight, client, free, ledger, entries, failed);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } finally {
+            pool.shutdownNow();
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+        if (failed.get() > 0) {
+            throw new Exception(failed.get() + " of " + batches + " flatfile batches failed, rerun to fetch them " +
+                    "from ledger:" + ledgerFile.getAbsolutePath());
+        }
+        Files.deleteIfExists(ledgerFile.toPath());
+        log.info("fetched {} flatfile entries of {} accessions in {} batches to:{}", entries.get(), accessions,
+                batches, files);
+        return files;
+    }
+
+    private void submit(long index, List<String> batch, ExecutorService pool, Semaphore inFlight,
+                        CloseableHttpClient client, BlockingQueue<Shard> free, FlatfileLedger ledger,
+                        AtomicLong entries, AtomicLong failed) throws InterruptedException {
+        if (ledger.isDone(index)) {
+            return;
+        }
+        inFlight.acquire();
+        pool.submit(() -> {
+            try {
+                byte[] flatfiles = get(client, batch);
+                entries.addAndGet(count(flatfiles));
+                byte[] member = compress(flatfiles);
+                Shard shard = free.take();
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(member);
+                    while (buffer.hasRemaining()) {
+                        shard.channel.write(buffer);
+                    }
+                    ledger.done(index, shard.index, shard.channel.position());
+                } finally {
+                    free.put(shard);
+                }
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                log.error("flatfile batch " + index + " from " + batch.get(0) + " failed:", e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * @return the flatfiles of those accessions in the batch that are public, none if the API finds none of them
+     */
+    byte[] get(CloseableHttpClient client, List<String> batch) throws Exception {
+        String url = browserApiBase + String.join(",", batch);
+        for (int attempt = 0; ; attempt++) {
+            String failure;
+            boolean retry;
+            try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                // read to the end so that the connection is reused
+                byte[] body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+                if (status == 200) {
+                    return body;
+                }
+                if (status == 404) {
+                    log.warn("none of the {} accessions from {} found", batch.size(), batch.get(0));
+                    return new byte[0];
+                }
+                failure = response.getStatusLine().toString();
+                retry = status == 429 || status >= 500;
+            } catch (IOException e) {
+                failure = e.toString();
+                retry = true;
+            }
+            if (!retry || attempt >= retries) {
+                throw new IOException(failure + (retry ? " after " + retries + " retries" : ""));
+            }
+            long backoff = backoffMillis << attempt;
+            log.info("flatfile batch from {} failed:{}, retrying in {}ms", batch.get(0), failure, backoff);
+            Thread.sleep(backoff);
+        }
+    }
+
+    private byte[] compress(byte[] flatfiles) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(flatfiles.length / 4 + 64);
+        try (OutputStream out = codec.compress(bytes)) {
+            out.write(flatfiles);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Number of entries, each ended by a // line.
+     */
+    static long count(byte[] flatfiles) {
+        long count = 0;
+        outer:
+        for (int i = 0; i + ENTRY_END.length <= flatfiles.length; i++) {
+            for (int j = 0; j < ENTRY_END.length; j++) {
+                if (flatfiles[i + j] != ENTRY_END[j]) {
+                    continue outer;
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of the flatfile batches written, so that a rerun of the same fetch skips them. The first line
+ * names the request; every other line is a batch number, the output shard it went to and the length of that shard
+ * once it was written. Lines are only appended after the batch is in its shard, so anything in a shard past its
+ * last recorded length is from a batch that was never recorded, and is cut off on resume.
+ */
+@Slf4j
+class FlatfileLedger implements AutoCloseable {
+
+    private final Set<Long> done = new HashSet<>();
+    private final Map<Integer, Long> lengths = new HashMap<>();
+    private final Writer writer;
+
+    private FlatfileLedger(File file, String request, boolean resume) throws IOException {
+        if (resume) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                reader.readLine();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] cols = line.split("\t");
+                    // a line cut short by a crash is not a record
+                    if (cols.length == 3) {
+                        done.add(Long.parseLong(cols[0]));
+                        lengths.merge(Integer.parseInt(cols[1]), Long.parseLong(cols[2]), Math::max);
+                    }
+                }
+            }
+        }
+        writer = new OutputStreamWriter(new FileOutputStream(file, resume), StandardCharsets.UTF_8);
+        if (!resume) {
+            writer.write(request + "\n");
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return the ledger of request kept in file, or a new one if there is none or it is of another request
+     */
+    static FlatfileLedger open(File file, String request) throws IOException {
+        boolean resume = false;
+        if (file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                resume = request.equals(reader.readLine());
+            }
+            log.info(resume ? "resuming from ledger:{}" : "ignoring ledger:{} of another request",
+                    file.getAbsolutePath());
+        }
+        return new FlatfileLedger(file, request, resume);
+    }
+
+    /**
+     * Whether the batch was recorded before this ledger was opened.
+     */
+    boolean isDone(long batch) {
+        return done.contains(batch);
+    }
+
+    int getDoneCount() {
+        return done.size();
+    }
+
+    /**
+     * Length of the shard as last recorded, 0 if nothing was.
+     */
+    long length(int shard) {
+        return lengths.getOrDefault(shard, 0L);
+    }
+
+    synchronized void done(long batch, int shard, long length) throws IOException {
+        writer.write(batch + "\t" + shard + "\t" + length + "\n");
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
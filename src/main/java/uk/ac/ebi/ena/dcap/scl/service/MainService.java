@@ -15,20 +15,45 @@
  ******************************************************************************/
 package uk.ac.ebi.ena.dcap.scl.service;
 
+import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import uk.ac.ebi.ena.dcap.scl.diff.BlockRing;
+import uk.ac.ebi.ena.dcap.scl.diff.ColumnReport;
+import uk.ac.ebi.ena.dcap.scl.diff.HashDiff;
+import uk.ac.ebi.ena.dcap.scl.diff.ManifestDiff;
+import uk.ac.ebi.ena.dcap.scl.diff.MergeDiff;
+import uk.ac.ebi.ena.dcap.scl.diff.PartitionedDiff;
+import uk.ac.ebi.ena.dcap.scl.diff.RecordCursor;
+import uk.ac.ebi.ena.dcap.scl.diff.SnapshotReader;
+import uk.ac.ebi.ena.dcap.scl.history.ChangeHistory;
+import uk.ac.ebi.ena.dcap.scl.io.ChangeListWriter;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
 import uk.ac.ebi.ena.dcap.scl.model.DataType;
 import uk.ac.ebi.ena.dcap.scl.model.DiffFiles;
 import uk.ac.ebi.ena.dcap.scl.model.Line;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BlockManifest;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
 
 import java.io.*;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 import static uk.ac.ebi.ena.dcap.scl.MainRunner.DATE_FORMAT;
 import static uk.ac.ebi.ena.dcap.scl.model.Line.POISON;
@@ -37,30 +62,141 @@ import static uk.ac.ebi.ena.dcap.scl.model.Line.POISON;
 @Slf4j
 public class MainService {
 
-    private static final String BROWSER_API_EMBL = "https://www.ebi.ac.uk/ena/browser/api/%s/";
-    final ExecutorService executorService = Executors.newFixedThreadPool(2);
+    private static final String NEW_OR_UPDATED = "_new-or-updated";
+    final ExecutorService executorService = Executors.newCachedThreadPool();
 
     @Autowired
     SnapshotClient snapshotClient;
 
+    /**
+     * Compare rows as packed accessions and epoch days instead of String/Date based {@link Line}s.
+     */
+    @Setter
+    boolean packedRecords = true;
+
+    /**
+     * Number of accession ranges diffed in parallel. 1 keeps the single merge.
+     */
+    @Setter
+    int diffThreads = 1;
+
+    /**
+     * Diff the new snapshot straight from the sorter's final merge while it is written, instead of reading the
+     * written file back. Applies to the single merge with packed records.
+     */
+    @Setter
+    boolean fusedDiff = true;
+
+    /**
+     * Compression of the new snapshot and the change lists. Previous snapshots are read in whatever format they are.
+     */
+    @Setter
+    Codec compression = Codec.NONE;
+
+    public enum DiffEngine {
+        /**
+         * A hash diff when the table for the expected record count fits in hashDiffMemoryBytes, else a merge.
+         */
+        AUTO,
+        MERGE,
+        HASH
+    }
+
+    @Setter
+    DiffEngine diffEngine = DiffEngine.AUTO;
+
+    /**
+     * Memory a hash diff may take, see {@link HashDiff#tableBytes}.
+     */
+    @Setter
+    long hashDiffMemoryBytes = ExternalSorter.defaultMemoryBudget();
+
+    /**
+     * Also write, for each updated accession, the names of the columns that changed.
+     */
+    @Setter
+    boolean changedColumns = false;
+
+    /**
+     * Number of files each change list is spread over by accession hash, see {@link ChangeListWriter}.
+     */
+    @Setter
+    int outputShards = 1;
+
+    /**
+     * Fetch the flatfiles of the new or updated records once they are listed, see {@link FlatfileFetcher}.
+     */
+    @Setter
+    boolean fetchFlatfiles = false;
+
+    @Setter
+    int flatfileBatchSize = 100;
+
+    /**
+     * Number of flatfile requests in flight, and of files they are written to.
+     */
+    @Setter
+    int flatfileThreads = 4;
+
+    @Setter
+    int flatfileRetries = 3;
+
+    /**
+     * Temporary disk that runs of several data types share, see {@link RunScheduler}. 0 for the usable space of the
+     * output location.
+     */
+    @Setter
+    long tempDiskBytes = 0;
+
+    /**
+     * Write the timers, counters and gauges of each fetch and compare next to its new snapshot, see
+     * {@link RunMetrics}.
+     */
+    @Setter
+    boolean metricsReport = true;
+
+    /**
+     * Append each run's change lists to [data type]_history in the output location, see {@link ChangeHistory}.
+     */
+    @Setter
+    boolean changeHistory = false;
+
+    /**
+     * Those of the run in progress.
+     */
+    RunMetrics metrics = RunMetrics.none();
+
+    /**
+     * Column names for that report: the fields the snapshot is fetched with, else those of its header.
+     */
+    List<String> fields;
 
     public static File writeLatestSnapshot(DataType dataType, File outputLocation, String fileName, String query,
                                            boolean includeParentAccession) {
+        return writeLatestSnapshot(dataType, outputLocation, fileName, query, includeParentAccession, Codec.NONE);
+    }
+
+    public static File writeLatestSnapshot(DataType dataType, File outputLocation, String fileName, String query,
+                                           boolean includeParentAccession, Codec codec) {
+        return SnapshotClient.getLatestSnapshot(dataType, snapshotFile(outputLocation, fileName, codec), query,
+                includeParentAccession);
+    }
 
-        File outFile = new File(outputLocation.getAbsolutePath() + File.separator + fileName + ".tsv");
+    private static File snapshotFile(File outputLocation, String fileName, Codec codec) {
+        File outFile = codec.name(new File(outputLocation.getAbsolutePath() + File.separator + fileName + ".tsv"));
         if (outFile.exists()) {
             outFile.delete();
         }
-        return SnapshotClient.getLatestSnapshot(dataType, outFile, query, includeParentAccession);
+        return outFile;
     }
 
     @SneakyThrows
-    private static boolean loadToQueues(File snapshot, BlockingQueue<Line> queue) {
+    static boolean loadToQueues(File snapshot, BlockingQueue<Line> queue) {
         log.info("reading from:{}", snapshot);
         DateFormat LAST_UPDATED_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
         long count = 0;
         try {
-            try (BufferedReader snapshotReader = new BufferedReader(new FileReader(snapshot))) {
+            try (BufferedReader snapshotReader = new BufferedReader(new InputStreamReader(Codec.open(snapshot)))) {
                 String line = snapshotReader.readLine();
                 if (StringUtils.isNotBlank(line)) {
                     if (line.startsWith("accession")) {
@@ -94,16 +230,303 @@ public class MainService {
     public DiffFiles compareSnapshots(File previousSnapshot, File latestSnapshot, File outputLocation,
                                       String namePrefix) {
         log.info("comparing:{} and {}", previousSnapshot.getAbsolutePath(), latestSnapshot.getAbsolutePath());
-        File newOrUpdated = new File(outputLocation.getAbsolutePath() + File.separator + namePrefix + "_new-or" +
-                "-updated.tsv");
-        if (newOrUpdated.exists()) {
-            newOrUpdated.delete();
+        return compare(previousSnapshot, outputLocation, namePrefix, (newOrUpdated, deleted, changed) -> {
+            if (!packedRecords && BinarySnapshot.isBinary(previousSnapshot)) {
+                throw new IllegalArgumentException("binary snapshots can only be compared with packedRecords");
+            }
+            if (!packedRecords && changed != null) {
+                throw new IllegalArgumentException("changed columns can only be reported with packedRecords");
+            }
+            List<String> columns = changed == null ? null : fieldsOf(latestSnapshot);
+            // with block manifests of both snapshots only the blocks that changed are read
+            ManifestDiff.Changes changes = null;
+            if (packedRecords) {
+                BlockManifest prevManifest = BlockManifest.find(previousSnapshot);
+                BlockManifest nextManifest = prevManifest == null ? null : BlockManifest.find(latestSnapshot);
+                if (nextManifest != null) {
+                    changes = ManifestDiff.compare(prevManifest, nextManifest);
+                }
+            }
+            if (changes == null && packedRecords && diffThreads > 1) {
+                // ranges are found by seeking, which compressed snapshots do not allow
+                boolean prevSeekable = BinarySnapshot.find(previousSnapshot) != null ||
+                        Codec.detect(previousSnapshot) == Codec.NONE;
+                if (prevSeekable && !BinarySnapshot.isBinary(latestSnapshot) &&
+                        Codec.detect(latestSnapshot) == Codec.NONE) {
+                    return PartitionedDiff.diff(previousSnapshot, latestSnapshot, newOrUpdated, deleted, changed,
+                            columns, diffThreads, outputShards);
+                }
+                log.info("compressed snapshot, diffing in a single merge");
+            }
+            try (
+                    ChangeListWriter newWriter = new ChangeListWriter(newOrUpdated, outputShards);
+                    ChangeListWriter delWriter = new ChangeListWriter(deleted, outputShards);
+                    ColumnReport report = columnReport(changed, columns)) {
+                if (changes != null) {
+                    List<long[]> prevRanges = changes.getPrevious(), nextRanges = changes.getLatest();
+                    return mergePacked(ring -> SnapshotReader.readRanges(previousSnapshot, prevRanges, ring),
+                            ring -> SnapshotReader.readRanges(latestSnapshot, nextRanges, ring), newWriter, delWriter,
+                            report);
+                }
+                if (packedRecords) {
+                    return mergePacked(ring -> SnapshotReader.readTo(previousSnapshot, ring),
+                            ring -> SnapshotReader.readTo(latestSnapshot, ring), newWriter, delWriter, report);
+                }
+                return mergeLines(previousSnapshot, latestSnapshot, newWriter, delWriter);
+            }
+        });
+    }
+
+    /**
+     * Diffs the previous snapshot against the rows of the fetched snapshot's final merge, which writes the new
+     * snapshot file at the same time.
+     */
+    @SneakyThrows
+    public DiffFiles compareWhileMerging(File previousSnapshot, SnapshotClient.FetchedSnapshot fetched,
+                                         File outputLocation, String namePrefix) {
+        log.info("comparing:{} and merge of {}", previousSnapshot.getAbsolutePath(),
+                fetched.getOutputFile().getAbsolutePath());
+        return compare(previousSnapshot, outputLocation, namePrefix, (newOrUpdated, deleted, changed) -> {
+            try (
+                    ChangeListWriter newWriter = new ChangeListWriter(newOrUpdated, outputShards);
+                    ChangeListWriter delWriter = new ChangeListWriter(deleted, outputShards);
+                    ColumnReport report = columnReport(changed, changed == null ? null : fieldsOf(fetched))) {
+                return mergePacked(ring -> SnapshotReader.readTo(previousSnapshot, ring), ring -> {
+                    try {
+                        SnapshotClient.mergeSnapshot(fetched, ring);
+                    } catch (Throwable e) {
+                        // whatever ends the merge ends the diff waiting on its ring
+                        log.error("merge of " + fetched.getOutputFile().getName() + " failed:", e);
+                        ring.fail(e);
+                    }
+                }, newWriter, delWriter, report);
+            }
+        });
+    }
+
+    /**
+     * Diffs the latest snapshot against each of the previous ones, reading it once. With more than one previous
+     * snapshot each pair of change lists is named after its previous snapshot.
+     */
+    @SneakyThrows
+    public List<DiffFiles> compareSnapshots(List<File> previousSnapshots, File latestSnapshot, File outputLocation,
+                                            String namePrefix) {
+        if (previousSnapshots.size() == 1) {
+            return Collections.singletonList(compareSnapshots(previousSnapshots.get(0), latestSnapshot, outputLocation,
+                    namePrefix));
         }
-        File deleted = new File(outputLocation.getAbsolutePath() + File.separator + namePrefix + "_deleted.tsv");
-        if (deleted.exists()) {
-            deleted.delete();
+        log.info("comparing:{} and {}", previousSnapshots, latestSnapshot.getAbsolutePath());
+        return compareAll(previousSnapshots, outputLocation, namePrefix, (newOrUpdated, deleted, changed) ->
+                mergePacked(readers(previousSnapshots), ring -> SnapshotReader.readTo(latestSnapshot, ring),
+                        newOrUpdated, deleted, changed, changed == null ? null : fieldsOf(latestSnapshot)));
+    }
+
+    /**
+     * Like {@link #compareSnapshots(List, File, File, String)}, from the fetched snapshot's final merge.
+     */
+    @SneakyThrows
+    public List<DiffFiles> compareWhileMerging(List<File> previousSnapshots, SnapshotClient.FetchedSnapshot fetched,
+                                               File outputLocation, String namePrefix) {
+        if (previousSnapshots.size() == 1) {
+            return Collections.singletonList(compareWhileMerging(previousSnapshots.get(0), fetched, outputLocation,
+                    namePrefix));
         }
+        log.info("comparing:{} and merge of {}", previousSnapshots, fetched.getOutputFile().getAbsolutePath());
+        return compareAll(previousSnapshots, outputLocation, namePrefix, (newOrUpdated, deleted, changed) ->
+                mergePacked(readers(previousSnapshots), ring -> {
+                    try {
+                        SnapshotClient.mergeSnapshot(fetched, ring);
+                    } catch (Throwable e) {
+                        log.error("merge of " + fetched.getOutputFile().getName() + " failed:", e);
+                        ring.fail(e);
+                    }
+                }, newOrUpdated, deleted, changed, changed == null ? null : fieldsOf(fetched)));
+    }
+
+    private List<String> fieldsOf(File latestSnapshot) throws IOException {
+        return fields != null ? fields : ColumnReport.fields(latestSnapshot);
+    }
+
+    private List<String> fieldsOf(SnapshotClient.FetchedSnapshot fetched) {
+        return fields != null ? fields : ColumnReport.fields(fetched.getRuns().getHeader());
+    }
+
+    private static ColumnReport columnReport(File changed, List<String> fields) throws IOException {
+        return changed == null ? null : new ColumnReport(Codec.forName(changed).writer(changed), fields);
+    }
+
+    private static List<Consumer<BlockRing>> readers(List<File> snapshots) {
+        List<Consumer<BlockRing>> readers = new ArrayList<>();
+        for (File snapshot : snapshots) {
+            readers.add(ring -> SnapshotReader.readTo(snapshot, ring));
+        }
+        return readers;
+    }
 
+    /**
+     * coding_20210701.tsv, its compressed and its binary forms all give coding_20210701.
+     */
+    static String snapshotName(File snapshot) {
+        String name = snapshot.getName();
+        name = name.substring(0, name.length() - Codec.forName(snapshot).getExtension().length());
+        for (String extension : new String[]{BinarySnapshot.EXTENSION, ".tsv"}) {
+            if (name.endsWith(extension)) {
+                name = name.substring(0, name.length() - extension.length());
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Loads the previous snapshot into hashDiff while the new one is fetched and probed against it, then writes the
+     * new snapshot sorted, as ever, and the change lists from the table.
+     *
+     * @param fetch fetches the new snapshot, handing its rows to hashDiff
+     * @return null if the fetch had no content
+     */
+    @SneakyThrows
+    public DiffFiles compareWhileFetching(File previousSnapshot, HashDiff hashDiff,
+                                          Callable<SnapshotClient.FetchedSnapshot> fetch, File outputLocation,
+                                          String namePrefix) {
+        if (changedColumns) {
+            throw new IllegalStateException("changed columns are only reported by a merge diff");
+        }
+        Future<?> loading = executorService.submit(() -> {
+            hashDiff.load(previousSnapshot);
+            return null;
+        });
+        SnapshotClient.FetchedSnapshot fetched;
+        try {
+            fetched = fetch.call();
+            loading.get();
+        } finally {
+            loading.cancel(true);
+        }
+        if (fetched == null) {
+            return null;
+        }
+        log.info("merging {} sorted runs to:{}", fetched.getRuns().size(), fetched.getOutputFile().getAbsolutePath());
+        SnapshotClient.mergeSnapshot(fetched, null);
+        log.info("comparing:{} and {} records hashed while fetching", previousSnapshot.getAbsolutePath(),
+                hashDiff.getLatestRows());
+        return compare(previousSnapshot, outputLocation, namePrefix, (newOrUpdated, deleted, changed) -> {
+            try (
+                    ChangeListWriter newWriter = new ChangeListWriter(newOrUpdated, outputShards);
+                    ChangeListWriter delWriter = new ChangeListWriter(deleted, outputShards)) {
+                return hashDiff.write(newWriter, delWriter);
+            }
+        });
+    }
+
+    /**
+     * @return an empty table for a hash diff of the snapshot about to be fetched, or null if it should be merged
+     */
+    HashDiff hashDiffFor(DataType dataType, String query) {
+        if (!packedRecords || diffEngine == DiffEngine.MERGE) {
+            return null;
+        }
+        if (changedColumns) {
+            log.info("changed columns are only reported by a merge diff, merging");
+            return null;
+        }
+        long expected = CountClient.getCountFromResults(dataType.name().toLowerCase(), query);
+        // room for the records deleted since the previous snapshot too
+        long rows = expected + expected / 4;
+        if (diffEngine == DiffEngine.AUTO && !HashDiff.fits(rows, hashDiffMemoryBytes)) {
+            log.info("{} expected records need {}MB for a hash diff, merging instead", expected,
+                    HashDiff.tableBytes(rows) >> 20);
+            return null;
+        }
+        log.info("hash diff of {} expected records in {}MB", expected, HashDiff.tableBytes(rows) >> 20);
+        return new HashDiff(rows);
+    }
+
+    interface Diff {
+        /**
+         * @param changed where to report changed columns, or null
+         */
+        long[] run(File newOrUpdated, File deleted, File changed) throws Exception;
+    }
+
+    interface MultiDiff {
+        long[][] run(File[] newOrUpdated, File[] deleted, File[] changed) throws Exception;
+    }
+
+    private File diffFile(File outputLocation, String name) {
+        File file = compression.name(new File(outputLocation.getAbsolutePath() + File.separator + name));
+        if (file.exists()) {
+            file.delete();
+        }
+        return file;
+    }
+
+    private DiffFiles compare(File previousSnapshot, File outputLocation, String namePrefix, Diff diff)
+            throws Exception {
+        File newOrUpdated = diffFile(outputLocation, namePrefix + NEW_OR_UPDATED + ".tsv");
+        File deleted = diffFile(outputLocation, namePrefix + "_deleted.tsv");
+        File changed = changedColumns ? diffFile(outputLocation, namePrefix + "_changed-columns.tsv") : null;
+
+        long start = System.nanoTime();
+        long[] counts = diff.run(newOrUpdated, deleted, changed);
+        metrics.diff().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        long newCount = counts[0], delCount = counts[1];
+        metrics.output("new_or_updated", newCount, ChangeListWriter.files(newOrUpdated, outputShards));
+        metrics.output("deleted", delCount, ChangeListWriter.files(deleted, outputShards));
+        log.info("shutting down");
+        executorService.shutdown();
+        log.info("new records found:{} listed in {}", newCount, listedIn(newOrUpdated));
+        log.info("records to be deleted:{} listed in {}", delCount, listedIn(deleted));
+        if (changed != null) {
+            log.info("changed columns listed in {}", changed.getAbsolutePath());
+        }
+        return new DiffFiles(newOrUpdated, deleted, changed);
+    }
+
+    private String listedIn(File list) {
+        if (outputShards <= 1) {
+            return list.getAbsolutePath();
+        }
+        return outputShards + " shards " + ChangeListWriter.files(list, outputShards);
+    }
+
+    private List<DiffFiles> compareAll(List<File> previousSnapshots, File outputLocation, String namePrefix,
+                                       MultiDiff diff) throws Exception {
+        int n = previousSnapshots.size();
+        File[] newOrUpdated = new File[n];
+        File[] deleted = new File[n];
+        File[] changed = changedColumns ? new File[n] : null;
+        for (int i = 0; i < n; i++) {
+            String prefix = namePrefix + "_from_" + snapshotName(previousSnapshots.get(i));
+            newOrUpdated[i] = diffFile(outputLocation, prefix + NEW_OR_UPDATED + ".tsv");
+            deleted[i] = diffFile(outputLocation, prefix + "_deleted.tsv");
+            if (changed != null) {
+                changed[i] = diffFile(outputLocation, prefix + "_changed-columns.tsv");
+            }
+        }
+
+        long start = System.nanoTime();
+        long[][] counts = diff.run(newOrUpdated, deleted, changed);
+        metrics.diff().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        for (int i = 0; i < n; i++) {
+            metrics.output("new_or_updated", counts[i][0], ChangeListWriter.files(newOrUpdated[i], outputShards));
+            metrics.output("deleted", counts[i][1], ChangeListWriter.files(deleted[i], outputShards));
+        }
+        log.info("shutting down");
+        executorService.shutdown();
+        List<DiffFiles> diffFiles = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            log.info("since {}: new records found:{} listed in {}", previousSnapshots.get(i).getName(),
+                    counts[i][0], listedIn(newOrUpdated[i]));
+            log.info("since {}: records to be deleted:{} listed in {}", previousSnapshots.get(i).getName(),
+                    counts[i][1], listedIn(deleted[i]));
+            diffFiles.add(new DiffFiles(newOrUpdated[i], deleted[i], changed == null ? null : changed[i]));
+        }
+        return diffFiles;
+    }
+
+    @SneakyThrows
+    private long[] mergeLines(File previousSnapshot, File latestSnapshot, ChangeListWriter newWriter,
+                              ChangeListWriter delWriter) {
         BlockingQueue<Line> prevQ = new LinkedBlockingQueue<>(1000);
         BlockingQueue<Line> nextQ = new LinkedBlockingQueue<>(1000);
 
@@ -120,11 +543,10 @@ public class MainService {
             }
         });
 
-        int delCount = 0, newCount = 0;
-        try (
-                BufferedWriter newWriter = new BufferedWriter(new FileWriter(newOrUpdated));
-                BufferedWriter delWriter = new BufferedWriter(new FileWriter(deleted))) {
-
+        long delCount = 0, newCount = 0;
+        RunMetrics.QueueSampler prevSampling = metrics.sampleQueue("prev", prevQ::size);
+        RunMetrics.QueueSampler nextSampling = metrics.sampleQueue("next", nextQ::size);
+        try {
             Line p = prevQ.take();
             Line n = nextQ.take();
 
@@ -135,13 +557,13 @@ public class MainService {
                 }
                 if (p.equals(POISON) && !n.equals(POISON)) {
                     // write remainder of nextQ to new
-                    newWriter.write(n.getAcc() + System.lineSeparator());
+                    newWriter.add(n.getAcc());
                     newCount++;
                     n = nextQ.take();
                     continue;
                 }
                 if (n.equals(POISON) && !p.equals(POISON)) {
-                    delWriter.write(p.getAcc() + System.lineSeparator());
+                    delWriter.add(p.getAcc());
                     delCount++;
                     p = prevQ.take();
                     continue;
@@ -152,15 +574,15 @@ public class MainService {
                     int compare = p.getAcc().compareTo(n.getAcc());
                     if (compare == 0) {
                         // acc is same. date changed. continue both queues
-                        newWriter.write(p.getAcc() + System.lineSeparator());
+                        newWriter.add(p.getAcc());
                         newCount++;
                     } else if (compare > 0) {
-                        newWriter.write(n.getAcc() + System.lineSeparator());
+                        newWriter.add(n.getAcc());
                         newCount++;
                         n = nextQ.take();
                         continue;
                     } else if (compare < 0) {
-                        delWriter.write(p.getAcc() + System.lineSeparator());
+                        delWriter.add(p.getAcc());
                         delCount++;
                         p = prevQ.take();
                         continue;
@@ -169,40 +591,439 @@ public class MainService {
                 p = prevQ.take();
                 n = nextQ.take();
             }
+            return new long[]{newCount, delCount};
+        } finally {
+            prevSampling.close();
+            nextSampling.close();
         }
-        log.info("shutting down");
-        executorService.shutdown();
-        log.info("new records found:{} listed in {}", newCount, newOrUpdated.getAbsolutePath());
-        log.info("records to be deleted:{} listed in {}", delCount, deleted.getAbsolutePath());
-        return new DiffFiles(newOrUpdated, deleted);
     }
 
+    @SneakyThrows
+    private long[] mergePacked(Consumer<BlockRing> previousSource, Consumer<BlockRing> latestSource,
+                               ChangeListWriter newWriter, ChangeListWriter delWriter, ColumnReport report) {
+        BlockRing prevRing = new BlockRing();
+        BlockRing nextRing = new BlockRing();
+
+        executorService.submit(() -> previousSource.accept(prevRing));
+        executorService.submit(() -> latestSource.accept(nextRing));
+
+        RecordCursor prev = new RecordCursor(prevRing);
+        RecordCursor next = new RecordCursor(nextRing);
+        RunMetrics.QueueSampler prevSampling = metrics.sampleQueue("prev", prevRing::size);
+        RunMetrics.QueueSampler nextSampling = metrics.sampleQueue("next", nextRing::size);
+        try {
+            long[] counts = MergeDiff.merge(prev, next, newWriter, delWriter, report);
+            log.info("both streams ended");
+            return counts;
+        } finally {
+            prevSampling.close();
+            nextSampling.close();
+            prev.cancel();
+            next.cancel();
+        }
+    }
+
+    @SneakyThrows
+    private long[][] mergePacked(List<Consumer<BlockRing>> previousSources, Consumer<BlockRing> latestSource,
+                                 File[] newOrUpdated, File[] deleted, File[] changed, List<String> fields) {
+        int n = previousSources.size();
+        RecordCursor[] prev = new RecordCursor[n];
+        BlockRing[] prevRings = new BlockRing[n];
+        for (int i = 0; i < n; i++) {
+            BlockRing prevRing = new BlockRing();
+            Consumer<BlockRing> source = previousSources.get(i);
+            executorService.submit(() -> source.accept(prevRing));
+            prev[i] = new RecordCursor(prevRing);
+            prevRings[i] = prevRing;
+        }
+        BlockRing nextRing = new BlockRing();
+        executorService.submit(() -> latestSource.accept(nextRing));
+        RecordCursor next = new RecordCursor(nextRing);
+
+        ChangeListWriter[] newWriters = new ChangeListWriter[n];
+        ChangeListWriter[] delWriters = new ChangeListWriter[n];
+        ColumnReport[] reports = changed == null ? null : new ColumnReport[n];
+        // the fullest previous ring is the one furthest ahead of the merge
+        RunMetrics.QueueSampler prevSampling = metrics.sampleQueue("prev", () -> Arrays.stream(prevRings)
+                .mapToInt(BlockRing::size).max().orElse(0));
+        RunMetrics.QueueSampler nextSampling = metrics.sampleQueue("next", nextRing::size);
+        try {
+            for (int i = 0; i < n; i++) {
+                newWriters[i] = new ChangeListWriter(newOrUpdated[i], outputShards);
+                delWriters[i] = new ChangeListWriter(deleted[i], outputShards);
+                if (reports != null) {
+                    reports[i] = columnReport(changed[i], fields);
+                }
+            }
+            long[][] counts = MergeDiff.merge(prev, next, newWriters, delWriters, reports);
+            log.info("all {} streams ended", n + 1);
+            return counts;
+        } finally {
+            prevSampling.close();
+            nextSampling.close();
+            for (RecordCursor cursor : prev) {
+                cursor.cancel();
+            }
+            next.cancel();
+            for (int i = 0; i < n; i++) {
+                if (newWriters[i] != null) {
+                    newWriters[i].close();
+                }
+                if (delWriters[i] != null) {
+                    delWriters[i].close();
+                }
+                if (reports != null && reports[i] != null) {
+                    reports[i].close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param previousSnapshotPath one previous snapshot, or a comma separated list to diff against in the same pass
+     */
     @SneakyThrows
     public File fetchSnapshotAndCompare(String dataTypeStr, String previousSnapshotPath, String outputLocationPath,
                                         String query, boolean includeParentAccession) {
         DataType dataType = DataType.valueOf(dataTypeStr.toUpperCase());
-        File prevSnapshot = new File(previousSnapshotPath);
-        if (!prevSnapshot.exists()) {
-            log.info("Previous snapshot:{} does not exist.", previousSnapshotPath);
-            prevSnapshot.createNewFile();
+        List<File> prevSnapshots = previousSnapshots(Arrays.asList(previousSnapshotPath.split(",")));
+        File outputLocation = new File(outputLocationPath);
+        assert outputLocation.canWrite();
+        checkParentAccession(dataType, includeParentAccession);
+        try {
+            return fetchAndCompare(dataType, prevSnapshots, outputLocation, query, includeParentAccession);
+        } catch (Exception e) {
+            log.error("error:", e);
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the net change lists between two runs recorded in the change history of a data type, e.g.
+     * coding_20210701_to_20210803_new-or-updated.tsv and coding_20210701_to_20210803_deleted.tsv, from its segments
+     * alone, see {@link ChangeHistory#query}.
+     *
+     * @param to null for the latest recorded run
+     */
+    @SneakyThrows
+    public DiffFiles listChangesBetween(String dataTypeStr, String outputLocationPath, String from, String to) {
+        DataType dataType = DataType.valueOf(dataTypeStr.toUpperCase());
+        File outputLocation = new File(outputLocationPath);
+        ChangeHistory history = new ChangeHistory(ChangeHistory.directoryFor(outputLocation, dataType.name()),
+                compression);
+        if (!history.exists()) {
+            throw new IllegalArgumentException("no change history in " + history.getDirectory().getPath());
+        }
+        if (to == null) {
+            List<ChangeHistory.Run> runs = history.runs();
+            to = runs.get(runs.size() - 1).getDate();
+        }
+        String name = dataType.name().toLowerCase() + "_" + from + "_to_" + to;
+        File newOrUpdated = diffFile(outputLocation, name + NEW_OR_UPDATED + ".tsv");
+        File deleted = diffFile(outputLocation, name + "_deleted.tsv");
+        long[] counts;
+        try (ChangeListWriter newWriter = new ChangeListWriter(newOrUpdated, outputShards);
+             ChangeListWriter delWriter = new ChangeListWriter(deleted, outputShards)) {
+            counts = history.query(from, to, (accession, isDeleted) ->
+                    (isDeleted ? delWriter : newWriter).add(accession));
+        }
+        log.info("from {} to {}: new records:{} listed in {}", from, to, counts[0], listedIn(newOrUpdated));
+        log.info("from {} to {}: records to be deleted:{} listed in {}", from, to, counts[1], listedIn(deleted));
+        return new DiffFiles(newOrUpdated, deleted, null);
+    }
+
+    /**
+     * Fetches and compares several data types in one process, sharing the sort threads and memory and the temporary
+     * disk between them through a {@link RunScheduler}. Each run is granted a share sized from its expected record
+     * count, the largest first, and smaller runs start in what is left while larger ones wait.
+     *
+     * @param dataTypes             comma separated, e.g. SEQUENCE,CODING,NONCODING
+     * @param previousSnapshotPaths comma separated, each the data type it is the previous snapshot of and its path,
+     *                              e.g. CODING=/snapshots/coding_20210701.tsv. A data type given several is diffed
+     *                              against all of them in the same pass.
+     * @return the new snapshot of each data type
+     */
+    @SneakyThrows
+    public Map<DataType, File> fetchSnapshotsAndCompare(String dataTypes, String previousSnapshotPaths,
+                                                        String outputLocationPath, String query,
+                                                        boolean includeParentAccession) {
+        Map<DataType, List<String>> paths = new LinkedHashMap<>();
+        for (String dataTypeStr : dataTypes.split(",")) {
+            DataType dataType = DataType.valueOf(dataTypeStr.trim().toUpperCase());
+            checkParentAccession(dataType, includeParentAccession);
+            paths.put(dataType, new ArrayList<>());
+        }
+        for (String typedPath : previousSnapshotPaths.split(",")) {
+            int at = typedPath.indexOf('=');
+            if (at < 0) {
+                throw new IllegalArgumentException("previous snapshots need their data type, e.g. CODING=[path]:" +
+                        typedPath);
+            }
+            List<String> typePaths = paths.get(DataType.valueOf(typedPath.substring(0, at).trim().toUpperCase()));
+            if (typePaths == null) {
+                throw new IllegalArgumentException("previous snapshot of a data type not fetched:" + typedPath);
+            }
+            typePaths.add(typedPath.substring(at + 1));
+        }
+        Map<DataType, List<File>> prevSnapshots = new LinkedHashMap<>();
+        for (Map.Entry<DataType, List<String>> entry : paths.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                throw new IllegalArgumentException("no previous snapshot of " + entry.getKey());
+            }
+            prevSnapshots.put(entry.getKey(), previousSnapshots(entry.getValue()));
         }
         File outputLocation = new File(outputLocationPath);
         assert outputLocation.canWrite();
+        try {
+            return fetchAndCompare(prevSnapshots, outputLocation, query, includeParentAccession);
+        } catch (Exception e) {
+            log.error("error:", e);
+            System.exit(1);
+        }
+        return null;
+    }
+
+    private Map<DataType, File> fetchAndCompare(Map<DataType, List<File>> prevSnapshots, File outputLocation,
+                                                String query, boolean includeParentAccession) throws Exception {
+        RunScheduler scheduler = new RunScheduler(SnapshotClient.sortThreads, SnapshotClient.sortMemoryBytes,
+                tempDiskBytes > 0 ? tempDiskBytes : outputLocation.getUsableSpace());
+        Map<DataType, Long> expected = new HashMap<>();
+        for (DataType dataType : prevSnapshots.keySet()) {
+            expected.put(dataType, CountClient.getCountFromResults(dataType.name().toLowerCase(), query));
+        }
+        List<DataType> largestFirst = new ArrayList<>(prevSnapshots.keySet());
+        largestFirst.sort((a, b) -> Long.compare(expected.get(b), expected.get(a)));
+        log.info("expected records:{}", expected);
+
+        ExecutorService runs = Executors.newFixedThreadPool(largestFirst.size());
+        Map<DataType, Future<File>> futures = new LinkedHashMap<>();
+        try {
+            for (DataType dataType : largestFirst) {
+                RunScheduler.Grant grant = scheduler.request(dataType.name().toLowerCase(), expected.get(dataType));
+                futures.put(dataType, runs.submit(() -> {
+                    try (RunScheduler.Grant granted = grant.await()) {
+                        SnapshotClient.setRunGrant(granted);
+                        return forRun(granted).fetchAndCompare(dataType, prevSnapshots.get(dataType),
+                                outputLocation, query, includeParentAccession);
+                    } finally {
+                        SnapshotClient.setRunGrant(null);
+                    }
+                }));
+            }
+            Map<DataType, File> newSnapshots = new LinkedHashMap<>();
+            List<DataType> failed = new ArrayList<>();
+            for (Map.Entry<DataType, Future<File>> entry : futures.entrySet()) {
+                try {
+                    newSnapshots.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    log.error(entry.getKey() + " failed:", e.getCause());
+                    failed.add(entry.getKey());
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new Exception("runs of " + failed + " failed, those of " + newSnapshots.keySet() + " completed");
+            }
+            return newSnapshots;
+        } finally {
+            runs.shutdownNow();
+        }
+    }
+
+    /**
+     * A service for a single run under grant, with these settings narrowed to it. Each has its own executor, which
+     * the run shuts down.
+     */
+    MainService forRun(RunScheduler.Grant grant) {
+        MainService run = forRun();
+        run.diffThreads = Math.min(diffThreads, grant.getThreads());
+        run.hashDiffMemoryBytes = Math.min(hashDiffMemoryBytes, grant.getMemoryBytes());
+        return run;
+    }
+
+    /**
+     * A service for a single run with these settings.
+     */
+    MainService forRun() {
+        MainService run = new MainService();
+        run.snapshotClient = snapshotClient;
+        run.packedRecords = packedRecords;
+        run.diffThreads = diffThreads;
+        run.fusedDiff = fusedDiff;
+        run.compression = compression;
+        run.diffEngine = diffEngine;
+        run.hashDiffMemoryBytes = hashDiffMemoryBytes;
+        run.changedColumns = changedColumns;
+        run.outputShards = outputShards;
+        run.fetchFlatfiles = fetchFlatfiles;
+        run.flatfileBatchSize = flatfileBatchSize;
+        run.flatfileThreads = flatfileThreads;
+        run.flatfileRetries = flatfileRetries;
+        run.metricsReport = metricsReport;
+        run.changeHistory = changeHistory;
+        return run;
+    }
+
+    /**
+     * A run of a {@link SnapshotDaemon}: as {@link #fetchSnapshotAndCompare}, on a service of its own, and failing by
+     * throwing rather than exiting.
+     */
+    File fetchAndCompareOnce(DataType dataType, File previousSnapshot, File outputLocation, String query,
+                             boolean includeParentAccession) throws Exception {
+        checkParentAccession(dataType, includeParentAccession);
+        return forRun().fetchAndCompare(dataType, Collections.singletonList(previousSnapshot), outputLocation, query,
+                includeParentAccession);
+    }
+
+    private List<File> previousSnapshots(List<String> paths) throws IOException {
+        List<File> prevSnapshots = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String path : paths) {
+            File prevSnapshot = new File(path.trim());
+            if (!names.add(snapshotName(prevSnapshot))) {
+                throw new IllegalArgumentException("previous snapshots need distinct names:" + paths);
+            }
+            if (!prevSnapshot.exists()) {
+                log.info("Previous snapshot:{} does not exist.", prevSnapshot.getPath());
+                prevSnapshot.createNewFile();
+            }
+            prevSnapshots.add(prevSnapshot);
+        }
+        if (prevSnapshots.size() > 1 && !packedRecords) {
+            throw new IllegalArgumentException("several previous snapshots can only be compared with packedRecords");
+        }
+        return prevSnapshots;
+    }
+
+    private static void checkParentAccession(DataType dataType, boolean includeParentAccession) {
         if (includeParentAccession && !(dataType == DataType.CODING || dataType == DataType.NONCODING)) {
             throw new IllegalArgumentException("includeParentAccession can be true only for coding & noncoding");
         }
+    }
 
-        String name = dataType.name().toLowerCase() + "_" + DATE_FORMAT.format(new Date());
+    private File fetchAndCompare(DataType dataType, List<File> prevSnapshots, File outputLocation, String query,
+                                 boolean includeParentAccession) throws Exception {
+        String name;
+        synchronized (DATE_FORMAT) {
+            name = dataType.name().toLowerCase() + "_" + DATE_FORMAT.format(new Date());
+        }
+        if (!metricsReport) {
+            return fetchAndCompare(dataType, prevSnapshots, outputLocation, query, includeParentAccession, name);
+        }
+        metrics = RunMetrics.start(dataType);
+        File newSnapshot = null;
+        Throwable failure = null;
         try {
-            File newSnapshot = writeLatestSnapshot(dataType, outputLocation, name, query,
-                    includeParentAccession);
-            final DiffFiles diffFiles = compareSnapshots(prevSnapshot, newSnapshot, outputLocation, name);
+            newSnapshot = fetchAndCompare(dataType, prevSnapshots, outputLocation, query, includeParentAccession,
+                    name);
+            return newSnapshot;
+        } catch (Exception | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            metrics.finish(outputLocation, name, newSnapshot, failure);
+            metrics = RunMetrics.none();
+        }
+    }
+
+    private File fetchAndCompare(DataType dataType, List<File> prevSnapshots, File outputLocation, String query,
+                                 boolean includeParentAccession, String name) throws Exception {
+        // a delta fetch, hash diff or manifest diff works from a single previous snapshot
+        File prevSnapshot = prevSnapshots.get(0);
+        boolean single = prevSnapshots.size() == 1;
 
+        fields = Arrays.asList(SnapshotClient.getFields(dataType.name(), includeParentAccession).split(","));
+        File patched = SnapshotClient.patchLatestSnapshot(dataType, prevSnapshot,
+                snapshotFile(outputLocation, name, compression), query, includeParentAccession);
+        if (patched != null) {
+            listed(dataType, compareSnapshots(prevSnapshots, patched, outputLocation, name), prevSnapshot,
+                    outputLocation, name);
+            return patched;
+        }
+        HashDiff hashDiff = single ? hashDiffFor(dataType, query) : null;
+        if (hashDiff != null) {
+            File newSnapshot = snapshotFile(outputLocation, name, compression);
+            DiffFiles diffFiles = compareWhileFetching(prevSnapshot, hashDiff, () ->
+                    SnapshotClient.fetchSortedRuns(dataType, newSnapshot, query, includeParentAccession,
+                            hashDiff), outputLocation, name);
+            log.info("finished new {} snapshot IDs pull from ENA", dataType);
+            if (diffFiles != null) {
+                listed(dataType, Collections.singletonList(diffFiles), prevSnapshot, outputLocation, name);
+            }
             return newSnapshot;
-        } catch (Exception e) {
-            log.error("error:", e);
-            System.exit(1);
         }
-        return null;
+        // a manifest diff needs the new snapshot's manifest, which is complete only once the merge is
+        boolean manifestDiff = packedRecords && SnapshotClient.manifests && compression == Codec.NONE &&
+                BlockManifest.find(prevSnapshot) != null;
+        if (fusedDiff && packedRecords && (!single || (diffThreads <= 1 && !manifestDiff))) {
+            File newSnapshot = snapshotFile(outputLocation, name, compression);
+            SnapshotClient.FetchedSnapshot fetched = SnapshotClient.fetchSortedRuns(dataType, newSnapshot, query,
+                    includeParentAccession);
+            List<DiffFiles> diffFiles = null;
+            if (fetched != null) {
+                diffFiles = compareWhileMerging(prevSnapshots, fetched, outputLocation, name);
+                FetchCheckpoint.delete(FetchCheckpoint.fileFor(newSnapshot));
+            }
+            log.info("finished new {} snapshot IDs pull from ENA", dataType);
+            if (diffFiles != null) {
+                listed(dataType, diffFiles, prevSnapshot, outputLocation, name);
+            }
+            return newSnapshot;
+        }
+        File newSnapshot = writeLatestSnapshot(dataType, outputLocation, name, query,
+                includeParentAccession, compression);
+        final List<DiffFiles> diffFiles = compareSnapshots(prevSnapshots, newSnapshot, outputLocation, name);
+        listed(dataType, diffFiles, prevSnapshot, outputLocation, name);
+
+        return newSnapshot;
+    }
+
+    /**
+     * Once the change lists are written: fetches their flatfiles and records them in the change history, each if
+     * asked to.
+     */
+    private void listed(DataType dataType, List<DiffFiles> diffFiles, File prevSnapshot, File outputLocation,
+                        String name) throws Exception {
+        fetchFlatfiles(diffFiles, outputLocation);
+        recordHistory(dataType, diffFiles.get(0), prevSnapshot, outputLocation, name);
+    }
+
+    /**
+     * Appends the change lists against the first previous snapshot to the {@link ChangeHistory} of the data type,
+     * and compacts it in the background.
+     */
+    private void recordHistory(DataType dataType, DiffFiles diffFiles, File prevSnapshot, File outputLocation,
+                               String name) throws IOException {
+        if (!changeHistory) {
+            return;
+        }
+        ChangeHistory history = new ChangeHistory(ChangeHistory.directoryFor(outputLocation, dataType.name()),
+                compression);
+        if (history.append(ChangeHistory.runOf(name), ChangeHistory.runOf(snapshotName(prevSnapshot)),
+                ChangeListWriter.files(diffFiles.getNewOrChangedList(), outputShards),
+                ChangeListWriter.files(diffFiles.getDeletedList(), outputShards))) {
+            history.compactInBackground();
+        }
+    }
+
+    /**
+     * Fetches the flatfiles of the records new or updated since the first previous snapshot, if asked to.
+     */
+    private void fetchFlatfiles(List<DiffFiles> diffFiles, File outputLocation) throws Exception {
+        if (!fetchFlatfiles) {
+            return;
+        }
+        File list = diffFiles.get(0).getNewOrChangedList();
+        FlatfileFetcher fetcher = new FlatfileFetcher(SnapshotClient.browserApiBase + "/embl/", flatfileBatchSize,
+                flatfileThreads, flatfileRetries, FlatfileFetcher.DEFAULT_BACKOFF_MILLIS, compression);
+        fetcher.fetch(ChangeListWriter.files(list, outputShards), outputLocation, flatfileName(list));
+    }
+
+    /**
+     * coding_20210803_new-or-updated.tsv gives coding_20210803.
+     */
+    static String flatfileName(File list) {
+        String name = snapshotName(list);
+        return name.endsWith(NEW_OR_UPDATED) ? name.substring(0, name.length() - NEW_OR_UPDATED.length()) : name;
     }
 }
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+import uk.ac.ebi.ena.dcap.scl.sort.RunCheckpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Fetches a snapshot as several concurrent Portal API searches, one per last_updated range, each ANDed with the
+ * user query. Every partition is streamed straight into its own sorted runs and checked against the index count
+ * for the same partition query. Failed partitions are retried one at a time, and the runs of all partitions are
+ * then merged as one snapshot.
+ */
+@Slf4j
+public class PartitionedFetcher {
+
+    public static final String PORTAL_API_BASE = "https://www.ebi.ac.uk/ena/portal/api";
+    /**
+     * Start of the evenly split last_updated ranges; everything older goes to the first partition.
+     */
+    public static final LocalDate PARTITION_START = LocalDate.of(2010, 1, 1);
+    static final String SEARCH_PATH = "/search?result=%s&fields=%s&limit=0";
+    static final String COUNT_PATH = "/count?result=%s&format=json";
+
+    private final String portalApiBase;
+    private final int partitions;
+    private final LocalDate partitionStart;
+    private final int retries;
+
+    public PartitionedFetcher(String portalApiBase, int partitions, LocalDate partitionStart, int retries) {
+        this.portalApiBase = portalApiBase;
+        this.partitions = partitions;
+        this.partitionStart = partitionStart;
+        this.retries = retries;
+    }
+
+    @Getter
+    static class Partition {
+        private final int index;
+        private final String query;
+        private ExternalSorter sorter;
+        private ExternalSorter.Runs runs;
+        private long rows;
+        private long expected;
+        private RunCheckpoint checkpoint;
+
+        Partition(int index, String query) {
+            this.index = index;
+            this.query = query;
+        }
+
+        boolean isComplete() {
+            return runs != null && rows >= expected;
+        }
+    }
+
+    /**
+     * last_updated ranges covering all dates: everything before the first boundary, evenly spaced ranges up to
+     * today, and everything from the last boundary on.
+     */
+    List<String> partitionQueries(LocalDate today) {
+        List<String> queries = new ArrayList<>();
+        long days = Math.max(partitions, ChronoUnit.DAYS.between(partitionStart, today));
+        LocalDate from = null;
+        for (int i = 1; i < partitions; i++) {
+            LocalDate to = partitionStart.plusDays(days * i / partitions);
+            if (from == null) {
+                queries.add("last_updated<" + to);
+            } else {
+                queries.add("last_updated>=" + from + " AND last_updated<" + to);
+            }
+            from = to;
+        }
+        queries.add(from == null ? "" : "last_updated>=" + from);
+        return queries;
+    }
+
+    static String combine(String query, String partitionQuery) {
+        if (StringUtils.isBlank(partitionQuery)) {
+            return query;
+        }
+        if (StringUtils.isBlank(query)) {
+            return partitionQuery;
+        }
+        return "(" + query + ") AND " + partitionQuery;
+    }
+
+    /**
+     * What every partition of one fetch shares.
+     */
+    @AllArgsConstructor
+    private static final class Request {
+        final CloseableHttpClient client;
+        final String result;
+        final String fields;
+        final File tempDir;
+        final FetchCheckpoint checkpoint;
+        final File checkpointFile;
+        final Consumer<RecordBlock> onRows;
+    }
+
+    public SnapshotClient.FetchedSnapshot fetchSortedRuns(DataType dataType, File outputFile, String query,
+                                                          boolean includeParentAccession) throws Exception {
+        return fetchSortedRuns(dataType, outputFile, query, includeParentAccession, null);
+    }
+
+    /**
+     * As {@link #fetchSortedRuns(DataType, File, String, boolean)}, also handing every row fetched to onRows, with
+     * checkpoints off.
+     */
+    public SnapshotClient.FetchedSnapshot fetchSortedRuns(DataType dataType, File outputFile, String query,
+                                                          boolean includeParentAccession,
+                                                          Consumer<RecordBlock> onRows) throws Exception {
+        String result = dataType.name().toLowerCase();
+        String fields = SnapshotClient.getFields(dataType.name(), includeParentAccession);
+        File tempDir = outputFile.getAbsoluteFile().getParentFile();
+        RunMetrics metrics = RunMetrics.of(dataType);
+        long start = System.nanoTime();
+        List<Partition> parts = new ArrayList<>();
+        for (String partitionQuery : partitionQueries(LocalDate.now())) {
+            parts.add(new Partition(parts.size(), combine(query, partitionQuery)));
+        }
+        File checkpointFile = FetchCheckpoint.fileFor(outputFile);
+        FetchCheckpoint checkpoint = null;
+        if (SnapshotClient.checkpoints && onRows == null) {
+            checkpoint = FetchCheckpoint.load(checkpointFile, String.format(portalApiBase + SEARCH_PATH, result,
+                    fields) + "&query=" + StringUtils.defaultString(query) + "&partitions=" + parts.size());
+            for (Partition part : parts) {
+                RunCheckpoint done = checkpoint.getPartitions().get(part.getQuery());
+                if (done != null && done.isComplete()) {
+                    log.info("partition {} already fetched, {} records", part.getIndex(), done.getRows());
+                    part.runs = done.restore();
+                    part.rows = done.getRows();
+                    part.expected = done.getRows();
+                }
+            }
+        }
+        long memory = SnapshotClient.sortMemoryBytes() / parts.size();
+        int threads = Math.max(1, SnapshotClient.sortThreads() / parts.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(parts.size());
+        try (CloseableHttpClient client = HttpClients.custom().setMaxConnPerRoute(parts.size())
+                .setMaxConnTotal(parts.size()).build()) {
+            Request request = new Request(client, result, fields, tempDir, checkpoint, checkpointFile, onRows);
+            List<Future<?>> futures = new ArrayList<>();
+            for (Partition part : parts) {
+                if (!part.isComplete()) {
+                    futures.add(pool.submit(() -> fetch(request, part, memory, threads)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            for (Partition part : parts) {
+                for (int attempt = 1; !part.isComplete() && attempt <= retries; attempt++) {
+                    log.info("retrying partition {} ({}), attempt {}", part.getIndex(), part.getQuery(), attempt);
+                    fetch(request, part, SnapshotClient.sortMemoryBytes(), SnapshotClient.sortThreads());
+                }
+                if (!part.isComplete()) {
+                    // complete partitions stay checkpointed for a rerun
+                    deleteIncomplete(parts, checkpoint == null ? null : checkpointFile);
+                    throw new Exception("Partition " + part.getQuery() + " fetched " + part.getRows() +
+                            " records, lower than index count " + part.getExpected());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        long count = parts.stream().mapToLong(Partition::getRows).sum();
+        long countFromResults = CountClient.getCountFromResults(portalApiBase + COUNT_PATH, result, encode(query));
+        log.info("records fetched:{} in {} partitions", count, parts.size());
+        metrics.fetched(count, countFromResults, System.nanoTime() - start);
+        if (count < countFromResults) {
+            deleteRuns(parts, checkpointFile);
+            throw new Exception("Fetched record count " + count + " is lower than index count " + countFromResults +
+                    ", records without last_updated are not covered by partitioned fetch");
+        }
+        List<ExternalSorter.Runs> runs = new ArrayList<>();
+        for (Partition part : parts) {
+            runs.add(part.getRuns());
+        }
+        ExternalSorter merger = SnapshotClient.sorter(SnapshotClient.sortMemoryBytes(), SnapshotClient.sortThreads(),
+                tempDir);
+        return new SnapshotClient.FetchedSnapshot(merger, ExternalSorter.Runs.concat(runs), outputFile, metrics);
+    }
+
+    private void fetch(Request request, Partition part, long memory, int threads) {
+        RunMetrics metrics = RunMetrics.of(request.result);
+        long start = System.nanoTime();
+        try {
+            if (part.runs != null) {
+                part.runs.delete();
+                part.runs = null;
+            }
+            part.expected = CountClient.getCountFromResults(portalApiBase + COUNT_PATH, request.result,
+                    encode(part.getQuery()));
+            String url = String.format(portalApiBase + SEARCH_PATH, request.result, request.fields);
+            if (StringUtils.isNotBlank(part.getQuery())) {
+                url += "&query=" + encode(part.getQuery());
+            }
+            log.info("calling:{}", url);
+            part.sorter = SnapshotClient.sorter(memory, threads, request.tempDir);
+            try (CloseableHttpResponse response = request.client.execute(new HttpGet(url))) {
+                HttpEntity entity = response.getEntity();
+                if (response.getStatusLine().getStatusCode() != 200 || entity == null) {
+                    throw new IOException("partition " + part.getIndex() + ": " + response.getStatusLine());
+                }
+                try (InputStream in = metrics.download(entity.getContent())) {
+                    // a partition is only checkpointed once complete, so only its final checkpoint is kept
+                    part.runs = part.sorter.createRuns(in, null,
+                            request.checkpoint == null ? null : cp -> part.checkpoint = cp, request.onRows);
+                }
+            }
+            part.rows = part.sorter.getStats().getRows();
+            metrics.downloaded(part.rows, System.nanoTime() - start, part.sorter.getStats());
+            log.info("partition {} fetched {} of {} records", part.getIndex(), part.getRows(), part.getExpected());
+            if (part.isComplete() && request.checkpoint != null) {
+                request.checkpoint.getPartitions().put(part.getQuery(), part.checkpoint);
+                request.checkpoint.save(request.checkpointFile);
+            }
+        } catch (Exception e) {
+            log.error("partition " + part.getIndex() + " (" + part.getQuery() + ") failed:", e);
+        }
+    }
+
+    private static void deleteIncomplete(List<Partition> parts, File checkpointFile) throws IOException {
+        for (Partition part : parts) {
+            if (part.runs != null && !part.isComplete()) {
+                part.runs.delete();
+            }
+        }
+        if (checkpointFile == null) {
+            deleteRuns(parts, null);
+        }
+    }
+
+    private static void deleteRuns(List<Partition> parts, File checkpointFile) throws IOException {
+        for (Partition part : parts) {
+            if (part.runs != null) {
+                part.runs.delete();
+            }
+        }
+        if (checkpointFile != null) {
+            FetchCheckpoint.delete(checkpointFile);
+        }
+    }
+
+    static String encode(String query) throws IOException {
+        return StringUtils.isBlank(query) ? query : URLEncoder.encode(query, "UTF-8");
+    }
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.sort.SortStats;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Timers, counters and gauges of one run of a data type, from the download to the change lists. When the run ends
+ * they are written next to its new snapshot, as [snapshot name].metrics.json and in the Prometheus text format as
+ * [snapshot name].prom, so that runs can be graphed over time.
+ * <p>
+ * The fetchers, sorts and count checks find the metrics of the run of their data type with {@link #of}. Outside a
+ * run, e.g. a compare on its own, they are recorded nowhere.
+ */
+@Slf4j
+public class RunMetrics {
+
+    public static final String JSON_EXTENSION = ".metrics.json";
+    public static final String PROMETHEUS_EXTENSION = ".prom";
+    static final long SAMPLE_MILLIS = 100;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private static final Map<String, RunMetrics> running = new ConcurrentHashMap<>();
+    private static final RunMetrics NONE = new RunMetrics(null, new CompositeMeterRegistry());
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "run-metrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String dataType;
+    @Getter
+    private final MeterRegistry registry;
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private volatile long fetchedRecords;
+
+    private RunMetrics(String dataType, MeterRegistry registry) {
+        this.dataType = dataType;
+        this.registry = registry;
+    }
+
+    /**
+     * Starts recording the run of dataType. Only one run of a data type can be recorded at a time.
+     */
+    static RunMetrics start(DataType dataType) {
+        String name = dataType.name().toLowerCase();
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        registry.config().commonTags("data_type", name);
+        RunMetrics metrics = new RunMetrics(name, registry);
+        if (running.putIfAbsent(name, metrics) != null) {
+            throw new IllegalStateException("a run of " + name + " is already being recorded");
+        }
+        return metrics;
+    }
+
+    /**
+     * @param result the data type, as the Portal API names it
+     * @return the metrics of the run of result, or ones recorded nowhere if there is none
+     */
+    public static RunMetrics of(String result) {
+        return result == null ? NONE : running.getOrDefault(result.toLowerCase(), NONE);
+    }
+
+    public static RunMetrics of(DataType dataType) {
+        return of(dataType.name());
+    }
+
+    public static RunMetrics none() {
+        return NONE;
+    }
+
+    /**
+     * Counts the bytes read from a response body.
+     */
+    InputStream download(InputStream in) {
+        Counter bytes = registry.counter("scl.download.bytes");
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytes.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int off, int len) throws IOException {
+                int n = super.read(buffer, off, len);
+                if (n > 0) {
+                    bytes.increment(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * A response body of rows, sorted into runs by a sorter with stats, read in nanos.
+     */
+    void downloaded(long rows, long nanos, SortStats stats) {
+        registry.counter("scl.download.rows").increment(rows);
+        registry.timer("scl.download").record(nanos, TimeUnit.NANOSECONDS);
+        registry.counter("scl.sort.chunks").increment(stats.getChunks());
+        registry.counter("scl.sort.runs").increment(stats.getRuns());
+        registry.counter("scl.sort.spill.bytes").increment(stats.getSpillBytes().get());
+    }
+
+    /**
+     * The whole fetch, downloads, retries and the count check, which the download rates are over.
+     */
+    void fetched(long records, long expected, long nanos) {
+        fetchedRecords = records;
+        registry.timer("scl.fetch").record(nanos, TimeUnit.NANOSECONDS);
+        gauge("scl.records.fetched", records);
+        gauge("scl.records.expected", expected);
+        double seconds = nanos / 1e9;
+        gauge("scl.download.bytes.per.second", registry.counter("scl.download.bytes").count() / seconds);
+        gauge("scl.download.rows.per.second", registry.counter("scl.download.rows").count() / seconds);
+    }
+
+    Timer countRequests() {
+        return registry.timer("scl.count.requests");
+    }
+
+    /**
+     * The final merge of the fetched records into the snapshot, spilling bytes on the way if it had to merge in
+     * passes.
+     */
+    void merged(SortStats stats, long spillBytes) {
+        registry.timer("scl.sort.merge").record(stats.getMergeMillis(), TimeUnit.MILLISECONDS);
+        registry.counter("scl.sort.spill.bytes").increment(spillBytes);
+        gauge("scl.sort.merge.rows.per.second", stats.getMergeMillis() == 0 ? 0 :
+                fetchedRecords * 1000.0 / stats.getMergeMillis());
+    }
+
+    Timer diff() {
+        return registry.timer("scl.diff");
+    }
+
+    /**
+     * Change lists of count records written to files.
+     */
+    void output(String list, long count, List<File> files) {
+        registry.counter("scl.output.records", "list", list).increment(count);
+        registry.counter("scl.output.bytes", "list", list).increment(files.stream().mapToLong(File::length).sum());
+    }
+
+    /**
+     * Samples the occupancy of a queue until closed, e.g. how far the reader of a snapshot is ahead of the diff.
+     */
+    QueueSampler sampleQueue(String queue, IntSupplier size) {
+        if (this == NONE) {
+            return new QueueSampler(null);
+        }
+        DistributionSummary occupancy = DistributionSummary.builder("scl.queue.occupancy").tag("queue", queue)
+                .register(registry);
+        return new QueueSampler(sampler.scheduleAtFixedRate(() -> occupancy.record(size.getAsInt()), 0,
+                SAMPLE_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    static final class QueueSampler implements Closeable {
+        private final ScheduledFuture<?> sampling;
+
+        private QueueSampler(ScheduledFuture<?> sampling) {
+            this.sampling = sampling;
+        }
+
+        @Override
+        public void close() {
+            if (sampling != null) {
+                sampling.cancel(false);
+            }
+        }
+    }
+
+    void gauge(String name, double value, String... tags) {
+        Gauge.builder(name, () -> value).tags(tags).register(registry);
+    }
+
+    /**
+     * Stops recording the run and writes its report next to the snapshot named name in outputLocation.
+     *
+     * @param failure what ended the run, or null if it completed
+     */
+    void finish(File outputLocation, String name, File snapshot, Throwable failure) {
+        running.remove(dataType, this);
+        if (snapshot != null && snapshot.isFile()) {
+            registry.counter("scl.output.bytes", "list", "snapshot").increment(snapshot.length());
+        }
+        gauge("scl.run.seconds", (System.nanoTime() - startNanos) / 1e9);
+        gauge("scl.run.failed", failure == null ? 0 : 1);
+        File json = new File(outputLocation, name + JSON_EXTENSION);
+        File prometheus = new File(outputLocation, name + PROMETHEUS_EXTENSION);
+        try {
+            MAPPER.writeValue(json, report(failure));
+            Files.write(prometheus.toPath(), ((PrometheusMeterRegistry) registry).scrape()
+                    .getBytes(StandardCharsets.UTF_8));
+            log.info("run metrics written to:{} and {}", json.getAbsolutePath(), prometheus.getName());
+        } catch (IOException e) {
+            // the run itself is done, so only its report is lost
+            log.error("writing run metrics to " + json.getAbsolutePath() + " failed:", e);
+        } finally {
+            registry.close();
+        }
+    }
+
+    private Map<String, Object> report(Throwable failure) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("dataType", dataType);
+        report.put("started", started.toString());
+        report.put("failure", failure == null ? null : failure.toString());
+        Map<String, List<Map<String, Object>>> meters = new LinkedHashMap<>();
+        List<Meter> sorted = new ArrayList<>(registry.getMeters());
+        sorted.sort(Comparator.comparing((Meter m) -> m.getId().getName()).thenComparing(m -> m.getId().getTags()
+                .toString()));
+        for (Meter meter : sorted) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            for (Tag tag : meter.getId().getTags()) {
+                if (!tag.getKey().equals("data_type")) {
+                    values.put(tag.getKey(), tag.getValue());
+                }
+            }
+            for (Measurement measurement : meter.measure()) {
+                values.put(measurement.getStatistic().getTagValueRepresentation(), measurement.getValue());
+            }
+            meters.computeIfAbsent(meter.getId().getName(), n -> new ArrayList<>()).add(values);
+        }
+        report.put("meters", meters);
+        return report;
+    }
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Shares thread, memory and temporary disk budgets between runs in the same process. A run asks for a grant sized
+ * from its expected record count and holds it while it downloads, sorts and diffs. Waiting runs are granted largest
+ * first, and smaller runs start alongside in what is left, but none ahead of a larger run still waiting for room, so
+ * a stream of small runs cannot starve a large one. No grant exceeds a budget, so a run asking for more than a whole
+ * budget is given all of it, and runs alone.
+ */
+@Slf4j
+public class RunScheduler {
+
+    /**
+     * Estimated sort memory per record, with its share of the chunk index.
+     */
+    static final long SORT_BYTES_PER_RECORD = 64;
+    /**
+     * Estimated disk per record: its sorted runs and its row in the new snapshot.
+     */
+    static final long DISK_BYTES_PER_RECORD = 96;
+    static final long MIN_MEMORY_BYTES = 64L << 20;
+
+    @Getter
+    private final int threads;
+    @Getter
+    private final long memoryBytes;
+    @Getter
+    private final long diskBytes;
+    private int usedThreads;
+    private long usedMemory;
+    private long usedDisk;
+    private final List<Grant> waiting = new ArrayList<>();
+
+    public RunScheduler(int threads, long memoryBytes, long diskBytes) {
+        this.threads = Math.max(1, threads);
+        this.memoryBytes = memoryBytes;
+        this.diskBytes = diskBytes;
+    }
+
+    @Getter
+    public class Grant implements AutoCloseable {
+        private final String name;
+        private final int threads;
+        private final long memoryBytes;
+        private final long diskBytes;
+        private boolean granted;
+        private boolean released;
+
+        Grant(String name, int threads, long memoryBytes, long diskBytes) {
+            this.name = name;
+            this.threads = Math.max(1, Math.min(threads, RunScheduler.this.threads));
+            this.memoryBytes = Math.min(memoryBytes, RunScheduler.this.memoryBytes);
+            this.diskBytes = Math.min(diskBytes, RunScheduler.this.diskBytes);
+        }
+
+        /**
+         * Waits until this is granted. Giving up on it while waiting withdraws the request, or gives the grant back
+         * if it came in the meantime, as the caller then never has it to close.
+         */
+        public Grant await() throws InterruptedException {
+            synchronized (RunScheduler.this) {
+                if (!granted) {
+                    log.info("{} waiting for {} threads, {}MB memory and {}MB disk", name, threads,
+                            memoryBytes >> 20, diskBytes >> 20);
+                }
+                try {
+                    while (!granted) {
+                        RunScheduler.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    if (granted) {
+                        release(this);
+                    } else if (waiting.remove(this)) {
+                        dispatch();
+                    }
+                    throw e;
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Requests a grant for a run of this many records: memory for sorting them all in one chunk, threads in the
+     * same proportion of the thread budget, and disk for its runs and snapshot.
+     */
+    public Grant request(String name, long records) {
+        long memory = Math.max(MIN_MEMORY_BYTES, records * SORT_BYTES_PER_RECORD);
+        int runThreads = (int) Math.ceil((double) threads * Math.min(memory, memoryBytes) / memoryBytes);
+        return request(name, runThreads, memory, records * DISK_BYTES_PER_RECORD);
+    }
+
+    /**
+     * Queues a request, granted once it fits in what the other grants leave and no larger waiting one does.
+     * Requests queued together are granted largest first.
+     */
+    public synchronized Grant request(String name, int threads, long memoryBytes, long diskBytes) {
+        Grant grant = new Grant(name, threads, memoryBytes, diskBytes);
+        waiting.add(grant);
+        dispatch();
+        return grant;
+    }
+
+    public Grant acquire(String name, int threads, long memoryBytes, long diskBytes) throws InterruptedException {
+        return request(name, threads, memoryBytes, diskBytes).await();
+    }
+
+    /**
+     * Grants what fits, largest first, up to the first that does not.
+     */
+    private void dispatch() {
+        waiting.sort(Comparator.comparingLong((Grant g) -> g.memoryBytes).thenComparingLong(g -> g.diskBytes)
+                .thenComparingInt(g -> g.threads).reversed());
+        boolean any = false;
+        for (int i = 0; i < waiting.size(); i++) {
+            Grant grant = waiting.get(i);
+            if (usedThreads + grant.threads > threads || usedMemory + grant.memoryBytes > memoryBytes ||
+                    usedDisk + grant.diskBytes > diskBytes) {
+                break;
+            }
+            usedThreads += grant.threads;
+            usedMemory += grant.memoryBytes;
+            usedDisk += grant.diskBytes;
+            grant.granted = true;
+            waiting.remove(i--);
+            any = true;
+            log.info("{} granted {} threads, {}MB memory and {}MB disk", grant.name, grant.threads,
+                    grant.memoryBytes >> 20, grant.diskBytes >> 20);
+        }
+        if (any) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void release(Grant grant) {
+        if (!grant.granted || grant.released) {
+            return;
+        }
+        grant.released = true;
+        usedThreads -= grant.threads;
+        usedMemory -= grant.memoryBytes;
+        usedDisk -= grant.diskBytes;
+        dispatch();
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+}
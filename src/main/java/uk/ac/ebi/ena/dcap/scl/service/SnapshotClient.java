@@ -15,35 +15,47 @@
  ******************************************************************************/
 package uk.ac.ebi.ena.dcap.scl.service;
 
-import com.github.davidmoten.bigsorter.Serializer;
-import com.github.davidmoten.bigsorter.Sorter;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.springframework.stereotype.Component;
+import uk.ac.ebi.ena.dcap.scl.diff.BlockRing;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
 import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshotWriter;
+import uk.ac.ebi.ena.dcap.scl.snapshot.ManifestWriter;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+import uk.ac.ebi.ena.dcap.scl.sort.RowSink;
+import uk.ac.ebi.ena.dcap.scl.sort.RunCheckpoint;
+import uk.ac.ebi.ena.dcap.scl.sort.SortStats;
 
 import java.io.*;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 @Component
 @Slf4j
 public class SnapshotClient {
 
-    static final String PORTAL_API_URL = "https://www.ebi.ac.uk/ena/portal/api/search?result=%s&fields=%s";
-
-
-    static final String LIVELIST_URL = "https://www.ebi.ac.uk/ena/browser/api/livelist/%s?fields=%s";
+    static final String BROWSER_API_BASE = "https://www.ebi.ac.uk/ena/browser/api";
+    static final String SEARCH_PATH = "/search?result=%s&fields=%s";
+    static final String LIVELIST_PATH = "/livelist/%s?fields=%s";
     static final String PARENT_ACCESSION = "parent_accession";
     static final String ACCESSION = "accession";
     static final String LAST_UPDATED = "last_updated";
@@ -51,7 +63,7 @@ public class SnapshotClient {
 //    @Autowired
 //    CountClient countClient;
 
-    private static String getFields(String resultId, boolean includeParentAccession) {
+    static String getFields(String resultId, boolean includeParentAccession) {
         String defaultFields;
         if (includeParentAccession && resultId.equalsIgnoreCase("coding") ||
                 resultId.equalsIgnoreCase("noncoding")) {
@@ -63,73 +75,354 @@ public class SnapshotClient {
         return defaultFields;
     }
 
-    public static void bigSortFile(File infile, File outfile) {
-        Serializer<CSVRecord> serializer =
-                Serializer.csv(
-                        CSVFormat
-                                .DEFAULT
-                                .withFirstRecordAsHeader()
-                                .withDelimiter('\t'),
-                        StandardCharsets.UTF_8);
-        Comparator<CSVRecord> comparator = (x, y) -> {
-            String a = (x.get("accession"));
-            String b = (y.get("accession"));
-            return a.compareTo(b);
-        };
-        Sorter
-                // set both serializer and natural comparator
-                .serializer(serializer)
-                .comparator(comparator)
-                .input(infile)
-                .output(outfile)
-                .sort();
+    /**
+     * Roots of the Portal API and the Browser API every request goes to, to point runs at a mirror or a local
+     * stand-in.
+     */
+    static String portalApiBase = PartitionedFetcher.PORTAL_API_BASE;
+    static String browserApiBase = BROWSER_API_BASE;
+
+    public static void setPortalApiBase(String base) {
+        portalApiBase = StringUtils.isBlank(base) ? PartitionedFetcher.PORTAL_API_BASE :
+                StringUtils.stripEnd(base, "/");
+    }
+
+    public static void setBrowserApiBase(String base) {
+        browserApiBase = StringUtils.isBlank(base) ? BROWSER_API_BASE : StringUtils.stripEnd(base, "/");
+    }
+
+    /**
+     * Memory the sorter may use for in-memory runs, and the number of threads sorting them.
+     */
+    static long sortMemoryBytes = ExternalSorter.defaultMemoryBudget();
+    static int sortThreads = Runtime.getRuntime().availableProcessors();
+
+    public static void setSortMemoryBytes(long bytes) {
+        sortMemoryBytes = bytes > 0 ? bytes : ExternalSorter.defaultMemoryBudget();
+    }
+
+    public static void setSortThreads(int threads) {
+        sortThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The share of a {@link RunScheduler} the run on this thread was granted, which then bounds its sorts instead.
+     */
+    private static final ThreadLocal<RunScheduler.Grant> runGrant = new ThreadLocal<>();
+
+    static void setRunGrant(RunScheduler.Grant grant) {
+        if (grant == null) {
+            runGrant.remove();
+        } else {
+            runGrant.set(grant);
+        }
+    }
+
+    static long sortMemoryBytes() {
+        RunScheduler.Grant grant = runGrant.get();
+        return grant == null ? sortMemoryBytes : grant.getMemoryBytes();
+    }
+
+    static int sortThreads() {
+        RunScheduler.Grant grant = runGrant.get();
+        return grant == null ? sortThreads : grant.getThreads();
+    }
+
+    /**
+     * Number of last_updated ranges fetched concurrently from the Portal API; 1 fetches the snapshot in one request.
+     */
+    static int fetchPartitions = 1;
+    static int fetchRetries = 3;
+    /**
+     * Whether a download keeps a checkpoint next to the snapshot and resumes from an existing one.
+     */
+    static boolean checkpoints = true;
+
+    public static void setFetchPartitions(int partitions) {
+        fetchPartitions = Math.max(1, partitions);
+    }
+
+    public static void setFetchRetries(int retries) {
+        fetchRetries = Math.max(0, retries);
+    }
+
+    public static void setCheckpoints(boolean enabled) {
+        checkpoints = enabled;
+    }
+
+    /**
+     * Compression of the sorter's run files.
+     */
+    static Codec sortCodec = Codec.NONE;
+
+    public static void setSortCodec(Codec codec) {
+        sortCodec = codec;
+    }
+
+    /**
+     * Whether a binary sidecar is written alongside the new snapshot.
+     */
+    static boolean binarySnapshots = false;
+
+    public static void setBinarySnapshots(boolean enabled) {
+        binarySnapshots = enabled;
+    }
+
+    /**
+     * Whether an uncompressed snapshot gets a block manifest, which lets the next run diff only the changed blocks.
+     */
+    static boolean manifests = true;
+
+    public static void setManifests(boolean enabled) {
+        manifests = enabled;
+    }
+
+    static boolean writesManifest(File snapshot) {
+        return manifests && Codec.forName(snapshot) == Codec.NONE;
+    }
+
+    /**
+     * Final merge of the fetched runs into the snapshot, and into its binary sidecar and block manifest when
+     * enabled.
+     */
+    public static void mergeSnapshot(FetchedSnapshot fetched, BlockRing ring) throws IOException {
+        File outputFile = fetched.getOutputFile();
+        SortStats stats = fetched.getSorter().getStats();
+        long spilled = stats.getSpillBytes().get();
+        // opened by the merge, so that a sidecar that cannot be created fails the ring as well
+        fetched.getSorter().merge(fetched.getRuns(), outputFile, ring, () -> sinks(outputFile));
+        fetched.getMetrics().merged(stats, stats.getSpillBytes().get() - spilled);
+    }
+
+    /**
+     * @return the sinks writing the enabled sidecars of a snapshot from its rows, or null if there are none
+     */
+    static RowSink sinks(File outputFile) throws IOException {
+        RowSink sidecar = null;
+        if (binarySnapshots) {
+            File binary = BinarySnapshot.sidecarFor(outputFile);
+            log.info("writing binary snapshot:{}", binary.getAbsolutePath());
+            sidecar = new BinarySnapshotWriter(binary);
+        }
+        RowSink manifest = writesManifest(outputFile) ? new ManifestWriter(outputFile) : null;
+        return RowSink.of(sidecar, manifest);
+    }
+
+    /**
+     * Whether the new snapshot is patched from the previous one with the records updated since, when few enough
+     * have been, instead of being fetched whole.
+     */
+    static boolean deltaFetch = false;
+    static double deltaMaxFraction = 0.2;
+
+    public static void setDeltaFetch(boolean enabled) {
+        deltaFetch = enabled;
+    }
+
+    public static void setDeltaMaxFraction(double fraction) {
+        deltaMaxFraction = fraction;
+    }
+
+    /**
+     * Writes the new snapshot by patching the previous one, if delta fetching is enabled and worth it.
+     *
+     * @return the new snapshot, or null if it has to be fetched whole
+     */
+    public static File patchLatestSnapshot(DataType dataType, File previousSnapshot, File outputFile, String query,
+                                           boolean includeParentAccession) throws Exception {
+        if (!deltaFetch) {
+            return null;
+        }
+        File patched = new DeltaFetcher(portalApiBase, deltaMaxFraction)
+                .fetch(dataType, previousSnapshot, outputFile, query, includeParentAccession);
+        if (patched != null) {
+            log.info("finished {} snapshot patch from ENA", dataType);
+        }
+        return patched;
+    }
+
+    static ExternalSorter sorter(long memoryBytes, int threads, File tempDir) {
+        ExternalSorter sorter = new ExternalSorter(memoryBytes, threads, tempDir);
+        sorter.setRunCodec(sortCodec);
+        return sorter;
+    }
+
+    @SneakyThrows
+    public static SortStats bigSortFile(File infile, File outfile) {
+        File tempDir = outfile.getAbsoluteFile().getParentFile();
+        return sorter(sortMemoryBytes(), sortThreads(), tempDir).sort(infile, outfile);
+    }
+
+    /**
+     * Sorted runs of a fetched snapshot, ready for the final merge into its .tsv.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class FetchedSnapshot {
+        private final ExternalSorter sorter;
+        private final ExternalSorter.Runs runs;
+        private final File outputFile;
+        private final RunMetrics metrics;
+
+        public FetchedSnapshot(ExternalSorter sorter, ExternalSorter.Runs runs, File outputFile) {
+            this(sorter, runs, outputFile, RunMetrics.none());
+        }
     }
 
     @SneakyThrows
     public static File getLatestSnapshot(DataType dataType, File outputFile, String query,
                                          boolean includeParentAccession) {
+        FetchedSnapshot fetched = fetchSortedRuns(dataType, outputFile, query, includeParentAccession);
+        if (fetched != null) {
+            log.info("merging {} sorted runs to:{}", fetched.getRuns().size(), outputFile.getAbsolutePath());
+            mergeSnapshot(fetched, null);
+            FetchCheckpoint.delete(FetchCheckpoint.fileFor(outputFile));
+        }
+        log.info("finished new {} snapshot IDs pull from ENA", dataType);
+        return outputFile;
+    }
+
+    /**
+     * Downloads the snapshot into sorted runs and checks the record count, leaving the final merge to the caller.
+     *
+     * @return null if the response had no content
+     */
+    public static FetchedSnapshot fetchSortedRuns(DataType dataType, File outputFile, String query,
+                                                  boolean includeParentAccession) {
+        return fetchSortedRuns(dataType, outputFile, query, includeParentAccession, null);
+    }
+
+    /**
+     * As {@link #fetchSortedRuns(DataType, File, String, boolean)}, also handing every downloaded row to onRows,
+     * possibly more than once if a partition is retried. Checkpoints are then neither used nor kept, as rows
+     * restored from one would not be handed on.
+     */
+    @SneakyThrows
+    public static FetchedSnapshot fetchSortedRuns(DataType dataType, File outputFile, String query,
+                                                  boolean includeParentAccession, Consumer<RecordBlock> onRows) {
+        if (fetchPartitions > 1) {
+            return new PartitionedFetcher(portalApiBase, fetchPartitions,
+                    PartitionedFetcher.PARTITION_START, fetchRetries)
+                    .fetchSortedRuns(dataType, outputFile, query, includeParentAccession, onRows);
+        }
         String req;
         if (StringUtils.isNotBlank(query)) {
-            req = String.format(PORTAL_API_URL, dataType.name().toLowerCase(), getFields(dataType.name(),
+            req = String.format(portalApiBase + SEARCH_PATH, dataType.name().toLowerCase(), getFields(dataType.name(),
                     includeParentAccession));
             req += "&query=" + query;
 
         } else {
-            req = String.format(LIVELIST_URL, dataType.name().toLowerCase(), getFields(dataType.name(),
-                    includeParentAccession));
+            req = String.format(browserApiBase + LIVELIST_PATH, dataType.name().toLowerCase(),
+                    getFields(dataType.name(), includeParentAccession));
         }
         URL url = new URL(req);
-
-        log.info("calling:{}", url);
-        CloseableHttpClient client = HttpClients.createDefault();
-        HttpGet httpGet = new HttpGet(url.toString());
-        try (CloseableHttpResponse response1 = client.execute(httpGet)) {
-            final HttpEntity entity = response1.getEntity();
-            if (entity != null) {
-                File unsortedFile = new File(outputFile.getAbsolutePath() + ".unsorted");
-                long count = 0;
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(entity.getContent()));
-                     BufferedWriter out = new BufferedWriter(new FileWriter(unsortedFile))) {
-                    log.info("writing response");
-                    String line = null;
-                    while ((line = in.readLine()) != null) {
-                        count++;
-                        out.write(line + "\n");
+        File checkpointFile = FetchCheckpoint.fileFor(outputFile);
+        FetchCheckpoint checkpoint = checkpoints && onRows == null ? FetchCheckpoint.load(checkpointFile, req) : null;
+        RunCheckpoint resume = checkpoint == null ? null : checkpoint.getStream();
+        ExternalSorter sorter = sorter(sortMemoryBytes(), sortThreads(),
+                outputFile.getAbsoluteFile().getParentFile());
+        RunMetrics metrics = RunMetrics.of(dataType);
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        ExternalSorter.Runs runs;
+        long count;
+        if (resume != null && resume.isComplete()) {
+            log.info("download of {} records already complete, skipping fetch", resume.getRows());
+            runs = resume.restore();
+            count = resume.getRows();
+        } else {
+            if (resume != null && resume.getLastRow() == null) {
+                log.info("checkpoint has no row to check a resumed download against, downloading from the start");
+                resume = restart(checkpoint);
+            }
+            log.info("calling:{}", url);
+            CloseableHttpClient client = HttpClients.createDefault();
+            runs = null;
+            while (runs == null) {
+                HttpGet httpGet = new HttpGet(url.toString());
+                // the range starts at the last checkpointed row, which the response has to repeat
+                byte[] lastRow = resume == null ? null : resume.getLastRow().getBytes(StandardCharsets.ISO_8859_1);
+                if (resume != null) {
+                    log.info("resuming download at byte {} after {} records", resume.getBytes(), resume.getRows());
+                    httpGet.setHeader(HttpHeaders.RANGE, "bytes=" + (resume.getBytes() - lastRow.length) + "-");
+                    if (checkpoint.getValidator() != null) {
+                        httpGet.setHeader(HttpHeaders.IF_RANGE, checkpoint.getValidator());
                     }
                 }
-                log.info("records fetched:{}", count);
-                final long countFromResults = CountClient.getCountFromResults(dataType.name().toLowerCase(), query);
-                if (count < countFromResults) {
-                    throw new Exception("Fetched record count " + count + "is lower than index count " + countFromResults);
+                try (CloseableHttpResponse response1 = client.execute(httpGet)) {
+                    final HttpEntity entity = response1.getEntity();
+                    if (entity == null) {
+                        return null;
+                    }
+                    try (InputStream in = metrics.download(entity.getContent())) {
+                        int status = response1.getStatusLine().getStatusCode();
+                        boolean restarted = false;
+                        if (resume != null && status != HttpStatus.SC_PARTIAL_CONTENT) {
+                            // changed since the checkpoint, or no range support: this is the whole response
+                            log.info("response is not the checkpointed one, downloading from the start");
+                            resume = restart(checkpoint);
+                        } else if (resume != null && !repeats(in, lastRow)) {
+                            log.info("resumed response does not repeat the checkpointed row, downloading again");
+                            resume = restart(checkpoint);
+                            restarted = true;
+                        }
+                        if (!restarted) {
+                            if (resume == null && checkpoint != null) {
+                                checkpoint.setValidator(validator(response1));
+                            }
+                            // runs are sorted and spilled by worker threads while the response is still streaming in
+                            log.info("sorting response into runs");
+                            runs = sorter.createRuns(in, resume, checkpoint == null ? null : cp -> {
+                                checkpoint.setStream(cp);
+                                checkpoint.save(checkpointFile);
+                            }, onRows);
+                        }
+                    }
                 }
-                log.info("sorting to:{}", outputFile.getAbsolutePath());
-                bigSortFile(unsortedFile, outputFile);
-                log.info("deleting unsorted file:{}", unsortedFile.getAbsolutePath());
-                Files.delete(unsortedFile.toPath());
             }
+            count = sorter.getStats().getRows();
+            metrics.downloaded(count, System.nanoTime() - startNanos, sorter.getStats());
         }
-        log.info("finished new {} snapshot IDs pull from ENA", dataType);
-        return outputFile;
+        log.info("records fetched:{} in {}ms", count, System.currentTimeMillis() - start);
+        final long countFromResults = CountClient.getCountFromResults(dataType.name().toLowerCase(), query);
+        metrics.fetched(count, countFromResults, System.nanoTime() - startNanos);
+        if (count < countFromResults) {
+            runs.delete();
+            FetchCheckpoint.delete(checkpointFile);
+            throw new Exception("Fetched record count " + count + "is lower than index count " + countFromResults);
+        }
+        return new FetchedSnapshot(sorter, runs, outputFile, metrics);
+    }
+
+    /**
+     * Drops the stream checkpoint and its runs, for a download that has to start again from the first byte.
+     */
+    private static RunCheckpoint restart(FetchCheckpoint checkpoint) throws IOException {
+        checkpoint.getStream().deleteRuns();
+        checkpoint.setStream(null);
+        checkpoint.setValidator(null);
+        return null;
+    }
+
+    /**
+     * @return whether in starts with expected, read from it
+     */
+    static boolean repeats(InputStream in, byte[] expected) throws IOException {
+        byte[] actual = new byte[expected.length];
+        return IOUtils.read(in, actual) == expected.length && Arrays.equals(actual, expected);
+    }
+
+    /**
+     * @return what a resumed request can send as If-Range: the strong ETag of the response, or else its
+     * Last-Modified date, or null if it has neither
+     */
+    static String validator(HttpResponse response) {
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        return lastModified == null ? null : lastModified.getValue();
     }
 
 }
@@ -0,0 +1,437 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.history.ChangeHistory;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.snapshot.AccessionIndex;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static uk.ac.ebi.ena.dcap.scl.MainRunner.DATE_FORMAT;
+
+/**
+ * Keeps running: fetches and compares a data type every interval, each run against the snapshot of the one before,
+ * and between runs answers queries on the latest snapshot from an {@link AccessionIndex}, so that a lookup needs
+ * neither a scan of the snapshot file nor a run of its own. The HTTP API, on the loopback interface only:
+ * <ul>
+ * <li>GET /status: the indexed snapshot, its record count, and the last run and its failure, if any, as JSON.</li>
+ * <li>GET /accessions/[accession]: the header and row of the accession, or 404.</li>
+ * <li>GET /accessions?prefix=&amp;from=&amp;to=&amp;limit=: the header and the rows of the accessions starting
+ * with prefix, or from from to before to, in order, at most limit of them (default 1000). If there are more, the
+ * X-Next-From header has the from of the next page.</li>
+ * <li>GET /changes?since=yyyyMMdd: the accessions listed by any run after the one of that date, each with
+ * new_or_updated if the latest snapshot has it, else deleted, in order. From the {@link ChangeHistory} when it has
+ * the runs, else from the change lists still in the output location.</li>
+ * </ul>
+ * A failed run is logged, and the index of the last good snapshot kept. A new index is built beside the old one,
+ * which queries in flight go on reading, so for a while both take their direct memory.
+ */
+@Slf4j
+public class SnapshotDaemon implements AutoCloseable {
+
+    static final int DEFAULT_LIMIT = 1000;
+    static final int HANDLER_THREADS = 4;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String NEW_OR_UPDATED = "new_or_updated";
+    private static final String DELETED = "deleted";
+
+    private final MainService service;
+    private final DataType dataType;
+    private final File outputLocation;
+    private final String query;
+    private final boolean includeParentAccession;
+    private final long intervalMillis;
+    private final Pattern changeList;
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newFixedThreadPool(HANDLER_THREADS);
+    private final ScheduledExecutorService runs = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snapshot-daemon-run");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object closed = new Object();
+    private volatile AccessionIndex index;
+    private volatile Instant indexedAt;
+    private volatile Instant lastRunStarted;
+    private volatile Instant lastRunEnded;
+    private volatile String lastRunFailure;
+
+    /**
+     * @param previousSnapshot the snapshot to start from when the output location has none of dataType
+     * @param port             0 for any free one
+     */
+    public SnapshotDaemon(MainService service, DataType dataType, File previousSnapshot, File outputLocation,
+                          String query, boolean includeParentAccession, int port, long intervalMillis)
+            throws IOException {
+        this.service = service;
+        this.dataType = dataType;
+        this.outputLocation = outputLocation;
+        this.query = query;
+        this.includeParentAccession = includeParentAccession;
+        this.intervalMillis = intervalMillis;
+        String type = Pattern.quote(dataType.name().toLowerCase());
+        changeList = Pattern.compile(type + "_(\\d{8})_(new-or-updated|deleted)(_\\d+)?\\.tsv(\\.gz|\\.zst)?");
+        File latest = latestSnapshot(outputLocation, dataType);
+        if (latest == null) {
+            latest = previousSnapshot;
+            if (!latest.exists()) {
+                log.info("Previous snapshot:{} does not exist.", latest.getPath());
+                latest.createNewFile();
+            }
+        }
+        if (BinarySnapshot.isBinary(latest)) {
+            throw new IllegalArgumentException("a daemon starts from a TSV snapshot, export " + latest.getPath() +
+                    " with --convert");
+        }
+        index(latest);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(handlers);
+        server.createContext("/status", exchange -> handle(exchange, this::status));
+        server.createContext("/accessions", exchange -> handle(exchange, this::accessions));
+        server.createContext("/changes", exchange -> handle(exchange, this::changes));
+    }
+
+    /**
+     * The latest uncompressed or compressed TSV snapshot of dataType in outputLocation, by the date in its name.
+     */
+    static File latestSnapshot(File outputLocation, DataType dataType) {
+        Pattern snapshot = Pattern.compile(Pattern.quote(dataType.name().toLowerCase()) +
+                "_\\d{8}\\.tsv(\\.gz|\\.zst)?");
+        File[] files = outputLocation.listFiles((dir, name) -> snapshot.matcher(name).matches());
+        File latest = null;
+        for (File file : files == null ? new File[0] : files) {
+            if (latest == null || MainService.snapshotName(file).compareTo(MainService.snapshotName(latest)) > 0) {
+                latest = file;
+            }
+        }
+        return latest;
+    }
+
+    private void index(File snapshot) throws IOException {
+        index = AccessionIndex.load(snapshot);
+        indexedAt = Instant.now();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Starts answering queries, and runs from when the indexed snapshot is an interval old.
+     */
+    public void start() {
+        server.start();
+        long age = System.currentTimeMillis() - index.getSnapshot().lastModified();
+        long delay = index.size() == 0 ? 0 : Math.max(0, intervalMillis - age);
+        runs.scheduleAtFixedRate(this::run, delay, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("serving {} on http://localhost:{}, next run in {} minutes", index.getSnapshot().getName(),
+                getPort(), TimeUnit.MILLISECONDS.toMinutes(delay));
+    }
+
+    /**
+     * Fetches and compares against the indexed snapshot, then indexes the new one. Never throws, so that the next
+     * run is still scheduled.
+     */
+    void run() {
+        File previous = index.getSnapshot();
+        String name;
+        synchronized (DATE_FORMAT) {
+            name = dataType.name().toLowerCase() + "_" + DATE_FORMAT.format(new Date());
+        }
+        if (MainService.snapshotName(previous).equals(name)) {
+            // the new snapshot would overwrite the previous one
+            log.info("{} is already today's snapshot, skipping this run", previous.getName());
+            return;
+        }
+        lastRunStarted = Instant.now();
+        try {
+            File latest = service.fetchAndCompareOnce(dataType, previous, outputLocation, query,
+                    includeParentAccession);
+            index(latest);
+            lastRunFailure = null;
+        } catch (Throwable e) {
+            log.error("run failed, still serving " + previous.getName() + ":", e);
+            lastRunFailure = e.toString();
+        } finally {
+            lastRunEnded = Instant.now();
+        }
+    }
+
+    /**
+     * Blocks until closed.
+     */
+    public void await() throws InterruptedException {
+        synchronized (closed) {
+            while (!runs.isShutdown()) {
+                closed.wait();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+        runs.shutdownNow();
+        synchronized (closed) {
+            closed.notifyAll();
+        }
+    }
+
+    interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "GET only");
+                return;
+            }
+            handler.handle(exchange, params(exchange));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            log.error(exchange.getRequestURI() + " failed:", e);
+            if (exchange.getResponseCode() < 0) {
+                respond(exchange, 500, e.toString());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void status(HttpExchange exchange, Map<String, String> params) throws IOException {
+        AccessionIndex index = this.index;
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("dataType", dataType.name().toLowerCase());
+        status.put("snapshot", index.getSnapshot().getName());
+        status.put("records", index.size());
+        status.put("indexedAt", String.valueOf(indexedAt));
+        status.put("lastRunStarted", lastRunStarted == null ? null : lastRunStarted.toString());
+        status.put("lastRunEnded", lastRunEnded == null ? null : lastRunEnded.toString());
+        status.put("lastRunFailure", lastRunFailure);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        respond(exchange, 200, MAPPER.writeValueAsString(status));
+    }
+
+    private void accessions(HttpExchange exchange, Map<String, String> params) throws IOException {
+        AccessionIndex index = this.index;
+        String path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/accessions/")) {
+            String row = index.get(path.substring("/accessions/".length()));
+            if (row == null) {
+                respond(exchange, 404, "not in " + index.getSnapshot().getName());
+            } else {
+                respond(exchange, 200, index.getHeader() == null ? row : index.getHeader() + "\n" + row);
+            }
+            return;
+        }
+        String prefix = params.get("prefix");
+        String from = params.get("from");
+        String to = params.get("to");
+        long limit = params.containsKey("limit") ? Long.parseLong(params.get("limit")) : DEFAULT_LIMIT;
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive:" + limit);
+        }
+        long start = 0;
+        long end = index.size();
+        if (prefix != null) {
+            start = index.lowerBound(prefix);
+            end = index.prefixEnd(prefix);
+        }
+        if (from != null) {
+            start = Math.max(start, index.lowerBound(from));
+        }
+        if (to != null) {
+            end = Math.min(end, index.lowerBound(to));
+        }
+        long stop = Math.min(end, start + limit);
+        if (stop < end) {
+            exchange.getResponseHeaders().set("X-Next-From", index.accession(stop));
+        }
+        try (Writer out = stream(exchange)) {
+            if (index.getHeader() != null) {
+                out.write(index.getHeader());
+                out.write('\n');
+            }
+            for (long i = start; i < stop; i++) {
+                out.write(index.row(i));
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * A change list of a run, and the accession it is at.
+     */
+    private static final class ListCursor {
+        final BufferedReader reader;
+        final boolean deleted;
+        String accession;
+
+        ListCursor(File list, boolean deleted) throws IOException {
+            this.reader = new BufferedReader(new InputStreamReader(Codec.open(list), StandardCharsets.US_ASCII),
+                    1 << 16);
+            this.deleted = deleted;
+        }
+
+        boolean advance() throws IOException {
+            for (accession = reader.readLine(); accession != null && accession.isEmpty(); ) {
+                accession = reader.readLine();
+            }
+            return accession != null;
+        }
+    }
+
+    private void changes(HttpExchange exchange, Map<String, String> params) throws IOException {
+        AccessionIndex index = this.index;
+        String since = params.get("since");
+        if (since == null) {
+            throw new IllegalArgumentException("since=yyyyMMdd is required");
+        }
+        synchronized (DATE_FORMAT) {
+            try {
+                DATE_FORMAT.parse(since);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("since is not a yyyyMMdd date:" + since);
+            }
+        }
+        String latest = MainService.snapshotName(index.getSnapshot());
+        ChangeHistory history = new ChangeHistory(ChangeHistory.directoryFor(outputLocation, dataType.name()),
+                Codec.NONE);
+        String latestRun = ChangeHistory.runOf(latest);
+        if (history.exists() && history.covers(since, latestRun)) {
+            try (Writer out = stream(exchange)) {
+                out.write("accession\tchange\n");
+                history.query(since, latestRun, (accession, deleted) -> {
+                    out.write(accession);
+                    out.write('\t');
+                    out.write(deleted ? DELETED : NEW_OR_UPDATED);
+                    out.write('\n');
+                });
+            }
+            return;
+        }
+        List<File> lists = new ArrayList<>();
+        File[] files = outputLocation.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            Matcher matcher = changeList.matcher(file.getName());
+            // runs after the indexed one, if it failed part way, are not covered
+            if (matcher.matches() && matcher.group(1).compareTo(since) > 0 &&
+                    (dataType.name().toLowerCase() + "_" + matcher.group(1)).compareTo(latest) <= 0) {
+                lists.add(file);
+            }
+        }
+        Collections.sort(lists);
+        PriorityQueue<ListCursor> cursors = new PriorityQueue<>(Math.max(1, lists.size()),
+                (a, b) -> a.accession.compareTo(b.accession));
+        try {
+            for (File list : lists) {
+                ListCursor cursor = new ListCursor(list, list.getName().contains("_deleted"));
+                if (cursor.advance()) {
+                    cursors.add(cursor);
+                } else {
+                    cursor.reader.close();
+                }
+            }
+            try (Writer out = stream(exchange)) {
+                out.write("accession\tchange\n");
+                String last = null;
+                while (!cursors.isEmpty()) {
+                    ListCursor cursor = cursors.poll();
+                    String accession = cursor.accession;
+                    if (!accession.equals(last)) {
+                        out.write(accession);
+                        out.write('\t');
+                        out.write(index.contains(accession) ? NEW_OR_UPDATED : DELETED);
+                        out.write('\n');
+                        last = accession;
+                    }
+                    if (cursor.advance()) {
+                        cursors.add(cursor);
+                    } else {
+                        cursor.reader.close();
+                    }
+                }
+            }
+        } finally {
+            for (ListCursor cursor : cursors) {
+                cursor.reader.close();
+            }
+        }
+    }
+
+    private static Writer stream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values");
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.US_ASCII),
+                1 << 16);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+}
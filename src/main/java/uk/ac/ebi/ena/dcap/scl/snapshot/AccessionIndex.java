@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.PackedLine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sorted snapshot held off-heap for lookups by accession, and scans of a prefix or range of accessions. Each record
+ * has a fixed width entry of its packed accession, as in {@link PackedLine}, and the offset of its row, whose
+ * bytes are kept alongside. Both live in direct buffers, so a snapshot of any size adds nothing to the heap the
+ * collector has to trace; it needs about the size of the uncompressed snapshot plus 24 bytes per record of direct
+ * memory, see -XX:MaxDirectMemorySize. An index is immutable once loaded and safe to read from any thread.
+ */
+@Slf4j
+public final class AccessionIndex {
+
+    static final int ENTRY_BYTES = 3 * Long.BYTES;
+    static final int ROW_CHUNK_BYTES = 1 << 30;
+    static final int ENTRY_CHUNK_BYTES = ENTRY_BYTES * (1 << 25);
+    static final int INITIAL_BYTES = 1 << 16;
+
+    @Getter
+    private final File snapshot;
+    @Getter
+    private final String header;
+    private final Chunks entries = new Chunks(ENTRY_CHUNK_BYTES);
+    private final Chunks rows = new Chunks(ROW_CHUNK_BYTES);
+    private long size;
+
+    private AccessionIndex(File snapshot, String header) {
+        this.snapshot = snapshot;
+        this.header = header;
+    }
+
+    /**
+     * Reads a sorted TSV snapshot, plain or compressed, into an index.
+     */
+    public static AccessionIndex load(File snapshot) throws IOException {
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Codec.open(snapshot),
+                StandardCharsets.US_ASCII), 1 << 16)) {
+            String line = reader.readLine();
+            String header = line != null && line.startsWith("accession") ? line : null;
+            AccessionIndex index = new AccessionIndex(snapshot, header);
+            if (header != null) {
+                line = reader.readLine();
+            }
+            for (; line != null; line = reader.readLine()) {
+                if (!line.isEmpty()) {
+                    index.add(line);
+                }
+            }
+            log.info("indexed {} records of:{} in {}ms, {}MB off-heap", index.size, snapshot.getName(),
+                    System.currentTimeMillis() - start, (index.entries.size + index.rows.size) >> 20);
+            return index;
+        }
+    }
+
+    private void add(String line) {
+        int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1 : line.length();
+        int tab = line.indexOf('\t');
+        int accEnd = tab < 0 || tab > end ? end : tab;
+        long hi = PackedLine.word(line, 0, accEnd);
+        long lo = PackedLine.word(line, PackedLine.WORD_BYTES, accEnd);
+        if (size > 0 && compare(size - 1, hi, lo, tail(line, accEnd)) >= 0) {
+            throw new IllegalArgumentException(snapshot.getName() + " is not sorted by accession at:" + line);
+        }
+        if (end > 0xffff) {
+            throw new IllegalArgumentException("row too long at:" + line.substring(0, accEnd));
+        }
+        long rowAt = rows.reserve(Short.BYTES + end);
+        ByteBuffer chunk = rows.chunk(rowAt).duplicate();
+        ((Buffer) chunk).position(rows.pos(rowAt));
+        chunk.putShort((short) end);
+        chunk.put(line.substring(0, end).getBytes(StandardCharsets.US_ASCII));
+        long entryAt = entries.reserve(ENTRY_BYTES);
+        chunk = entries.chunk(entryAt);
+        int pos = entries.pos(entryAt);
+        chunk.putLong(pos, hi);
+        chunk.putLong(pos + Long.BYTES, lo);
+        chunk.putLong(pos + 2 * Long.BYTES, rowAt);
+        size++;
+    }
+
+    private static String tail(String accession, int accEnd) {
+        return accEnd > PackedLine.PACKED_BYTES ? accession.substring(PackedLine.PACKED_BYTES, accEnd) : null;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private long entryAt(long i) {
+        return i / (ENTRY_CHUNK_BYTES / ENTRY_BYTES) * ENTRY_CHUNK_BYTES + i % (ENTRY_CHUNK_BYTES / ENTRY_BYTES) *
+                ENTRY_BYTES;
+    }
+
+    private long word(long i, int word) {
+        long at = entryAt(i);
+        return entries.chunk(at).getLong(entries.pos(at) + word * Long.BYTES);
+    }
+
+    /**
+     * The row of record i, as in the snapshot.
+     */
+    public String row(long i) {
+        long at = word(i, 2);
+        ByteBuffer chunk = rows.chunk(at).duplicate();
+        ((Buffer) chunk).position(rows.pos(at));
+        byte[] bytes = new byte[chunk.getShort() & 0xffff];
+        chunk.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    public String accession(long i) {
+        String row = row(i);
+        int tab = row.indexOf('\t');
+        return tab < 0 ? row : row.substring(0, tab);
+    }
+
+    private int compare(long i, long hi, long lo, String tail) {
+        int c = Long.compare(word(i, 0), hi);
+        if (c == 0) {
+            c = Long.compare(word(i, 1), lo);
+        }
+        if (c != 0 || (word(i, 1) & 0xff) == 0) {
+            // equal and both shorter than the packed bytes, so neither has a tail
+            return c;
+        }
+        String acc = accession(i);
+        return PackedLine.compare(0, 0, tail(acc, acc.length()), 0, 0, tail);
+    }
+
+    /**
+     * @return the first record whose accession is not before accession, or size if there is none
+     */
+    public long lowerBound(String accession) {
+        long hi = PackedLine.word(accession, 0, accession.length());
+        long lo = PackedLine.word(accession, PackedLine.WORD_BYTES, accession.length());
+        String tail = tail(accession, accession.length());
+        long from = 0, to = size;
+        while (from < to) {
+            long mid = (from + to) >>> 1;
+            if (compare(mid, hi, lo, tail) < 0) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * @return the row of accession, or null if the snapshot has none
+     */
+    public String get(String accession) {
+        long i = lowerBound(accession);
+        return i < size && accession(i).equals(accession) ? row(i) : null;
+    }
+
+    public boolean contains(String accession) {
+        return get(accession) != null;
+    }
+
+    /**
+     * @return the first record after all those whose accession starts with prefix
+     */
+    public long prefixEnd(String prefix) {
+        String after = successor(prefix);
+        return after == null ? size : lowerBound(after);
+    }
+
+    /**
+     * The first string after all those starting with prefix, or null if there is none.
+     */
+    static String successor(String prefix) {
+        StringBuilder next = new StringBuilder(prefix);
+        for (int i = next.length() - 1; i >= 0; i--) {
+            if (next.charAt(i) < 0x7f) {
+                next.setCharAt(i, (char) (next.charAt(i) + 1));
+                next.setLength(i + 1);
+                return next.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Bytes in direct buffers of up to chunkBytes each, an offset being chunkBytes times the buffer plus the position
+     * in it. A reservation never straddles two buffers. The last one grows by doubling, and the next is started once
+     * it is full.
+     */
+    static final class Chunks {
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private final int chunkBytes;
+        private long size;
+
+        Chunks(int chunkBytes) {
+            this.chunkBytes = chunkBytes;
+        }
+
+        /**
+         * @return the offset of n bytes, all in one buffer
+         */
+        long reserve(int n) {
+            int c = (int) (size / chunkBytes);
+            int pos = (int) (size % chunkBytes);
+            if (pos + n > chunkBytes) {
+                c++;
+                pos = 0;
+                size = (long) c * chunkBytes;
+            }
+            if (c == chunks.size()) {
+                chunks.add(ByteBuffer.allocateDirect(Math.min(chunkBytes, Math.max(INITIAL_BYTES, n))));
+            }
+            grow(c, pos + n);
+            long at = size;
+            size += n;
+            return at;
+        }
+
+        private void grow(int c, int capacity) {
+            ByteBuffer chunk = chunks.get(c);
+            if (chunk.capacity() < capacity) {
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(chunkBytes,
+                        Math.max(capacity, 2L * chunk.capacity())));
+                ByteBuffer old = chunk.duplicate();
+                old.clear();
+                grown.put(old);
+                grown.clear();
+                chunks.set(c, grown);
+            }
+        }
+
+        ByteBuffer chunk(long offset) {
+            return chunks.get((int) (offset / chunkBytes));
+        }
+
+        int pos(long offset) {
+            return (int) (offset % chunkBytes);
+        }
+    }
+}
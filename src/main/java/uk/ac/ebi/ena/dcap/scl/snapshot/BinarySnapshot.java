@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.diff.BlockRing;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.PackedLine;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary form of a sorted snapshot, written by {@link BinarySnapshotWriter} as a .snap sidecar of the TSV or on its
+ * own. Accessions and parent accessions are front-coded within blocks of {@link #BLOCK_ROWS} rows, dates are
+ * delta-encoded epoch days, and a sparse index of the first accession of each block allows seeking. Reading it
+ * skips all text parsing.
+ */
+@Slf4j
+public final class BinarySnapshot {
+
+    public static final String EXTENSION = ".snap";
+    static final byte[] MAGIC = "ENASNAP1".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] INDEX_MAGIC = "ENASNAPI".getBytes(StandardCharsets.US_ASCII);
+    static final int BLOCK_ROWS = 1024;
+    static final int DATE_NONE = 0;
+    static final int DATE_EMPTY = 1;
+    static final int DATE_DELTA = 2;
+
+    private BinarySnapshot() {
+    }
+
+    /**
+     * sequence_20240201.tsv and its compressed forms all get sequence_20240201.tsv.snap.
+     */
+    public static File sidecarFor(File snapshot) {
+        String path = snapshot.getPath();
+        String extension = Codec.forName(snapshot).getExtension();
+        return new File(path.substring(0, path.length() - extension.length()) + EXTENSION);
+    }
+
+    /**
+     * @return true for a complete binary snapshot; one whose writing was cut short has no index magic at its end
+     */
+    public static boolean isBinary(File file) throws IOException {
+        if (!file.isFile() || file.length() < MAGIC.length + 8 + INDEX_MAGIC.length) {
+            return false;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        byte[] indexMagic = new byte[INDEX_MAGIC.length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.readFully(magic);
+            in.seek(in.length() - indexMagic.length);
+            in.readFully(indexMagic);
+        }
+        return Arrays.equals(magic, MAGIC) && Arrays.equals(indexMagic, INDEX_MAGIC);
+    }
+
+    /**
+     * @return the binary form to read the snapshot from: the snapshot itself if it is binary, else a sidecar that is
+     * not older than it, else null
+     */
+    public static File find(File snapshot) throws IOException {
+        if (isBinary(snapshot)) {
+            return snapshot;
+        }
+        File sidecar = sidecarFor(snapshot);
+        if (isBinary(sidecar) && sidecar.lastModified() >= snapshot.lastModified()) {
+            return sidecar;
+        }
+        return null;
+    }
+
+    public static long readTo(File snapshot, BlockRing ring) {
+        return readTo(snapshot, null, null, ring);
+    }
+
+    /**
+     * Reads the rows with accessions in [from, to), either bound being open when null.
+     */
+    public static long readTo(File snapshot, String from, String to, BlockRing ring) {
+        log.info("reading binary {} from:{}", snapshot, from);
+        long count = 0;
+        byte[] toKey = to == null ? null : to.getBytes(StandardCharsets.US_ASCII);
+        try (BinarySnapshotReader reader = new BinarySnapshotReader(snapshot)) {
+            byte[] fromKey = null;
+            if (from != null) {
+                reader.seek(from);
+                fromKey = from.getBytes(StandardCharsets.US_ASCII);
+            }
+            RecordBlock block = ring.acquire();
+            while (reader.next()) {
+                if (fromKey != null) {
+                    if (reader.compareAcc(fromKey) < 0) {
+                        continue;
+                    }
+                    fromKey = null;
+                }
+                if (toKey != null && reader.compareAcc(toKey) >= 0) {
+                    break;
+                }
+                if (block.isFull()) {
+                    ring.publish(block);
+                    block = ring.acquire();
+                }
+                add(reader, block);
+                count++;
+            }
+            if (!block.isEmpty()) {
+                ring.publish(block);
+            }
+            log.info("{} read. closing:{}", count, snapshot.getName());
+            ring.close();
+        } catch (Throwable e) {
+            log.error(snapshot.getName() + " Error:", e);
+            ring.fail(e);
+        }
+        return count;
+    }
+
+    private static void add(BinarySnapshotReader reader, RecordBlock block) {
+        byte[] acc = reader.acc.bytes;
+        int length = reader.acc.length;
+        ByteBuffer b = ByteBuffer.wrap(acc);
+        String tail = length > PackedLine.PACKED_BYTES ? new String(acc, PackedLine.PACKED_BYTES,
+                length - PackedLine.PACKED_BYTES, StandardCharsets.US_ASCII) : null;
+        // fingerprinted from the same bytes as the TSV row
+        int columns = reader.columns();
+        block.add(PackedLine.word(b, 0, length), PackedLine.word(b, PackedLine.WORD_BYTES, length), tail,
+                reader.columnView, 0, columns);
+    }
+
+    /**
+     * Converts a sorted TSV snapshot, compressed or not.
+     *
+     * @return rows written
+     */
+    public static long fromTsv(File tsv, File binary) throws IOException {
+        try (InputStream in = new BufferedInputStream(Codec.open(tsv), 1 << 16);
+             BinarySnapshotWriter writer = new BinarySnapshotWriter(binary)) {
+            byte[] line = new byte[256];
+            int length = 0;
+            boolean first = true;
+            int c;
+            while (true) {
+                c = in.read();
+                if (c == '\n' || c < 0 && length > 0) {
+                    if (first && isHeader(line, length)) {
+                        writer.header(Arrays.copyOf(line, length > 0 && line[length - 1] == '\r' ? length - 1 :
+                                length));
+                    } else {
+                        writer.row(line, length);
+                    }
+                    first = false;
+                    length = 0;
+                }
+                if (c < 0) {
+                    break;
+                }
+                if (c != '\n') {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = (byte) c;
+                }
+            }
+            return writer.getRows();
+        }
+    }
+
+    private static boolean isHeader(byte[] line, int length) {
+        byte[] prefix = "accession".getBytes(StandardCharsets.US_ASCII);
+        return length >= prefix.length && Arrays.equals(Arrays.copyOf(line, prefix.length), prefix);
+    }
+
+    /**
+     * Exports a binary snapshot as the TSV it was written from, with the same CRLF record separators; compressed
+     * if the TSV name asks for it.
+     *
+     * @return rows written
+     */
+    public static long toTsv(File binary, File tsv) throws IOException {
+        long count = 0;
+        try (BinarySnapshotReader reader = new BinarySnapshotReader(binary);
+             OutputStream out = new BufferedOutputStream(Codec.forName(tsv).create(tsv, false), 1 << 20)) {
+            if (reader.getHeader() != null) {
+                out.write(reader.getHeader().getBytes(StandardCharsets.US_ASCII));
+                out.write(ExternalSorter.RECORD_SEPARATOR);
+            }
+            while (reader.next()) {
+                int columns = reader.columns();
+                out.write(reader.acc.bytes, 0, reader.acc.length);
+                out.write(reader.columnBytes, 0, columns);
+                out.write(ExternalSorter.RECORD_SEPARATOR);
+                count++;
+            }
+        }
+        return count;
+    }
+}
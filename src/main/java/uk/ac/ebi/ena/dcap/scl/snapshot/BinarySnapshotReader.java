@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import uk.ac.ebi.ena.dcap.scl.model.LastUpdated;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot.*;
+
+/**
+ * Decodes a binary snapshot row by row. The sparse index of first accessions is loaded on open, so reading can
+ * start at the block holding any accession.
+ */
+public class BinarySnapshotReader implements Closeable {
+
+    private final FileChannel channel;
+    private final byte[] header;
+    private final boolean parentColumn;
+    private final long indexOffset;
+    private final long[] blockOffsets;
+    private final byte[][] firstAccessions;
+    private DataInputStream in;
+    private long position;
+    private int blockRows;
+    private int previousDate;
+
+    final Column acc = new Column();
+    final Column parent = new Column();
+    int dateCode;
+    int date;
+    byte[] columnBytes = new byte[64];
+    ByteBuffer columnView = ByteBuffer.wrap(columnBytes);
+    private int formattedDate = LastUpdated.NO_DATE;
+    private byte[] dateBytes;
+
+    public BinarySnapshotReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            DataInputStream tail = open(size - 8 - INDEX_MAGIC.length);
+            indexOffset = tail.readLong();
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            tail.readFully(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC)) {
+                throw new IOException(file + " is not a complete binary snapshot");
+            }
+            DataInputStream head = open(0);
+            magic = new byte[MAGIC.length];
+            head.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a binary snapshot");
+            }
+            header = new byte[(int) readVarint(head)];
+            head.readFully(header);
+            parentColumn = head.readByte() != 0;
+
+            DataInputStream index = open(indexOffset);
+            int blocks = (int) readVarint(index);
+            blockOffsets = new long[blocks];
+            firstAccessions = new byte[blocks][];
+            for (int i = 0; i < blocks; i++) {
+                readVarint(index);
+                blockOffsets[i] = index.readLong();
+                firstAccessions[i] = new byte[(int) readVarint(index)];
+                index.readFully(firstAccessions[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        seekBlock(0);
+    }
+
+    private DataInputStream open(long at) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(at)), 1 << 16));
+    }
+
+    /**
+     * @return the header line, or null if the snapshot had none
+     */
+    public String getHeader() {
+        return header.length == 0 ? null : new String(header, StandardCharsets.US_ASCII);
+    }
+
+    public boolean hasParentColumn() {
+        return parentColumn;
+    }
+
+    /**
+     * Positions the reader at the start of the block that would hold the accession: the last block whose first
+     * accession is not greater than it. Rows before the accession in that block still have to be skipped.
+     */
+    public void seek(String accession) throws IOException {
+        byte[] key = accession.getBytes(StandardCharsets.US_ASCII);
+        int lo = 0, hi = firstAccessions.length - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(firstAccessions[mid], firstAccessions[mid].length, key) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        seekBlock(found);
+    }
+
+    private void seekBlock(int block) throws IOException {
+        position = block < blockOffsets.length ? blockOffsets[block] : indexOffset;
+        in = open(position);
+        blockRows = 0;
+    }
+
+    /**
+     * @return false at the end of the snapshot
+     */
+    public boolean next() throws IOException {
+        if (blockRows == 0) {
+            if (position >= indexOffset) {
+                return false;
+            }
+            blockRows = (int) readVarint(in);
+            long payload = readVarint(in);
+            position += BinarySnapshotWriter.varintLength(blockRows) + BinarySnapshotWriter.varintLength(payload) +
+                    payload;
+            acc.length = 0;
+            parent.length = 0;
+            previousDate = 0;
+        }
+        acc.read(in);
+        if (parentColumn) {
+            parent.read(in);
+        }
+        long code = readVarint(in);
+        dateCode = code < DATE_DELTA ? (int) code : DATE_DELTA;
+        if (code >= DATE_DELTA) {
+            long v = code - DATE_DELTA;
+            date = (int) (previousDate + ((v >>> 1) ^ -(v & 1)));
+            previousDate = date;
+        }
+        blockRows--;
+        return true;
+    }
+
+    /**
+     * Lays out the current row's columns after the accession in columnBytes as they were in the TSV, each with
+     * its leading tab.
+     *
+     * @return their length
+     */
+    int columns() {
+        int length = 0;
+        if (parentColumn) {
+            ensureColumnBytes(1 + parent.length);
+            columnBytes[length++] = '\t';
+            System.arraycopy(parent.bytes, 0, columnBytes, length, parent.length);
+            length += parent.length;
+        }
+        if (dateCode != DATE_NONE) {
+            ensureColumnBytes(length + 1 + LastUpdated.WIDTH);
+            columnBytes[length++] = '\t';
+        }
+        if (dateCode == DATE_DELTA) {
+            if (date != formattedDate) {
+                dateBytes = LastUpdated.format(date).getBytes(StandardCharsets.US_ASCII);
+                formattedDate = date;
+            }
+            System.arraycopy(dateBytes, 0, columnBytes, length, dateBytes.length);
+            length += dateBytes.length;
+        }
+        return length;
+    }
+
+    private void ensureColumnBytes(int length) {
+        if (length > columnBytes.length) {
+            columnBytes = Arrays.copyOf(columnBytes, Math.max(length, columnBytes.length * 2));
+            columnView = ByteBuffer.wrap(columnBytes);
+        }
+    }
+
+    /**
+     * Compares the current accession with key as unsigned bytes.
+     */
+    public int compareAcc(byte[] key) {
+        return compare(acc.bytes, acc.length, key);
+    }
+
+    private static int compare(byte[] a, int aLength, byte[] b) {
+        int n = Math.min(aLength, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLength - b.length;
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * A front-coded column, rebuilt from the bytes shared with the previous row and the new suffix.
+     */
+    static final class Column {
+        byte[] bytes = new byte[64];
+        int length;
+
+        void read(DataInput in) throws IOException {
+            int shared = (int) readVarint(in);
+            int suffix = (int) readVarint(in);
+            if (shared + suffix > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(shared + suffix, bytes.length * 2));
+            }
+            in.readFully(bytes, shared, suffix);
+            length = shared + suffix;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import uk.ac.ebi.ena.dcap.scl.model.LastUpdated;
+import uk.ac.ebi.ena.dcap.scl.sort.RowSink;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot.*;
+
+/**
+ * Writes sorted snapshot rows in the binary snapshot format. The layout, with or without parent_accession, is taken
+ * from the first row.
+ *
+ * <pre>
+ * file   := MAGIC varint(headerLength) header byte(parentColumn) block* index long(indexOffset) INDEX_MAGIC
+ * block  := varint(rows) varint(payloadLength) row*
+ * row    := text(accession) [text(parent_accession)] varint(date)
+ * text   := varint(bytes shared with the previous row of the block) varint(suffixLength) suffix
+ * date   := 0 no date column | 1 empty date | 2 + zigzag(epoch day - previous epoch day of the block)
+ * index  := varint(blocks) (varint(rows) long(offset) varint(length) firstAccession)*
+ * </pre>
+ */
+public class BinarySnapshotWriter implements RowSink {
+
+    private final File file;
+    private final DataOutputStream out;
+    private long offset;
+    private byte[] header;
+    private boolean started;
+    private boolean parentColumn;
+
+    private final Block block = new Block();
+    private final Block index = new Block();
+    private int blocks;
+    private long blockOffset;
+    private byte[] blockFirst;
+    private final Text acc = new Text();
+    private final Text parent = new Text();
+    private int previousDate;
+    private long rows;
+
+    public BinarySnapshotWriter(File file) throws IOException {
+        this.file = file;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+    }
+
+    @Override
+    public void header(byte[] header) {
+        this.header = header == null ? null : header.clone();
+    }
+
+    @Override
+    public void row(byte[] line, int length) throws IOException {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        int tab1 = indexOf(line, 0, length);
+        int tab2 = tab1 < 0 ? -1 : indexOf(line, tab1 + 1, length);
+        if (!started) {
+            start(tab2 >= 0);
+        } else if (parentColumn != tab2 >= 0 || tab2 >= 0 && indexOf(line, tab2 + 1, length) >= 0) {
+            throw new IllegalArgumentException("row does not match the snapshot columns:" +
+                    new String(line, 0, length));
+        }
+        if (block.rows == BLOCK_ROWS) {
+            flushBlock();
+        }
+        int accEnd = tab1 < 0 ? length : tab1;
+        if (block.rows == 0) {
+            blockOffset = offset;
+            blockFirst = Arrays.copyOf(line, accEnd);
+        }
+        acc.write(block, line, 0, accEnd);
+        int dateFrom = tab1 + 1;
+        if (parentColumn) {
+            parent.write(block, line, tab1 + 1, tab2);
+            dateFrom = tab2 + 1;
+        }
+        if (tab1 < 0) {
+            block.varint(DATE_NONE);
+        } else if (dateFrom == length) {
+            block.varint(DATE_EMPTY);
+        } else {
+            int date = LastUpdated.parse(ByteBuffer.wrap(line), dateFrom, length);
+            block.varint(DATE_DELTA + zigzag((long) date - previousDate));
+            previousDate = date;
+        }
+        block.rows++;
+        rows++;
+    }
+
+    private void start(boolean parentColumn) throws IOException {
+        this.parentColumn = parentColumn;
+        started = true;
+        out.write(MAGIC);
+        byte[] h = header == null ? new byte[0] : header;
+        writeVarint(out, h.length);
+        out.write(h);
+        out.writeByte(parentColumn ? 1 : 0);
+        offset = MAGIC.length + varintLength(h.length) + h.length + 1;
+    }
+
+    private void flushBlock() throws IOException {
+        if (block.rows == 0) {
+            return;
+        }
+        index.varint(block.rows);
+        index.fixed(blockOffset);
+        index.varint(blockFirst.length);
+        index.bytes(blockFirst, 0, blockFirst.length);
+        blocks++;
+        writeVarint(out, block.rows);
+        writeVarint(out, block.size);
+        out.write(block.data, 0, block.size);
+        offset += varintLength(block.rows) + varintLength(block.size) + block.size;
+        block.rows = 0;
+        block.size = 0;
+        acc.length = 0;
+        parent.length = 0;
+        previousDate = 0;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!started) {
+                start(false);
+            }
+            flushBlock();
+            long indexOffset = offset;
+            writeVarint(out, blocks);
+            out.write(index.data, 0, index.size);
+            out.writeLong(indexOffset);
+            out.write(INDEX_MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Removes the incomplete file, so that it is never taken for a snapshot.
+     */
+    @Override
+    public void abort() throws IOException {
+        out.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static int indexOf(byte[] line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == '\t') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static void writeVarint(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static int varintLength(long v) {
+        int n = 1;
+        while ((v & ~0x7fL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Growable byte buffer a block or the index is assembled in.
+     */
+    private static final class Block {
+        byte[] data = new byte[1 << 16];
+        int size;
+        int rows;
+
+        void ensure(int n) {
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+            }
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                data[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+
+        void fixed(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void bytes(byte[] b, int from, int length) {
+            ensure(length);
+            System.arraycopy(b, from, data, size, length);
+            size += length;
+        }
+    }
+
+    /**
+     * The previous value of a front-coded column.
+     */
+    private static final class Text {
+        byte[] bytes = new byte[64];
+        int length;
+
+        void write(Block block, byte[] line, int from, int to) {
+            int n = to - from;
+            int shared = 0;
+            int max = Math.min(length, n);
+            while (shared < max && bytes[shared] == line[from + shared]) {
+                shared++;
+            }
+            block.varint(shared);
+            block.varint(n - shared);
+            block.bytes(line, from + shared, n - shared);
+            if (n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(n, bytes.length * 2));
+            }
+            System.arraycopy(line, from, bytes, 0, n);
+            length = n;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hashes of the blocks of a sorted TSV snapshot, kept next to it as [snapshot].manifest. A block ends before any
+ * accession whose hash has its low {@link #LEAF_BITS} bits clear, so boundaries depend only on the accessions
+ * around them and two snapshots that agree on a stretch of rows cut it into the same blocks. The blocks are the
+ * leaves of a tree whose inner nodes are cut the same way on higher bits of their first accession's hash; the tree
+ * is rebuilt from the leaves when the manifest is loaded and checked against the stored root.
+ */
+@Data
+@NoArgsConstructor
+@Slf4j
+public class BlockManifest {
+
+    public static final String EXTENSION = ".manifest";
+    /**
+     * Blocks of 8192 rows on average.
+     */
+    static final int LEAF_BITS = 13;
+    static final long LEAF_MASK = (1L << LEAF_BITS) - 1;
+    /**
+     * A cap on block size in case no accession hashes to a boundary for a long stretch.
+     */
+    static final long MAX_LEAF_ROWS = 16L << LEAF_BITS;
+    /**
+     * Inner nodes of 32 children on average.
+     */
+    static final int FANOUT_BITS = 5;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Length of the snapshot the manifest was written with; a manifest of any other length is ignored.
+     */
+    private long snapshotBytes;
+    private String root;
+    private List<Leaf> leaves = new ArrayList<>();
+
+    /**
+     * A block of rows: its first accession, row count, byte range in the snapshot and hash of its rows.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Leaf {
+        private String first;
+        private long rows;
+        private long offset;
+        private long bytes;
+        private String hash;
+    }
+
+    /**
+     * A node of the block tree. Level 0 nodes are the leaves; every node covers the leaves [from, to).
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Node {
+        private final int level;
+        private final String first;
+        private final String hash;
+        private final int from;
+        private final int to;
+        private final List<Node> children;
+    }
+
+    public static File fileFor(File snapshot) {
+        return new File(snapshot.getPath() + EXTENSION);
+    }
+
+    /**
+     * @return the manifest of snapshot if there is one that is not older than it and was written for a snapshot of
+     * its length, else null
+     */
+    public static BlockManifest find(File snapshot) {
+        File file = fileFor(snapshot);
+        if (!file.isFile() || file.lastModified() < snapshot.lastModified()) {
+            return null;
+        }
+        try {
+            BlockManifest manifest = MAPPER.readValue(file, BlockManifest.class);
+            if (manifest.snapshotBytes == snapshot.length() && manifest.rootHash().equals(manifest.root)) {
+                return manifest;
+            }
+            log.info("ignoring manifest:{} of another version of the snapshot", file.getAbsolutePath());
+        } catch (IOException e) {
+            log.warn("ignoring unreadable manifest:{}", file.getAbsolutePath(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Written to a temporary file first, so that a crash never leaves a half written manifest.
+     */
+    void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        MAPPER.writeValue(tmp, this);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the root of the block tree, or null for a snapshot without rows
+     */
+    public Node tree() {
+        List<Node> level = new ArrayList<>(leaves.size());
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.get(i);
+            level.add(new Node(0, leaf.first, leaf.hash, i, i + 1, Collections.emptyList()));
+        }
+        for (int height = 1; level.size() > 1; height++) {
+            // past the bits of the hash every node is a boundary of its own; put the rest under the root
+            boolean last = LEAF_BITS + FANOUT_BITS * height >= Long.SIZE;
+            List<Node> up = new ArrayList<>();
+            List<Node> group = new ArrayList<>();
+            for (Node node : level) {
+                if (!group.isEmpty() && !last && isBoundary(node.first, height)) {
+                    up.add(parent(height, group));
+                    group = new ArrayList<>();
+                }
+                group.add(node);
+            }
+            up.add(parent(height, group));
+            level = up;
+        }
+        return level.isEmpty() ? null : level.get(0);
+    }
+
+    String rootHash() {
+        Node tree = tree();
+        return tree == null ? "" : tree.hash;
+    }
+
+    private static boolean isBoundary(String first, int height) {
+        long mask = (1L << (FANOUT_BITS * height)) - 1;
+        byte[] acc = first.getBytes(StandardCharsets.US_ASCII);
+        return (keyHash(acc, acc.length) >>> LEAF_BITS & mask) == 0;
+    }
+
+    private static Node parent(int level, List<Node> children) {
+        Murmur3 hash = new Murmur3();
+        for (Node child : children) {
+            byte[] first = child.first.getBytes(StandardCharsets.US_ASCII);
+            byte[] childHash = child.hash.getBytes(StandardCharsets.US_ASCII);
+            hash.update(first, 0, first.length);
+            hash.update((byte) '\t');
+            hash.update(childHash, 0, childHash.length);
+            hash.update((byte) '\n');
+        }
+        Node first = children.get(0);
+        return new Node(level, first.first, hex(hash.digest()), first.from, children.get(children.size() - 1).to,
+                children);
+    }
+
+    /**
+     * FNV-1a of the accession, finished with the MurmurHash3 mix so that all of its bits are usable.
+     */
+    static long keyHash(byte[] acc, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= acc[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return Murmur3.fmix(h);
+    }
+
+    static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            out[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
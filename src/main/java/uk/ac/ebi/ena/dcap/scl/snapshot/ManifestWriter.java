@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+import uk.ac.ebi.ena.dcap.scl.sort.RowSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static uk.ac.ebi.ena.dcap.scl.snapshot.BlockManifest.*;
+
+/**
+ * Builds the {@link BlockManifest} of an uncompressed snapshot from the rows of the merge writing it, and saves it
+ * when the merge succeeds. Offsets count each row as written by the merge, with its CRLF separator.
+ */
+public class ManifestWriter implements RowSink {
+
+    private final File file;
+    private final BlockManifest manifest = new BlockManifest();
+    private final Murmur3 hash = new Murmur3();
+    private long offset;
+    private String leafFirst;
+    private long leafOffset;
+    private long leafRows;
+
+    public ManifestWriter(File snapshot) throws IOException {
+        file = fileFor(snapshot);
+        // a manifest of the snapshot being replaced must not outlive it
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public void header(byte[] header) {
+        if (header != null) {
+            offset += header.length + ExternalSorter.RECORD_SEPARATOR.length;
+        }
+    }
+
+    @Override
+    public void row(byte[] line, int length) {
+        int content = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+        int accEnd = 0;
+        while (accEnd < content && line[accEnd] != '\t') {
+            accEnd++;
+        }
+        if (leafRows > 0 && ((keyHash(line, accEnd) & LEAF_MASK) == 0 || leafRows >= MAX_LEAF_ROWS)) {
+            finishLeaf();
+        }
+        if (leafRows == 0) {
+            leafFirst = new String(line, 0, accEnd, StandardCharsets.US_ASCII);
+            leafOffset = offset;
+        }
+        hash.update(line, 0, content);
+        hash.update((byte) '\n');
+        leafRows++;
+        offset += length + ExternalSorter.RECORD_SEPARATOR.length;
+    }
+
+    private void finishLeaf() {
+        manifest.getLeaves().add(new Leaf(leafFirst, leafRows, leafOffset, offset - leafOffset,
+                hex(hash.digest())));
+        leafRows = 0;
+    }
+
+    /**
+     * Nothing is written before close, so there is nothing to release.
+     */
+    @Override
+    public void abort() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (leafRows > 0) {
+            finishLeaf();
+        }
+        manifest.setSnapshotBytes(offset);
+        manifest.setRoot(manifest.rootHash());
+        manifest.save(file);
+    }
+}
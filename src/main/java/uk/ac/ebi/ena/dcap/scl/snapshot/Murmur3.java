@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental MurmurHash3 x64 128 with seed 0, for hashing blocks of rows row by row at a fraction of the cost of a
+ * cryptographic digest.
+ */
+final class Murmur3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+    private long h1;
+    private long h2;
+    private long length;
+
+    void update(byte[] bytes, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, buf.remaining());
+            buf.put(bytes, off, n);
+            off += n;
+            len -= n;
+            if (!buf.hasRemaining()) {
+                consumeBlocks();
+            }
+        }
+    }
+
+    void update(byte b) {
+        buf.put(b);
+        if (!buf.hasRemaining()) {
+            consumeBlocks();
+        }
+    }
+
+    /**
+     * @return the 16 byte hash of everything given since the last digest, and resets
+     */
+    byte[] digest() {
+        consumeBlocks();
+        int rest = buf.position();
+        length += rest;
+        long k1 = 0, k2 = 0;
+        for (int i = rest - 1; i >= 8; i--) {
+            k2 = k2 << 8 | (buf.get(i) & 0xff);
+        }
+        for (int i = Math.min(rest, 8) - 1; i >= 0; i--) {
+            k1 = k1 << 8 | (buf.get(i) & 0xff);
+        }
+        if (rest > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (rest > 0) {
+            h1 ^= mixK1(k1);
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        byte[] hash = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(h1).putLong(h2).array();
+        h1 = 0;
+        h2 = 0;
+        length = 0;
+        buf.clear();
+        return hash;
+    }
+
+    private void consumeBlocks() {
+        int end = buf.position() & ~15;
+        for (int i = 0; i < end; i += 16) {
+            h1 ^= mixK1(buf.getLong(i));
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(buf.getLong(i + 8));
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        length += end;
+        int rest = buf.position() - end;
+        for (int i = 0; i < rest; i++) {
+            buf.put(i, buf.get(end + i));
+        }
+        buf.position(rest);
+    }
+
+    private static long mixK1(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    private static long mixK2(long k) {
+        k *= C2;
+        k = Long.rotateLeft(k, 33);
+        return k * C1;
+    }
+
+    static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
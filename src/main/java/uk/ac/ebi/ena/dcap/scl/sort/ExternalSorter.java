@@ -0,0 +1,820 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.sort;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import uk.ac.ebi.ena.dcap.scl.diff.BlockRing;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * External sorter for the snapshot TSV, ordering rows by the bytes of their first column. Input is cut into
+ * chunks that fit the memory budget; each chunk is sorted with a fork-join merge sort over row indexes and spilled
+ * as a run while the next chunk is read. Runs are then merged k-way through a {@link LoserTree}. A header line
+ * starting with "accession" is kept first.
+ */
+@Slf4j
+public class ExternalSorter {
+
+    /**
+     * Same record separator as the commons-csv output of the big-sorter this replaces.
+     */
+    public static final byte[] RECORD_SEPARATOR = {'\r', '\n'};
+    static final int MAX_FAN_IN = 256;
+    private static final int SEQUENTIAL_SORT = 8192;
+    private static final int NATURAL_RUN_ROWS = 64;
+    private static final byte[] HEADER_PREFIX = {'a', 'c', 'c', 'e', 's', 's', 'i', 'o', 'n'};
+
+    private final long memoryBudget;
+    private final int threads;
+    private final File tempDir;
+    @Getter
+    private final SortStats stats = new SortStats();
+    /**
+     * Compression of the run files spilled to tempDir.
+     */
+    @Setter
+    private Codec runCodec = Codec.NONE;
+
+    public ExternalSorter(long memoryBudget, int threads, File tempDir) {
+        this.memoryBudget = memoryBudget;
+        this.threads = Math.max(1, threads);
+        this.tempDir = tempDir;
+    }
+
+    public static long defaultMemoryBudget() {
+        return Math.max(64L << 20, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    public SortStats sort(File in, File out) throws IOException {
+        try (InputStream is = new FileInputStream(in)) {
+            return sort(is, out);
+        }
+    }
+
+    /**
+     * Sorts the stream to out. Runs are generated while the stream is being read, so when in is a download
+     * only the final merge remains once the last byte has arrived.
+     */
+    public SortStats sort(InputStream in, File out) throws IOException {
+        long start = System.currentTimeMillis();
+        Runs runs = createRuns(in);
+        stats.runMillis(System.currentTimeMillis() - start);
+        merge(runs, out);
+        log.info("sorted {} rows using {} runs, {} bytes spilled, runs:{}ms merge:{}ms", stats.getRows(),
+                stats.getRuns(), stats.getSpillBytes().get(), stats.getRunMillis(), stats.getMergeMillis());
+        return stats;
+    }
+
+    /**
+     * Sorted runs produced from one input, with the header line if the input had one.
+     */
+    public static class Runs {
+        byte[] header;
+        final List<File> files = new ArrayList<>();
+
+        public int size() {
+            return files.size();
+        }
+
+        /**
+         * @return the header line, or null if the input had none
+         */
+        public String getHeader() {
+            return header == null ? null : new String(header, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Runs of several inputs with the same layout, to be merged as one; the first header is kept.
+         */
+        public static Runs concat(List<Runs> parts) {
+            Runs all = new Runs();
+            for (Runs part : parts) {
+                if (all.header == null) {
+                    all.header = part.header;
+                }
+                all.files.addAll(part.files);
+            }
+            return all;
+        }
+
+        public void delete() throws IOException {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Cuts the input into sorted runs. Chunks that are already in order are not sorted, and a chunk that continues
+     * the ascending order of the previous run is appended to it, so an input that arrives sorted ends up as a
+     * single run. Other chunks are sorted by merging their natural ascending runs when these are long, or by a
+     * fork-join merge sort otherwise.
+     */
+    public Runs createRuns(InputStream in) throws IOException {
+        return createRuns(in, null, null);
+    }
+
+    /**
+     * Like {@link #createRuns(InputStream)}, but continues from resume when given, in which case in must start at
+     * byte resume.getBytes() of the input. Whenever every row up to some point of the input is in a run, a
+     * checkpoint of those runs goes to onCheckpoint. Run files are then not deleted on exit, so that a rerun can
+     * resume from them, but those past the last checkpoint are removed if the input fails.
+     */
+    public Runs createRuns(InputStream in, RunCheckpoint resume, Consumer<RunCheckpoint> onCheckpoint)
+            throws IOException {
+        return createRuns(in, resume, onCheckpoint, null);
+    }
+
+    /**
+     * Like {@link #createRuns(InputStream, RunCheckpoint, Consumer)}, also handing every row to onRows as packed
+     * blocks, in no particular order and from several threads at once. Blocks are reused once onRows returns.
+     */
+    public Runs createRuns(InputStream in, RunCheckpoint resume, Consumer<RunCheckpoint> onCheckpoint,
+                           Consumer<RecordBlock> onRows) throws IOException {
+        // row offsets, keys and the sort permutation take about as much again as the row bytes
+        int chunkBytes = (int) Math.min(Integer.MAX_VALUE - 16,
+                Math.max(1 << 12, memoryBudget / (2L * threads)));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Semaphore inFlight = new Semaphore(threads);
+        List<CompletableFuture<Void>> spills = new ArrayList<>();
+        Runs runs = resume == null ? new Runs() : resume.restore();
+        long rows = resume == null ? 0 : resume.getRows();
+        long offset = resume == null ? 0 : resume.getBytes();
+        Journal journal = onCheckpoint == null ? null : new Journal(resume, onCheckpoint);
+        try {
+            byte[] carry = new byte[0];
+            boolean first = resume == null;
+            OpenRun open = null;
+            while (true) {
+                inFlight.acquire();
+                Chunk chunk = new Chunk(chunkBytes);
+                boolean eof = chunk.fill(in, carry);
+                offset += chunk.size - carry.length;
+                if (first) {
+                    runs.header = chunk.takeHeader();
+                    if (journal != null) {
+                        journal.header(runs.header);
+                    }
+                    first = false;
+                }
+                carry = chunk.index(eof);
+                rows += chunk.count;
+                if (chunk.count > 0) {
+                    chunk.detectRuns();
+                    stats.chunk(chunk.naturalRuns);
+                    boolean append = chunk.naturalRuns == 1 && open != null &&
+                            compareKeys(chunk.data, chunk.starts[0], chunk.keyEnds[0] - chunk.starts[0],
+                                    open.lastKey, 0, open.lastKey.length) >= 0;
+                    if (append) {
+                        stats.appended();
+                    } else {
+                        File runFile = new File(tempDir, "sort-run-" + System.nanoTime() + "-" + runs.files.size() +
+                                ".tmp");
+                        if (journal == null) {
+                            runFile.deleteOnExit();
+                        }
+                        runs.files.add(runFile);
+                        open = new OpenRun(runFile, runs.files.size() - 1);
+                        spills.add(open.tail);
+                    }
+                    open.lastKey = chunk.key(chunk.maxRow);
+                    OpenRun target = open;
+                    int index = spills.lastIndexOf(target.tail);
+                    int chunkSeq = journal == null ? -1 :
+                            journal.add(offset - carry.length, rows, target, chunk.lastRow());
+                    target.tail = target.tail.handleAsync((v, failure) -> {
+                        try {
+                            if (failure != null) {
+                                throw new CompletionException(failure);
+                            }
+                            if (onRows != null) {
+                                chunk.publish(onRows);
+                            }
+                            chunk.sort();
+                            long written = chunk.writeTo(target.file, append, runCodec);
+                            stats.spilled(written);
+                            if (journal != null) {
+                                journal.written(chunkSeq, written);
+                            }
+                            return null;
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }, pool);
+                    spills.set(index, target.tail);
+                } else {
+                    inFlight.release();
+                }
+                if (eof) {
+                    break;
+                }
+            }
+            CompletableFuture.allOf(spills.toArray(new CompletableFuture<?>[0])).join();
+            if (journal != null) {
+                journal.complete(offset, rows);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(pool, journal);
+            throw new InterruptedIOException(e.getMessage());
+        } catch (CompletionException e) {
+            discard(pool, journal);
+            throw new IOException(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            discard(pool, journal);
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+        stats.rows(rows);
+        stats.runs(runs.files.size());
+        log.info("{} rows in {} chunks: {} already in order ({} appended to the previous run), {} natural runs, " +
+                        "{} sorted runs", rows, stats.getChunks(), stats.getPresortedChunks(),
+                stats.getAppendedChunks(), stats.getNaturalRuns(), stats.getRuns());
+        if (stats.getRuns() == 1 && stats.getPresortedChunks() == stats.getChunks()) {
+            log.info("input was already sorted, no sorting done");
+        }
+        return runs;
+    }
+
+    /**
+     * The last run created, which chunks continuing its order are appended to.
+     */
+    private static final class OpenRun {
+        final File file;
+        final int index;
+        byte[] lastKey;
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+        OpenRun(File file, int index) {
+            this.file = file;
+            this.index = index;
+        }
+    }
+
+    private static void discard(ForkJoinPool pool, Journal journal) {
+        if (journal == null) {
+            return;
+        }
+        // a spill still running would write its run file again after it is deleted
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.discardUncommitted();
+    }
+
+    /**
+     * Tracks which chunks have been written. Chunks of different runs finish out of order, so a checkpoint only
+     * moves past a chunk once it and every chunk read before it are on disk.
+     */
+    private static final class Journal {
+        private final Consumer<RunCheckpoint> listener;
+        private final List<File> files = new ArrayList<>();
+        private final List<Long> lengths = new ArrayList<>();
+        private final List<long[]> chunks = new ArrayList<>();
+        private final List<byte[]> lastRows = new ArrayList<>();
+        private String header;
+        private long bytes;
+        private long rows;
+        private String lastRow;
+        private int next;
+        private int committedFiles;
+        private boolean closed;
+
+        Journal(RunCheckpoint resume, Consumer<RunCheckpoint> listener) {
+            this.listener = listener;
+            if (resume != null) {
+                for (String file : resume.getFiles()) {
+                    files.add(new File(file));
+                }
+                lengths.addAll(resume.getLengths());
+                header = resume.getHeader();
+                bytes = resume.getBytes();
+                rows = resume.getRows();
+                lastRow = resume.getLastRow();
+                committedFiles = files.size();
+            }
+        }
+
+        synchronized void header(byte[] header) {
+            this.header = header == null ? null : new String(header, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return the sequence number of a chunk ending at byte end and row endRows of the input, with lastRow
+         */
+        synchronized int add(long end, long endRows, OpenRun run, byte[] lastRow) {
+            if (run.index == files.size()) {
+                files.add(run.file);
+                lengths.add(0L);
+            }
+            chunks.add(new long[]{end, endRows, run.index, -1});
+            lastRows.add(lastRow);
+            return chunks.size() - 1;
+        }
+
+        synchronized void written(int seq, long written) {
+            chunks.get(seq)[3] = written;
+            boolean moved = false;
+            while (next < chunks.size() && chunks.get(next)[3] >= 0) {
+                long[] chunk = chunks.get(next);
+                int run = (int) chunk[2];
+                lengths.set(run, lengths.get(run) + chunk[3]);
+                committedFiles = Math.max(committedFiles, run + 1);
+                bytes = chunk[0];
+                rows = chunk[1];
+                lastRow = new String(lastRows.get(next), StandardCharsets.ISO_8859_1);
+                lastRows.set(next, null);
+                chunks.set(next++, null);
+                moved = true;
+            }
+            if (moved) {
+                emit(false);
+            }
+        }
+
+        synchronized void complete(long end, long endRows) {
+            bytes = end;
+            rows = endRows;
+            emit(true);
+        }
+
+        private void emit(boolean complete) {
+            if (closed) {
+                return;
+            }
+            RunCheckpoint checkpoint = new RunCheckpoint();
+            checkpoint.setBytes(bytes);
+            checkpoint.setRows(rows);
+            checkpoint.setHeader(header);
+            checkpoint.setLastRow(lastRow);
+            for (int i = 0; i < committedFiles; i++) {
+                checkpoint.getFiles().add(files.get(i).getAbsolutePath());
+                checkpoint.getLengths().add(lengths.get(i));
+            }
+            checkpoint.setComplete(complete);
+            listener.accept(checkpoint);
+        }
+
+        synchronized void discardUncommitted() {
+            closed = true;
+            for (int i = committedFiles; i < files.size(); i++) {
+                if (!files.get(i).delete()) {
+                    files.get(i).deleteOnExit();
+                }
+            }
+        }
+    }
+
+    public void merge(Runs runs, File out) throws IOException {
+        merge(runs, out, null);
+    }
+
+    /**
+     * Merges the runs to out and, when ring is given, also hands every merged row to it as packed blocks. This lets
+     * the diff consume the new snapshot from the final merge pass instead of reading the written file back. The
+     * ring is closed, or failed, when the merge ends.
+     */
+    public void merge(Runs runs, File out, BlockRing ring) throws IOException {
+        merge(runs, out, ring, (RowSink.Opener) null);
+    }
+
+    /**
+     * As {@link #merge(Runs, File, BlockRing)}, also handing the header and every merged row to sink when given.
+     * The sink is closed when the merge succeeds, and aborted when it fails.
+     */
+    public void merge(Runs runs, File out, BlockRing ring, RowSink sink) throws IOException {
+        merge(runs, out, ring, () -> sink);
+    }
+
+    /**
+     * As {@link #merge(Runs, File, BlockRing, RowSink)}, with the sink opened as the merge starts, so that a failure
+     * to open it fails the ring too.
+     */
+    public void merge(Runs runs, File out, BlockRing ring, RowSink.Opener sinks) throws IOException {
+        long start = System.currentTimeMillis();
+        RowSink sink = null;
+        try {
+            sink = sinks == null ? null : sinks.open();
+            List<File> files = runs.files;
+            while (files.size() > MAX_FAN_IN) {
+                List<File> merged = new ArrayList<>();
+                for (int i = 0; i < files.size(); i += MAX_FAN_IN) {
+                    File pass = new File(tempDir, "sort-pass-" + System.nanoTime() + "-" + i + ".tmp");
+                    pass.deleteOnExit();
+                    try (OutputStream os = new BufferedOutputStream(runCodec.compress(
+                            new BufferedOutputStream(new FileOutputStream(pass), 1 << 20)), 1 << 16)) {
+                        mergeTo(files.subList(i, Math.min(files.size(), i + MAX_FAN_IN)), os, new byte[]{'\n'},
+                                null, null);
+                    }
+                    stats.spilled(pass.length());
+                    merged.add(pass);
+                }
+                files = merged;
+            }
+            try (OutputStream os = new BufferedOutputStream(Codec.forName(out).create(out, false), 1 << 20)) {
+                if (runs.header != null) {
+                    os.write(runs.header);
+                    os.write(RECORD_SEPARATOR);
+                }
+                if (sink != null) {
+                    sink.header(runs.header);
+                }
+                mergeTo(files, os, RECORD_SEPARATOR, ring, sink);
+            }
+            if (sink != null) {
+                sink.close();
+            }
+            if (ring != null) {
+                ring.close();
+            }
+        } catch (Throwable e) {
+            if (ring != null) {
+                ring.fail(e);
+            }
+            if (sink != null) {
+                try {
+                    sink.abort();
+                } catch (IOException | RuntimeException closing) {
+                    e.addSuppressed(closing);
+                }
+            }
+            throw e;
+        }
+        stats.mergeMillis(System.currentTimeMillis() - start);
+    }
+
+    private void mergeTo(List<File> files, OutputStream os, byte[] separator, BlockRing ring, RowSink sink)
+            throws IOException {
+        SortedRun[] sortedRuns = new SortedRun[files.size()];
+        try {
+            for (int i = 0; i < sortedRuns.length; i++) {
+                sortedRuns[i] = new SortedRun(files.get(i), runCodec);
+            }
+            LoserTree tree = new LoserTree(sortedRuns);
+            RecordBlock block = ring == null ? null : ring.acquire();
+            int w;
+            while ((w = tree.winner()) >= 0) {
+                SortedRun run = tree.run(w);
+                os.write(run.line, 0, run.length);
+                os.write(separator);
+                if (sink != null) {
+                    sink.row(run.line, run.length);
+                }
+                if (block != null) {
+                    if (block.isFull()) {
+                        ring.publish(block);
+                        block = ring.acquire();
+                    }
+                    block.addRow(run.view, 0, run.length);
+                }
+                tree.advance();
+            }
+            if (block != null && !block.isEmpty()) {
+                ring.publish(block);
+            }
+        } finally {
+            for (SortedRun sortedRun : sortedRuns) {
+                if (sortedRun != null) {
+                    sortedRun.close();
+                }
+            }
+        }
+        // kept if the merge fails, so that a checkpointed fetch can merge them again
+        for (File file : files) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    static int compareKeys(byte[] a, int aFrom, int aLen, byte[] b, int bFrom, int bLen) {
+        int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; i++) {
+            int c = (a[aFrom + i] & 0xff) - (b[bFrom + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    /**
+     * A slab of input bytes with the offsets of its complete rows.
+     */
+    static final class Chunk {
+        final byte[] data;
+        int size;
+        int count;
+        int[] starts = new int[1024];
+        int[] ends = new int[1024];
+        int[] keyEnds = new int[1024];
+        long[] prefixes = new long[1024];
+        int[] order;
+        int[] runStarts;
+        int naturalRuns;
+        int maxRow;
+        private int dataStart;
+
+        Chunk(int bytes) {
+            data = new byte[bytes];
+        }
+
+        boolean fill(InputStream in, byte[] carry) throws IOException {
+            System.arraycopy(carry, 0, data, 0, carry.length);
+            size = carry.length;
+            while (size < data.length) {
+                int read = in.read(data, size, data.length - size);
+                if (read < 0) {
+                    return true;
+                }
+                size += read;
+            }
+            return false;
+        }
+
+        byte[] takeHeader() {
+            int i = 0;
+            while (i < HEADER_PREFIX.length && i < size && data[i] == HEADER_PREFIX[i]) {
+                i++;
+            }
+            if (i < HEADER_PREFIX.length) {
+                return null;
+            }
+            int nl = i;
+            while (nl < size && data[nl] != '\n') {
+                nl++;
+            }
+            int end = nl > 0 && data[nl - 1] == '\r' ? nl - 1 : nl;
+            byte[] header = new byte[end];
+            System.arraycopy(data, 0, header, 0, end);
+            dataStart = Math.min(size, nl + 1);
+            return header;
+        }
+
+        /**
+         * The bytes of the last row read into the chunk, with its line end.
+         */
+        byte[] lastRow() {
+            return Arrays.copyOfRange(data, starts[count - 1], size);
+        }
+
+        /**
+         * Records row offsets and returns the trailing partial row to carry into the next chunk.
+         */
+        byte[] index(boolean eof) throws IOException {
+            int lineStart = dataStart;
+            int keyEnd = -1;
+            for (int i = dataStart; i < size; i++) {
+                byte b = data[i];
+                if (b == '\t' && keyEnd < 0) {
+                    keyEnd = i;
+                } else if (b == '\n') {
+                    add(lineStart, i, keyEnd);
+                    lineStart = i + 1;
+                    keyEnd = -1;
+                }
+            }
+            if (lineStart < size) {
+                if (eof) {
+                    add(lineStart, size, keyEnd);
+                } else {
+                    if (lineStart == dataStart) {
+                        throw new IOException("row longer than sort chunk of " + data.length + " bytes");
+                    }
+                    byte[] carry = new byte[size - lineStart];
+                    System.arraycopy(data, lineStart, carry, 0, carry.length);
+                    size = lineStart;
+                    return carry;
+                }
+            }
+            return new byte[0];
+        }
+
+        private void add(int start, int end, int keyEnd) {
+            if (end > start && data[end - 1] == '\r') {
+                end--;
+            }
+            if (end == start) {
+                return;
+            }
+            if (keyEnd < 0 || keyEnd > end) {
+                keyEnd = end;
+            }
+            if (count == starts.length) {
+                int n = count * 2;
+                starts = Arrays.copyOf(starts, n);
+                ends = Arrays.copyOf(ends, n);
+                keyEnds = Arrays.copyOf(keyEnds, n);
+                prefixes = Arrays.copyOf(prefixes, n);
+            }
+            long prefix = 0;
+            for (int i = 0; i < 8; i++) {
+                prefix = (prefix << 8) | (start + i < keyEnd ? data[start + i] & 0xff : 0);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            keyEnds[count] = keyEnd;
+            prefixes[count] = prefix;
+            count++;
+        }
+
+        void publish(Consumer<RecordBlock> onRows) {
+            ByteBuffer view = ByteBuffer.wrap(data);
+            RecordBlock block = new RecordBlock(Math.min(count, RecordBlock.DEFAULT_CAPACITY));
+            for (int i = 0; i < count; i++) {
+                if (block.isFull()) {
+                    onRows.accept(block);
+                    block.clear();
+                }
+                block.addRow(view, starts[i], ends[i]);
+            }
+            onRows.accept(block);
+        }
+
+        int compare(int i, int j) {
+            int c = Long.compareUnsigned(prefixes[i], prefixes[j]);
+            if (c != 0) {
+                return c;
+            }
+            return compareKeys(data, starts[i], keyEnds[i] - starts[i], data, starts[j], keyEnds[j] - starts[j]);
+        }
+
+        byte[] key(int i) {
+            return Arrays.copyOfRange(data, starts[i], keyEnds[i]);
+        }
+
+        /**
+         * Finds the ascending runs of the chunk in input order and the row with the largest key.
+         */
+        void detectRuns() {
+            int[] found = new int[16];
+            int n = 1;
+            maxRow = 0;
+            for (int i = 1; i < count; i++) {
+                if (compare(i - 1, i) > 0) {
+                    if (compare(i - 1, maxRow) > 0) {
+                        maxRow = i - 1;
+                    }
+                    if (n == found.length) {
+                        found = Arrays.copyOf(found, n * 2);
+                    }
+                    found[n++] = i;
+                }
+            }
+            if (compare(count - 1, maxRow) >= 0) {
+                maxRow = count - 1;
+            }
+            naturalRuns = n;
+            runStarts = Arrays.copyOf(found, n + 1);
+            runStarts[n] = count;
+        }
+
+        void sort() {
+            order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            if (naturalRuns == 1) {
+                return;
+            }
+            int[] tmp = new int[count];
+            if (naturalRuns <= count / NATURAL_RUN_ROWS) {
+                // merge the ascending runs pairwise instead of sorting from scratch
+                int[] bounds = runStarts;
+                while (bounds.length > 2) {
+                    int[] next = new int[bounds.length / 2 + 1];
+                    int k = 0;
+                    for (int i = 0; i + 1 < bounds.length; i += 2) {
+                        next[k++] = bounds[i];
+                        if (i + 2 < bounds.length) {
+                            merge(order, tmp, bounds[i], bounds[i + 1], bounds[i + 2]);
+                        }
+                    }
+                    next[k] = count;
+                    bounds = next;
+                }
+            } else {
+                new SortTask(this, order, tmp, 0, count).invoke();
+            }
+        }
+
+        void merge(int[] a, int[] tmp, int from, int mid, int to) {
+            if (compare(a[mid - 1], a[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(a, from, tmp, from, to - from);
+            int i = from, j = mid, k = from;
+            while (i < mid && j < to) {
+                a[k++] = compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+            }
+            while (i < mid) {
+                a[k++] = tmp[i++];
+            }
+            while (j < to) {
+                a[k++] = tmp[j++];
+            }
+        }
+
+        /**
+         * @return the bytes added to the file
+         */
+        long writeTo(File file, boolean append, Codec codec) throws IOException {
+            long before = append ? file.length() : 0;
+            try (OutputStream os = new BufferedOutputStream(codec.compress(
+                    new BufferedOutputStream(new FileOutputStream(file, append), 1 << 20)), 1 << 16)) {
+                for (int k = 0; k < count; k++) {
+                    int i = order[k];
+                    os.write(data, starts[i], ends[i] - starts[i]);
+                    os.write('\n');
+                }
+            }
+            return file.length() - before;
+        }
+    }
+
+    /**
+     * Stable merge sort of row indexes, forking halves above {@link #SEQUENTIAL_SORT} rows.
+     */
+    static final class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk chunk;
+        private final int[] a;
+        private final int[] tmp;
+        private final int lo;
+        private final int hi;
+
+        SortTask(Chunk chunk, int[] a, int[] tmp, int lo, int hi) {
+            this.chunk = chunk;
+            this.a = a;
+            this.tmp = tmp;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= SEQUENTIAL_SORT) {
+                sequential(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new SortTask(chunk, a, tmp, lo, mid), new SortTask(chunk, a, tmp, mid, hi));
+            chunk.merge(a, tmp, lo, mid, hi);
+        }
+
+        private void sequential(int from, int to) {
+            if (to - from <= 32) {
+                for (int i = from + 1; i < to; i++) {
+                    int v = a[i];
+                    int j = i - 1;
+                    while (j >= from && chunk.compare(a[j], v) > 0) {
+                        a[j + 1] = a[j];
+                        j--;
+                    }
+                    a[j + 1] = v;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sequential(from, mid);
+            sequential(mid, to);
+            chunk.merge(a, tmp, from, mid, to);
+        }
+    }
+}
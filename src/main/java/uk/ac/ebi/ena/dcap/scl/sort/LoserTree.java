@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.sort;
+
+import java.io.IOException;
+
+/**
+ * Tournament tree of losers over k sorted runs. Each step costs log2(k) comparisons against the stored losers on
+ * the path from the replaced leaf to the root. Ties go to the lower run index, keeping the merge stable.
+ */
+class LoserTree {
+
+    private final SortedRun[] runs;
+    private final boolean[] exhausted;
+    private final int[] tree;
+    private final int k;
+
+    LoserTree(SortedRun[] runs) throws IOException {
+        this.runs = runs;
+        this.k = runs.length;
+        this.exhausted = new boolean[k];
+        this.tree = new int[Math.max(1, k)];
+        for (int i = 0; i < k; i++) {
+            exhausted[i] = !runs[i].next();
+        }
+        int[] winners = new int[2 * k];
+        for (int i = 0; i < k; i++) {
+            winners[k + i] = i;
+        }
+        for (int node = k - 1; node > 0; node--) {
+            int a = winners[2 * node], b = winners[2 * node + 1];
+            if (beats(a, b)) {
+                winners[node] = a;
+                tree[node] = b;
+            } else {
+                winners[node] = b;
+                tree[node] = a;
+            }
+        }
+        tree[0] = k == 1 ? 0 : winners[1];
+    }
+
+    /**
+     * @return the run holding the smallest current row, or -1 when all runs are exhausted
+     */
+    int winner() {
+        int w = tree[0];
+        return k == 0 || exhausted[w] ? -1 : w;
+    }
+
+    SortedRun run(int i) {
+        return runs[i];
+    }
+
+    /**
+     * Advances the winning run and replays its path to the root.
+     */
+    void advance() throws IOException {
+        int w = tree[0];
+        exhausted[w] = !runs[w].next();
+        for (int node = (w + k) >>> 1; node > 0; node >>>= 1) {
+            if (beats(tree[node], w)) {
+                int loser = w;
+                w = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = w;
+    }
+
+    private boolean beats(int a, int b) {
+        if (exhausted[a]) {
+            return false;
+        }
+        if (exhausted[b]) {
+            return true;
+        }
+        int c = ExternalSorter.compareKeys(runs[a].line, 0, runs[a].keyLength, runs[b].line, 0, runs[b].keyLength);
+        return c < 0 || (c == 0 && a < b);
+    }
+}
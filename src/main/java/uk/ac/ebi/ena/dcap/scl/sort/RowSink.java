@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.sort;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Receives the rows of a final merge in order, without record separators, alongside the file being written.
+ */
+public interface RowSink extends Closeable {
+
+    interface Opener {
+        /**
+         * @return the sink, or null for none
+         */
+        RowSink open() throws IOException;
+    }
+
+    default void header(byte[] header) throws IOException {
+    }
+
+    void row(byte[] line, int length) throws IOException;
+
+    /**
+     * Releases what the sink holds when the merge fails, without completing what it writes.
+     */
+    default void abort() throws IOException {
+        close();
+    }
+
+    /**
+     * @return a sink handing everything to each of sinks that is not null, or null if there is none
+     */
+    static RowSink of(RowSink... sinks) {
+        List<RowSink> all = new ArrayList<>();
+        for (RowSink sink : sinks) {
+            if (sink != null) {
+                all.add(sink);
+            }
+        }
+        if (all.size() <= 1) {
+            return all.isEmpty() ? null : all.get(0);
+        }
+        return new RowSink() {
+            @Override
+            public void header(byte[] header) throws IOException {
+                for (RowSink sink : all) {
+                    sink.header(header);
+                }
+            }
+
+            @Override
+            public void row(byte[] line, int length) throws IOException {
+                for (RowSink sink : all) {
+                    sink.row(line, length);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (RowSink sink : all) {
+                    sink.close();
+                }
+            }
+
+            @Override
+            public void abort() throws IOException {
+                for (RowSink sink : all) {
+                    sink.abort();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.sort;
+
+import lombok.Data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sorted runs holding every row of the first {@code bytes} bytes of an input. A run file may have grown past its
+ * recorded length since, so it is cut back to it before the sort resumes from byte {@code bytes} of the input.
+ */
+@Data
+public class RunCheckpoint {
+
+    private long bytes;
+    private long rows;
+    private String header;
+    /**
+     * The bytes just before byte {@code bytes}, from the start of the row they end, as ISO-8859-1. A resumed input
+     * is checked to repeat them.
+     */
+    private String lastRow;
+    private List<String> files = new ArrayList<>();
+    private List<Long> lengths = new ArrayList<>();
+    /**
+     * Set once the input was read to the end.
+     */
+    private boolean complete;
+
+    /**
+     * @return false if a run file is missing or shorter than recorded, in which case the checkpoint is unusable
+     */
+    public boolean canRestore() {
+        for (int i = 0; i < files.size(); i++) {
+            File file = new File(files.get(i));
+            if (!file.isFile() || file.length() < lengths.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cuts the run files back to their checkpointed lengths and returns them as runs.
+     */
+    public ExternalSorter.Runs restore() throws IOException {
+        ExternalSorter.Runs runs = new ExternalSorter.Runs();
+        runs.header = header == null ? null : header.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < files.size(); i++) {
+            File file = new File(files.get(i));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < lengths.get(i)) {
+                    throw new IOException("run " + file + " is shorter than its checkpoint");
+                }
+                raf.setLength(lengths.get(i));
+            }
+            runs.files.add(file);
+        }
+        return runs;
+    }
+
+    public void deleteRuns() throws IOException {
+        for (String file : files) {
+            Files.deleteIfExists(new File(file).toPath());
+        }
+    }
+}
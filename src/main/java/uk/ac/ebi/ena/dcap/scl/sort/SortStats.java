@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.sort;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+@Getter
+@ToString
+public class SortStats {
+
+    private long rows;
+    private int runs;
+    private int chunks;
+    private int presortedChunks;
+    private int appendedChunks;
+    private long naturalRuns;
+    private final AtomicLong spillBytes = new AtomicLong();
+    private long runMillis;
+    private long mergeMillis;
+
+    void rows(long rows) {
+        this.rows = rows;
+    }
+
+    void runs(int runs) {
+        this.runs = runs;
+    }
+
+    void chunk(int naturalRunsInChunk) {
+        chunks++;
+        naturalRuns += naturalRunsInChunk;
+        if (naturalRunsInChunk == 1) {
+            presortedChunks++;
+        }
+    }
+
+    void appended() {
+        appendedChunks++;
+    }
+
+    void spilled(long bytes) {
+        spillBytes.addAndGet(bytes);
+    }
+
+    void runMillis(long millis) {
+        runMillis = millis;
+    }
+
+    void mergeMillis(long millis) {
+        mergeMillis = millis;
+    }
+}
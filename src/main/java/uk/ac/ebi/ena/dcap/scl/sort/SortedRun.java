@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright 2021 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.ac.ebi.ena.dcap.scl.sort;
+
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequential reader over a run file of newline terminated rows, exposing the current row and its accession
+ * without creating Strings.
+ */
+class SortedRun implements Closeable {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int pos;
+    private int limit;
+
+    byte[] line = new byte[256];
+    ByteBuffer view = ByteBuffer.wrap(line);
+    int length;
+    int keyLength;
+
+    SortedRun(File file, Codec codec) throws IOException {
+        InputStream raw = new FileInputStream(file);
+        try {
+            in = codec.decompress(raw);
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return false at end of run
+     */
+    boolean next() throws IOException {
+        length = 0;
+        keyLength = -1;
+        while (true) {
+            if (pos == limit) {
+                limit = in.read(buffer);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (length > 0) {
+                        finish();
+                        return true;
+                    }
+                    return false;
+                }
+            }
+            byte b = buffer[pos++];
+            if (b == '\n') {
+                finish();
+                return true;
+            }
+            if (length == line.length) {
+                byte[] grown = new byte[line.length * 2];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+                view = ByteBuffer.wrap(line);
+            }
+            if (b == '\t' && keyLength < 0) {
+                keyLength = length;
+            }
+            line[length++] = b;
+        }
+    }
+
+    private void finish() {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        if (keyLength < 0 || keyLength > length) {
+            keyLength = length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
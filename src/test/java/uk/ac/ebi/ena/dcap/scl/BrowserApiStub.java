@@ -0,0 +1,88 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the browser API's embl endpoint, serving a made-up flatfile for every accession of a comma
+ * separated list and omitting those it is told are not public.
+ */
+public class BrowserApiStub implements AutoCloseable {
+
+    private final HttpServer server;
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    /**
+     * Number of upcoming requests to answer with 503.
+     */
+    final AtomicInteger unavailable = new AtomicInteger();
+    /**
+     * Requests for batches containing this are always answered with 500.
+     */
+    volatile String failMatching;
+    final Set<String> suppressed = ConcurrentHashMap.newKeySet();
+
+    public BrowserApiStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/embl/", this::embl);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/embl/";
+    }
+
+    static String flatfile(String acc) {
+        return "ID   " + acc + "; SV 1; linear; genomic DNA; STD; PRO; 10 BP.\nXX\nAC   " + acc + ";\nXX\n" +
+                "SQ   Sequence 10 BP;\n     acgtacgtac                                                        10\n//\n";
+    }
+
+    private void embl(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        String accessions = exchange.getRequestURI().getPath().substring("/embl/".length());
+        int status = 200;
+        StringBuilder body = new StringBuilder();
+        if (unavailable.getAndDecrement() > 0) {
+            status = 503;
+        } else if (failMatching != null && accessions.contains(failMatching)) {
+            status = 500;
+        } else {
+            for (String acc : accessions.split(",")) {
+                if (!suppressed.contains(acc)) {
+                    body.append(flatfile(acc));
+                }
+            }
+            if (body.length() == 0) {
+                status = 404;
+            }
+        }
+        // before responding, as the client may send its next request as soon as it has the response
+        inFlight.decrementAndGet();
+        respond(exchange, status, body.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,93 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.service.DeltaFetcher;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeltaFetcherTest {
+
+    private static List<String> previousRows() throws Exception {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static File write(File file, List<String> rows) throws Exception {
+        StringBuilder tsv = new StringBuilder("accession\tlast_updated\r\n");
+        for (String row : rows) {
+            tsv.append(row).append("\r\n");
+        }
+        Files.write(file.toPath(), tsv.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * Every 10th record deleted, every 25th updated after the previous snapshot and a few new records added.
+     */
+    private static List<String> currentRows(List<String> previous) {
+        List<String> current = new ArrayList<>();
+        for (int i = 0; i < previous.size(); i++) {
+            String row = previous.get(i);
+            if (i % 10 == 3) {
+                continue;
+            }
+            current.add(i % 25 == 4 ? row.substring(0, row.indexOf('\t')) + "\t2024-02-02" : row);
+        }
+        current.add("AAAA01000000\t2024-02-03");
+        current.add("ZZZZ01000000\t2024-02-03");
+        return current;
+    }
+
+    @SneakyThrows
+    @Test
+    public void testPatchMatchesFullSnapshot(@TempDir File dir) {
+        List<String> previous = previousRows();
+        File prev = write(new File(dir, "prev.tsv"), previous);
+        List<String> current = currentRows(previous);
+        Collections.shuffle(current);
+        try (PortalApiStub stub = new PortalApiStub(current)) {
+            File output = new File(dir, "tls.tsv");
+            File patched = new DeltaFetcher(stub.getBaseUrl(), 0.5)
+                    .fetch(DataType.TLS_SET, prev, output, null, false);
+
+            assertEquals(output, patched);
+            Collections.sort(current);
+            assertArrayEquals(Files.readAllBytes(write(new File(dir, "expected.tsv"), current).toPath()),
+                    Files.readAllBytes(output.toPath()));
+            assertEquals(2, stub.searches.get());
+            assertFalse(new File(dir, "tls.tsv.delta.tmp").exists());
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testFallsBackToFullFetch(@TempDir File dir) {
+        List<String> previous = previousRows();
+        File prev = write(new File(dir, "prev.tsv"), previous);
+        List<String> current = currentRows(previous);
+        File output = new File(dir, "tls.tsv");
+        try (PortalApiStub stub = new PortalApiStub(current)) {
+            // too large a delta is not fetched at all
+            assertNull(new DeltaFetcher(stub.getBaseUrl(), 0.01).fetch(DataType.TLS_SET, prev, output, null, false));
+            assertEquals(0, stub.searches.get());
+        }
+        // an old record the previous snapshot lacks cannot be patched in
+        current.add("AAAA02000000\t2019-01-01");
+        try (PortalApiStub stub = new PortalApiStub(current)) {
+            assertNull(new DeltaFetcher(stub.getBaseUrl(), 0.5).fetch(DataType.TLS_SET, prev, output, null, false));
+            assertFalse(output.exists());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.service.FlatfileFetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FlatfileFetcherTest {
+
+    private static List<String> accessions(int count) {
+        List<String> accessions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            accessions.add(String.format("AAAA%08d", i));
+        }
+        return accessions;
+    }
+
+    private static List<String> expected(List<String> accessions, String... suppressed) {
+        List<String> entries = new ArrayList<>();
+        for (String acc : accessions) {
+            if (!Arrays.asList(suppressed).contains(acc)) {
+                entries.add(BrowserApiStub.flatfile(acc));
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    private static List<String> entries(List<File> shards) throws IOException {
+        List<String> entries = new ArrayList<>();
+        for (File shard : shards) {
+            try (InputStream in = Codec.open(shard)) {
+                for (String entry : IOUtils.toString(in, StandardCharsets.UTF_8).split("(?<=//\n)")) {
+                    if (!entry.isEmpty()) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    @SneakyThrows
+    @Test
+    public void testBatchesAreRetriedAndWrittenToShards(@TempDir File dir) {
+        List<String> accessions = accessions(1050);
+        File list = new File(dir, "coding_20210803_new-or-updated.tsv");
+        Files.write(list.toPath(), accessions);
+        try (BrowserApiStub stub = new BrowserApiStub()) {
+            stub.unavailable.set(3);
+            stub.suppressed.add(accessions.get(5));
+            FlatfileFetcher fetcher = new FlatfileFetcher(stub.getBaseUrl(), 100, 4, 3, 1, Codec.NONE);
+            List<File> shards = fetcher.fetch(Collections.singletonList(list), dir, "coding_20210803");
+
+            assertEquals(4, shards.size());
+            assertEquals(new File(dir, "coding_20210803_flatfiles_0.embl.gz"), shards.get(0));
+            assertEquals(11 + 3, stub.requests.get());
+            assertTrue(stub.maxInFlight.get() <= 4);
+            assertEquals(expected(accessions, accessions.get(5)), entries(shards));
+            assertFalse(FlatfileFetcher.ledgerFile(dir, "coding_20210803").exists());
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testRerunFetchesOnlyTheFailedBatches(@TempDir File dir) {
+        List<String> accessions = accessions(1000);
+        // spread over sharded lists, read in turn
+        File first = new File(dir, "coding_20210803_new-or-updated_0.tsv");
+        File second = new File(dir, "coding_20210803_new-or-updated_1.tsv");
+        Files.write(first.toPath(), accessions.subList(0, 430));
+        Files.write(second.toPath(), accessions.subList(430, 1000));
+        List<File> lists = Arrays.asList(first, second);
+        try (BrowserApiStub stub = new BrowserApiStub()) {
+            stub.failMatching = accessions.get(250);
+            FlatfileFetcher fetcher = new FlatfileFetcher(stub.getBaseUrl(), 100, 3, 1, 1, Codec.ZSTD);
+            assertThrows(Exception.class, () -> fetcher.fetch(lists, dir, "coding_20210803"));
+            assertEquals(9 + 2, stub.requests.get());
+            File ledger = FlatfileFetcher.ledgerFile(dir, "coding_20210803");
+            assertTrue(ledger.exists());
+
+            // as if the run had died while writing a batch it never recorded
+            List<File> shards = fetcher.shards(dir, "coding_20210803");
+            Files.write(shards.get(0).toPath(), "half a batch".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+
+            stub.failMatching = null;
+            stub.requests.set(0);
+            assertEquals(shards, fetcher.fetch(lists, dir, "coding_20210803"));
+            assertEquals(1, stub.requests.get());
+            assertEquals(expected(accessions), entries(shards));
+            assertFalse(ledger.exists());
+        }
+    }
+}
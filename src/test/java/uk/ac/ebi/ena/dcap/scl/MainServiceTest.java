@@ -1,15 +1,39 @@
 package uk.ac.ebi.ena.dcap.scl;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.diff.HashDiff;
+import uk.ac.ebi.ena.dcap.scl.io.ChangeListWriter;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.DiffFiles;
 import uk.ac.ebi.ena.dcap.scl.service.MainService;
+import uk.ac.ebi.ena.dcap.scl.service.RunMetrics;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+import uk.ac.ebi.ena.dcap.scl.snapshot.BinarySnapshot;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MainServiceTest {
 
@@ -31,4 +55,479 @@ public class MainServiceTest {
         assertEquals("TAAT01000000", lines.get(lines.size() - 1));
         assertEquals("KAAA01000000", lines.get(0));
     }
+
+    @SneakyThrows
+    @Test
+    public void testPackedCompareMatchesLines(@TempDir File dir) {
+        File prev = new File(dir, "prev.tsv");
+        File next = new File(dir, "next.tsv");
+        Files.write(prev.toPath(), Arrays.asList("accession\tlast_updated",
+                "AAAA01000000\t2019-05-10",
+                "AAAAAAAA010000000001\t2020-01-01",
+                "AAAAAAAA010000000002\t2020-01-01",
+                "AAAB01000000\t2019-05-10",
+                "KAAA01000000\t2019-05-10"));
+        Files.write(next.toPath(), Arrays.asList("accession\tlast_updated",
+                "AAAA01000000\t2019-05-10",
+                "AAAAAAAA010000000001\t2021-01-01",
+                "AAAAAAAA010000000003\t2020-01-01",
+                "KAAA01000000\t2019-05-10",
+                "TAAT01000000\t2023-12-27"));
+
+        MainService lines = new MainService();
+        lines.setPackedRecords(false);
+        DiffFiles expected = lines.compareSnapshots(prev, next, dir, "lines");
+        MainService packed = new MainService();
+        DiffFiles actual = packed.compareSnapshots(prev, next, dir, "packed");
+
+        assertEquals(Arrays.asList("AAAAAAAA010000000001", "AAAAAAAA010000000003", "TAAT01000000"),
+                Files.readAllLines(actual.getNewOrChangedList().toPath()));
+        assertEquals(Arrays.asList("AAAAAAAA010000000002", "AAAB01000000"),
+                Files.readAllLines(actual.getDeletedList().toPath()));
+        assertEquals(Files.readAllLines(expected.getNewOrChangedList().toPath()),
+                Files.readAllLines(actual.getNewOrChangedList().toPath()));
+        assertEquals(Files.readAllLines(expected.getDeletedList().toPath()),
+                Files.readAllLines(actual.getDeletedList().toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testPartitionedDiffIsByteIdentical(@TempDir File dir) {
+        File prev = new File(dir, "prev.tsv");
+        File next = new File(dir, "next.tsv");
+        Random random = new Random(42);
+        List<String> prevLines = new ArrayList<>();
+        List<String> nextLines = new ArrayList<>();
+        prevLines.add("accession\tlast_updated");
+        nextLines.add("accession\tlast_updated");
+        for (int i = 0; i < 20000; i++) {
+            String acc = String.format("%s%08d", i % 7 == 0 ? "AAAAAAAA01" : "AAAA", i);
+            int r = random.nextInt(100);
+            if (r < 3) {
+                prevLines.add(acc + "\t2020-01-01");
+            } else if (r < 6) {
+                nextLines.add(acc + "\t2020-01-01");
+            } else {
+                prevLines.add(acc + "\t2020-01-01");
+                nextLines.add(acc + (r < 10 ? "\t2021-01-01" : "\t2020-01-01"));
+            }
+        }
+        Collections.sort(prevLines.subList(1, prevLines.size()));
+        Collections.sort(nextLines.subList(1, nextLines.size()));
+        Files.write(prev.toPath(), prevLines);
+        Files.write(next.toPath(), nextLines);
+
+        DiffFiles expected = new MainService().compareSnapshots(prev, next, dir, "sequential");
+        for (int threads : new int[]{2, 3, 8}) {
+            MainService service = new MainService();
+            service.setDiffThreads(threads);
+            DiffFiles actual = service.compareSnapshots(prev, next, dir, "partitioned" + threads);
+            assertArrayEquals(Files.readAllBytes(expected.getNewOrChangedList().toPath()),
+                    Files.readAllBytes(actual.getNewOrChangedList().toPath()));
+            assertArrayEquals(Files.readAllBytes(expected.getDeletedList().toPath()),
+                    Files.readAllBytes(actual.getDeletedList().toPath()));
+        }
+
+        // a row the last range cannot read fails the diff, and no range leaves its part behind
+        nextLines.add("\u00c4AAA00000001\t2020-01-01");
+        Files.write(next.toPath(), nextLines, StandardCharsets.ISO_8859_1);
+        MainService service = new MainService();
+        service.setDiffThreads(4);
+        assertThrows(Exception.class, () -> service.compareSnapshots(prev, next, dir, "failed"));
+        assertEquals(0, dir.listFiles((d, name) -> name.contains(".part")).length);
+    }
+
+    @SneakyThrows
+    @Test
+    public void testShardedChangeListsSplitTheSingleList(@TempDir File dir) {
+        File prev = new File(dir, "prev.tsv");
+        File next = new File(dir, "next.tsv");
+        Random random = new Random(7);
+        List<String> prevLines = new ArrayList<>();
+        List<String> nextLines = new ArrayList<>();
+        prevLines.add("accession\tlast_updated");
+        nextLines.add("accession\tlast_updated");
+        for (int i = 0; i < 5000; i++) {
+            String acc = String.format("%s%08d", i % 5 == 0 ? "AAAAAAAA010000" : "AAAA", i);
+            int r = random.nextInt(10);
+            if (r < 2) {
+                prevLines.add(acc + "\t2020-01-01");
+            } else if (r < 4) {
+                nextLines.add(acc + "\t2020-01-01");
+            } else {
+                prevLines.add(acc + "\t2020-01-01");
+                nextLines.add(acc + (r < 6 ? "\t2021-01-01" : "\t2020-01-01"));
+            }
+        }
+        Collections.sort(prevLines.subList(1, prevLines.size()));
+        Collections.sort(nextLines.subList(1, nextLines.size()));
+        Files.write(prev.toPath(), prevLines);
+        Files.write(next.toPath(), nextLines);
+        DiffFiles expected = new MainService().compareSnapshots(prev, next, dir, "single");
+
+        int shards = 4;
+        MainService lines = new MainService();
+        lines.setPackedRecords(false);
+        MainService merge = new MainService();
+        MainService partitioned = new MainService();
+        partitioned.setDiffThreads(3);
+        MainService compressed = new MainService();
+        compressed.setCompression(Codec.GZIP);
+        compressed.setDiffThreads(3);
+        String[] names = {"lines", "merge", "partitioned", "compressed"};
+        MainService[] services = {lines, merge, partitioned, compressed};
+        for (int s = 0; s < services.length; s++) {
+            services[s].setOutputShards(shards);
+            DiffFiles actual = services[s].compareSnapshots(prev, next, dir, names[s]);
+            assertShards(expected.getNewOrChangedList(), actual.getNewOrChangedList(), shards);
+            assertShards(expected.getDeletedList(), actual.getDeletedList(), shards);
+        }
+    }
+
+    @SneakyThrows
+    private static void assertShards(File single, File sharded, int shards) {
+        List<String> all = Files.readAllLines(single.toPath());
+        List<File> files = ChangeListWriter.files(sharded, shards);
+        assertEquals(shards, files.size());
+        int listed = 0;
+        for (int i = 0; i < shards; i++) {
+            int shard = i;
+            List<String> expected = all.stream().filter(acc -> Math.floorMod(acc.hashCode(), shards) == shard)
+                    .collect(Collectors.toList());
+            List<String> actual;
+            try (InputStream in = Codec.open(files.get(i))) {
+                actual = IOUtils.readLines(in, StandardCharsets.UTF_8);
+            }
+            assertEquals(expected, actual);
+            listed += actual.size();
+        }
+        assertEquals(all.size(), listed);
+    }
+
+    @SneakyThrows
+    @Test
+    public void testFusedDiffMatchesFileDiff(@TempDir File dir) {
+        File unsorted = new File("src/test/resources/tls_set_20240201.tsv.unsorted");
+        File sorted = new File(dir, "sorted.tsv");
+        SnapshotClient.bigSortFile(unsorted, sorted);
+        List<String> prevLines = new ArrayList<>();
+        List<String> sortedLines = Files.readAllLines(sorted.toPath());
+        for (int i = 0; i < sortedLines.size(); i++) {
+            String line = sortedLines.get(i);
+            if (i % 50 == 1) {
+                continue;
+            }
+            prevLines.add(i % 40 == 2 ? line.replace("\t20", "\t19") : line);
+        }
+        File prev = new File(dir, "prev.tsv");
+        Files.write(prev.toPath(), prevLines);
+
+        DiffFiles expected = new MainService().compareSnapshots(prev, sorted, dir, "file");
+        ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+        ExternalSorter.Runs runs;
+        try (InputStream in = new FileInputStream(unsorted)) {
+            runs = sorter.createRuns(in);
+        }
+        File merged = new File(dir, "merged.tsv");
+        DiffFiles actual = new MainService().compareWhileMerging(prev,
+                new SnapshotClient.FetchedSnapshot(sorter, runs, merged), dir, "fused");
+
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(merged.toPath()));
+        assertTrue(Files.readAllLines(actual.getNewOrChangedList().toPath()).size() > sortedLines.size() / 50);
+        assertArrayEquals(Files.readAllBytes(expected.getNewOrChangedList().toPath()),
+                Files.readAllBytes(actual.getNewOrChangedList().toPath()));
+        assertArrayEquals(Files.readAllBytes(expected.getDeletedList().toPath()),
+                Files.readAllBytes(actual.getDeletedList().toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testHashDiffMatchesMergeDiff(@TempDir File dir) {
+        File unsorted = new File("src/test/resources/tls_set_20240201.tsv.unsorted");
+        File sorted = new File(dir, "sorted.tsv");
+        SnapshotClient.bigSortFile(unsorted, sorted);
+        List<String> sortedLines = Files.readAllLines(sorted.toPath());
+        List<String> prevLines = new ArrayList<>();
+        for (int i = 0; i < sortedLines.size(); i++) {
+            if (i % 30 != 1) {
+                prevLines.add(i % 20 == 2 ? sortedLines.get(i).replace("\t20", "\t19") : sortedLines.get(i));
+            }
+        }
+        prevLines.add("ZZZZ01000000\t2019-01-01");
+        prevLines.add("ZZZZZZZZZZZZZZZZ01000000\t2019-01-01");
+        // enough long accessions to grow the tails past their initial room
+        for (int i = 0; i < 200; i++) {
+            prevLines.add(String.format("ZZZZZZZZZZZZZZZZ02%06d\t2019-01-01", i));
+        }
+        File prev = new File(dir, "prev.tsv");
+        Files.write(prev.toPath(), prevLines);
+        DiffFiles expected = new MainService().compareSnapshots(prev, sorted, dir, "merge");
+
+        // a table far too small for the snapshot has to grow, and the second download mimics a retry
+        HashDiff hashDiff = new HashDiff(10);
+        File fetched = new File(dir, "fetched.tsv");
+        DiffFiles actual = new MainService().compareWhileFetching(prev, hashDiff, () -> {
+            ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+            ExternalSorter.Runs runs = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try (InputStream in = new FileInputStream(unsorted)) {
+                    runs = sorter.createRuns(in, null, null, hashDiff);
+                }
+            }
+            return new SnapshotClient.FetchedSnapshot(sorter, runs, fetched);
+        }, dir, "hash");
+
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(fetched.toPath()));
+        assertEquals(sortedLines.size() - 1, hashDiff.getLatestRows());
+        assertTrue(Files.readAllLines(actual.getDeletedList().toPath()).contains("ZZZZZZZZZZZZZZZZ01000000"));
+        assertArrayEquals(Files.readAllBytes(expected.getNewOrChangedList().toPath()),
+                Files.readAllBytes(actual.getNewOrChangedList().toPath()));
+        assertArrayEquals(Files.readAllBytes(expected.getDeletedList().toPath()),
+                Files.readAllBytes(actual.getDeletedList().toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testCompressedSnapshotsDiffLikePlain(@TempDir File dir) {
+        File unsorted = new File("src/test/resources/tls_set_20240201.tsv.unsorted");
+        File sorted = new File(dir, "sorted.tsv");
+        SnapshotClient.bigSortFile(unsorted, sorted);
+        List<String> sortedLines = Files.readAllLines(sorted.toPath());
+        List<String> prevLines = new ArrayList<>();
+        for (int i = 0; i < sortedLines.size(); i++) {
+            if (i % 30 != 1) {
+                prevLines.add(i % 20 == 2 ? sortedLines.get(i).replace("\t20", "\t19") : sortedLines.get(i));
+            }
+        }
+        File prev = new File(dir, "prev.tsv");
+        Files.write(prev.toPath(), prevLines);
+        DiffFiles expected = new MainService().compareSnapshots(prev, sorted, dir, "plain");
+
+        for (Codec codec : new Codec[]{Codec.GZIP, Codec.ZSTD}) {
+            File compressedPrev = codec.name(new File(dir, "prev.tsv"));
+            try (OutputStream out = codec.create(compressedPrev, false)) {
+                Files.copy(prev.toPath(), out);
+            }
+            ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+            sorter.setRunCodec(codec);
+            ExternalSorter.Runs runs;
+            try (InputStream in = new FileInputStream(unsorted)) {
+                runs = sorter.createRuns(in);
+            }
+            File merged = codec.name(new File(dir, "merged.tsv"));
+            MainService service = new MainService();
+            service.setCompression(codec);
+            DiffFiles fused = service.compareWhileMerging(compressedPrev,
+                    new SnapshotClient.FetchedSnapshot(sorter, runs, merged), dir, "fused");
+            MainService partitioned = new MainService();
+            partitioned.setCompression(codec);
+            partitioned.setDiffThreads(4);
+            DiffFiles fromFiles = partitioned.compareSnapshots(compressedPrev, merged, dir, "files");
+
+            assertEquals(codec, Codec.detect(merged));
+            assertArrayEquals(Files.readAllBytes(sorted.toPath()), IOUtils.toByteArray(Codec.open(merged)));
+            for (DiffFiles actual : Arrays.asList(fused, fromFiles)) {
+                assertTrue(actual.getNewOrChangedList().getName().endsWith(codec.getExtension()));
+                assertArrayEquals(Files.readAllBytes(expected.getNewOrChangedList().toPath()),
+                        IOUtils.toByteArray(Codec.open(actual.getNewOrChangedList())));
+                assertArrayEquals(Files.readAllBytes(expected.getDeletedList().toPath()),
+                        IOUtils.toByteArray(Codec.open(actual.getDeletedList())));
+            }
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSeveralPreviousSnapshotsInOnePass(@TempDir File dir) {
+        File unsorted = new File("src/test/resources/tls_set_20240201.tsv.unsorted");
+        File sorted = new File(dir, "sorted.tsv");
+        SnapshotClient.bigSortFile(unsorted, sorted);
+        List<String> sortedLines = Files.readAllLines(sorted.toPath());
+        List<File> prevs = new ArrayList<>();
+        for (int k = 0; k < 3; k++) {
+            List<String> prevLines = new ArrayList<>();
+            for (int i = 0; i < sortedLines.size(); i++) {
+                if (i % (5 + k) != 1) {
+                    String line = sortedLines.get(i);
+                    prevLines.add(i % (3 + k) == 2 ? line.replace("\t20", "\t19") : line);
+                }
+            }
+            prevLines.add("ZZZZ0" + k + "000000\t2019-01-01");
+            Collections.sort(prevLines.subList(1, prevLines.size()));
+            File prev = new File(dir, "prev" + k + ".tsv");
+            Files.write(prev.toPath(), prevLines.subList(0, prevLines.size() - k * 10));
+            prevs.add(prev);
+        }
+        File gzipped = Codec.GZIP.name(prevs.get(2));
+        try (OutputStream out = Codec.GZIP.create(gzipped, false)) {
+            Files.copy(prevs.get(2).toPath(), out);
+        }
+        prevs.set(2, gzipped);
+        File empty = new File(dir, "empty.tsv");
+        empty.createNewFile();
+        prevs.add(empty);
+
+        List<DiffFiles> expected = new ArrayList<>();
+        for (File prev : prevs) {
+            expected.add(new MainService().compareSnapshots(prev, sorted, dir, "pair_" + prev.getName()));
+        }
+        List<DiffFiles> fromFile = new MainService().compareSnapshots(prevs, sorted, dir, "file");
+        ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+        ExternalSorter.Runs runs;
+        try (InputStream in = new FileInputStream(unsorted)) {
+            runs = sorter.createRuns(in);
+        }
+        File merged = new File(dir, "merged.tsv");
+        List<DiffFiles> fused = new MainService().compareWhileMerging(prevs,
+                new SnapshotClient.FetchedSnapshot(sorter, runs, merged), dir, "fused");
+
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(merged.toPath()));
+        assertEquals("fused_from_prev2_deleted.tsv", fused.get(2).getDeletedList().getName());
+        for (List<DiffFiles> actual : Arrays.asList(fromFile, fused)) {
+            assertEquals(prevs.size(), actual.size());
+            for (int i = 0; i < prevs.size(); i++) {
+                assertArrayEquals(Files.readAllBytes(expected.get(i).getNewOrChangedList().toPath()),
+                        Files.readAllBytes(actual.get(i).getNewOrChangedList().toPath()));
+                assertArrayEquals(Files.readAllBytes(expected.get(i).getDeletedList().toPath()),
+                        Files.readAllBytes(actual.get(i).getDeletedList().toPath()));
+            }
+        }
+        assertEquals(sortedLines.size() - 1, Files.readAllLines(fused.get(3).getNewOrChangedList().toPath()).size());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testParentAccessionRowsAndChangedColumns(@TempDir File dir) {
+        File prev = new File(dir, "prev.tsv");
+        File next = new File(dir, "next.tsv");
+        Files.write(prev.toPath(), Arrays.asList("accession\tparent_accession\tlast_updated",
+                "AAAA01000001\tAAAA01000000\t2019-01-01",
+                "AAAA01000002\tAAAA01000000\t2019-01-01",
+                "AAAA01000003\tAAAA01000000\t2019-01-01",
+                "AAAA01000004\tAAAA01000000\t2019-01-01",
+                "AAAA01000005\tAAAA01000000\t2019-01-01"));
+        Files.write(next.toPath(), Arrays.asList("accession\tparent_accession\tlast_updated",
+                "AAAA01000001\tAAAA01000000\t2019-01-01",
+                "AAAA01000002\tAAAA01000000\t2020-01-01",
+                "AAAA01000003\tBBBB01000000\t2019-01-01",
+                "AAAA01000004\tBBBB01000000\t2020-01-01",
+                "AAAA01000006\tAAAA01000000\t2020-01-01"));
+        List<String> newOrUpdated = Arrays.asList("AAAA01000002", "AAAA01000003", "AAAA01000004", "AAAA01000006");
+        List<String> changedColumns = Arrays.asList("AAAA01000002\tlast_updated",
+                "AAAA01000003\tparent_accession", "AAAA01000004\tparent_accession,last_updated");
+
+        MainService lines = new MainService();
+        lines.setPackedRecords(false);
+        DiffFiles fromLines = lines.compareSnapshots(prev, next, dir, "lines");
+        assertEquals(newOrUpdated, Files.readAllLines(fromLines.getNewOrChangedList().toPath()));
+        assertEquals(Collections.singletonList("AAAA01000005"),
+                Files.readAllLines(fromLines.getDeletedList().toPath()));
+
+        MainService merge = new MainService();
+        merge.setChangedColumns(true);
+        DiffFiles merged = merge.compareSnapshots(prev, next, dir, "merge");
+        MainService partitioned = new MainService();
+        partitioned.setChangedColumns(true);
+        partitioned.setDiffThreads(3);
+        DiffFiles fromParts = partitioned.compareSnapshots(prev, next, dir, "partitioned");
+        BinarySnapshot.fromTsv(prev, BinarySnapshot.sidecarFor(prev));
+        MainService binary = new MainService();
+        binary.setChangedColumns(true);
+        DiffFiles fromBinary = binary.compareSnapshots(prev, next, dir, "binary");
+        for (DiffFiles actual : Arrays.asList(merged, fromParts, fromBinary)) {
+            assertEquals(newOrUpdated, Files.readAllLines(actual.getNewOrChangedList().toPath()));
+            assertEquals(Files.readAllLines(fromLines.getDeletedList().toPath()),
+                    Files.readAllLines(actual.getDeletedList().toPath()));
+            assertEquals(changedColumns, Files.readAllLines(actual.getChangedColumnsList().toPath()));
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testRunWritesMetricsReports(@TempDir File dir) {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        List<String> prevLines = new ArrayList<>(rows);
+        Collections.sort(prevLines);
+        List<String> added = new ArrayList<>();
+        for (int i = prevLines.size() - 1; i >= 0; i -= 10) {
+            added.add(prevLines.remove(i));
+        }
+        prevLines.add(0, "accession\tlast_updated");
+        File prev = new File(dir, "prev.tsv");
+        Files.write(prev.toPath(), prevLines);
+
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            SnapshotClient.setPortalApiBase(stub.getBaseUrl());
+            MainService service = new MainService();
+            service.setDiffEngine(MainService.DiffEngine.MERGE);
+            File snapshot = service.fetchSnapshotAndCompare("TLS_SET", prev.getPath(), dir.getPath(), "tax_id=9606",
+                    false);
+
+            String name = snapshot.getName().replace(".tsv", "");
+            JsonNode meters = new ObjectMapper().readTree(new File(dir, name + RunMetrics.JSON_EXTENSION))
+                    .get("meters");
+            assertEquals(rows.size(), meters.get("scl.download.rows").get(0).get("count").asLong());
+            assertEquals(rows.size(), meters.get("scl.records.expected").get(0).get("value").asLong());
+            assertTrue(meters.get("scl.download.bytes").get(0).get("count").asLong() > snapshot.length() / 2);
+            assertEquals(1, meters.get("scl.sort.merge").get(0).get("count").asLong());
+            assertEquals(2, meters.get("scl.queue.occupancy").size());
+            for (JsonNode list : meters.get("scl.output.records")) {
+                assertEquals(list.get("list").asText().equals("new_or_updated") ? added.size() : 0,
+                        list.get("count").asLong());
+            }
+            assertEquals(0, meters.get("scl.run.failed").get(0).get("value").asInt());
+
+            String prometheus = new String(Files.readAllBytes(new File(dir, name +
+                    RunMetrics.PROMETHEUS_EXTENSION).toPath()), StandardCharsets.UTF_8);
+            assertTrue(prometheus.contains("scl_download_bytes_total{data_type=\"tls_set\","));
+            assertTrue(prometheus.contains("scl_diff_seconds_count{data_type=\"tls_set\",} 1.0"));
+            // the run is no longer recorded
+            assertSame(RunMetrics.none(), RunMetrics.of("tls_set"));
+        } finally {
+            SnapshotClient.setPortalApiBase(null);
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testRunIsRecordedInChangeHistory(@TempDir File dir) {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        List<String> prevLines = new ArrayList<>(rows);
+        Collections.sort(prevLines);
+        for (int i = prevLines.size() - 1; i >= 0; i -= 10) {
+            prevLines.remove(i);
+        }
+        prevLines.add("ZZZZ99999999\t2020-01-01");
+        prevLines.add(0, "accession\tlast_updated");
+        File prev = new File(dir, "tls_set_20200101.tsv");
+        Files.write(prev.toPath(), prevLines);
+
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            SnapshotClient.setPortalApiBase(stub.getBaseUrl());
+            MainService service = new MainService();
+            service.setChangeHistory(true);
+            service.setOutputShards(2);
+            File snapshot = service.fetchSnapshotAndCompare("TLS_SET", prev.getPath(), dir.getPath(), "tax_id=9606",
+                    false);
+            String name = snapshot.getName().replace(".tsv", "");
+            String run = name.substring("tls_set_".length());
+
+            MainService query = new MainService();
+            query.setCompression(Codec.GZIP);
+            DiffFiles net = query.listChangesBetween("TLS_SET", dir.getPath(), "20200101", null);
+            assertEquals("tls_set_20200101_to_" + run + "_new-or-updated.tsv.gz", net.getNewOrChangedList().getName());
+            List<String> listed = new ArrayList<>();
+            for (File shard : ChangeListWriter.files(new File(dir, name + "_new-or-updated.tsv"), 2)) {
+                listed.addAll(Files.readAllLines(shard.toPath()));
+            }
+            Collections.sort(listed);
+            assertEquals(listed, IOUtils.readLines(Codec.open(net.getNewOrChangedList()), StandardCharsets.UTF_8));
+            assertEquals(Collections.singletonList("ZZZZ99999999"), IOUtils.readLines(Codec.open(net.getDeletedList()),
+                    StandardCharsets.UTF_8));
+        } finally {
+            SnapshotClient.setPortalApiBase(null);
+        }
+    }
 }
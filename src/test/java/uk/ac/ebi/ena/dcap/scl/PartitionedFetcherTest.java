@@ -0,0 +1,86 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.service.FetchCheckpoint;
+import uk.ac.ebi.ena.dcap.scl.service.PartitionedFetcher;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PartitionedFetcherTest {
+
+    private static List<String> rows() throws Exception {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        Collections.shuffle(rows, new Random(1));
+        return rows;
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testPartitionsAreRetriedAndMerged(@TempDir File dir) {
+        List<String> rows = rows();
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            stub.truncate.set(1);
+            File output = new File(dir, "tls.tsv");
+            SnapshotClient.FetchedSnapshot fetched = new PartitionedFetcher(stub.getBaseUrl(), 4,
+                    LocalDate.of(2019, 1, 1), 1).fetchSortedRuns(DataType.TLS_SET, output, null, false);
+            fetched.getSorter().merge(fetched.getRuns(), output);
+
+            assertEquals(5, stub.searches.get());
+            List<String> expected = new ArrayList<>(rows);
+            Collections.sort(expected);
+            expected.add(0, "accession\tlast_updated");
+            assertEquals(expected, Files.readAllLines(output.toPath()));
+        }
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testShortPartitionFailsAfterRetries(@TempDir File dir) {
+        try (PortalApiStub stub = new PortalApiStub(rows())) {
+            stub.truncate.set(Integer.MAX_VALUE);
+            PartitionedFetcher fetcher = new PartitionedFetcher(stub.getBaseUrl(), 2, LocalDate.of(2019, 1, 1), 1);
+            assertThrows(Exception.class,
+                    () -> fetcher.fetchSortedRuns(DataType.TLS_SET, new File(dir, "tls.tsv"), null, false));
+            File[] left = dir.listFiles();
+            assertTrue(left == null || left.length == 0);
+        }
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testRerunResumesCompletePartitions(@TempDir File dir) {
+        List<String> rows = rows();
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            File output = new File(dir, "tls.tsv");
+            PartitionedFetcher fetcher = new PartitionedFetcher(stub.getBaseUrl(), 2, LocalDate.of(2019, 1, 1), 0);
+            stub.truncateMatching = "last_updated>=";
+            assertThrows(Exception.class, () -> fetcher.fetchSortedRuns(DataType.TLS_SET, output, null, false));
+            assertTrue(FetchCheckpoint.fileFor(output).isFile());
+
+            stub.truncateMatching = null;
+            stub.searches.set(0);
+            SnapshotClient.FetchedSnapshot fetched = fetcher.fetchSortedRuns(DataType.TLS_SET, output, null, false);
+            fetched.getSorter().merge(fetched.getRuns(), output);
+
+            assertEquals(1, stub.searches.get());
+            List<String> expected = new ArrayList<>(rows);
+            Collections.sort(expected);
+            expected.add(0, "accession\tlast_updated");
+            assertEquals(expected, Files.readAllLines(output.toPath()));
+        }
+    }
+}
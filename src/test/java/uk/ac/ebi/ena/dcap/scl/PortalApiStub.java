@@ -0,0 +1,154 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the Portal API search and count endpoints, serving accession/last_updated rows, or accessions
+ * alone, and understanding the last_updated ranges of a partitioned or delta fetch, and the byte ranges of a resumed
+ * download.
+ */
+public class PortalApiStub implements AutoCloseable {
+
+    private static final Pattern BEFORE = Pattern.compile("last_updated<(\\d{4}-\\d{2}-\\d{2})");
+    private static final Pattern FROM = Pattern.compile("last_updated>=(\\d{4}-\\d{2}-\\d{2})");
+
+    private final HttpServer server;
+    private final List<String> rows;
+    final AtomicInteger searches = new AtomicInteger();
+    /**
+     * Number of upcoming non-empty search responses to cut off halfway.
+     */
+    final AtomicInteger truncate = new AtomicInteger();
+    /**
+     * Search responses for queries containing this are always cut off halfway.
+     */
+    volatile String truncateMatching;
+    /**
+     * Number of upcoming search responses to break off halfway, dropping the connection.
+     */
+    final AtomicInteger drop = new AtomicInteger();
+    /**
+     * ETag of the search responses, none if null. A range is only served when If-Range, if sent, matches it.
+     */
+    volatile String etag;
+    final List<String> ranges = new ArrayList<>();
+
+    public PortalApiStub(List<String> rows) throws IOException {
+        this.rows = rows;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/search", this::search);
+        server.createContext("/count", this::count);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private List<String> matching(HttpExchange exchange) {
+        String query = params(exchange).get("query");
+        List<String> matched = new ArrayList<>();
+        for (String row : rows) {
+            String date = row.substring(row.indexOf('\t') + 1);
+            if (query != null) {
+                Matcher before = BEFORE.matcher(query);
+                Matcher from = FROM.matcher(query);
+                if (before.find() && date.compareTo(before.group(1)) >= 0 ||
+                        from.find() && date.compareTo(from.group(1)) < 0) {
+                    continue;
+                }
+            }
+            matched.add(row);
+        }
+        return matched;
+    }
+
+    private void search(HttpExchange exchange) throws IOException {
+        searches.incrementAndGet();
+        List<String> matched = matching(exchange);
+        String query = params(exchange).get("query");
+        boolean cut = truncateMatching != null && query != null && query.contains(truncateMatching) ||
+                !matched.isEmpty() && truncate.getAndDecrement() > 0;
+        int limit = cut ? matched.size() / 2 : matched.size();
+        boolean accessionOnly = "accession".equals(params(exchange).get("fields"));
+        StringBuilder body = new StringBuilder(accessionOnly ? "accession\n" : "accession\tlast_updated\n");
+        for (String row : matched.subList(0, limit)) {
+            body.append(accessionOnly ? row.substring(0, row.indexOf('\t')) : row).append('\n');
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        int status = 200;
+        int from = 0;
+        if (range != null) {
+            ranges.add(range);
+            if (ifRange == null || ifRange.equals(etag)) {
+                from = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + from + "-" + (bytes.length - 1) + "/" + bytes.length);
+            }
+        }
+        exchange.sendResponseHeaders(status, bytes.length - from);
+        OutputStream out = exchange.getResponseBody();
+        if (drop.getAndDecrement() > 0) {
+            out.write(bytes, from, (bytes.length - from) / 2);
+            out.flush();
+            // short of the content length, so the client sees the connection drop
+            exchange.close();
+            return;
+        }
+        out.write(bytes, from, bytes.length - from);
+        out.close();
+    }
+
+    private void count(HttpExchange exchange) throws IOException {
+        respond(exchange, "{\"count\":\"" + matching(exchange).size() + "\"}");
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                try {
+                    params.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(pair, e);
+                }
+            }
+        }
+        return params;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,150 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import org.junit.jupiter.api.Test;
+import uk.ac.ebi.ena.dcap.scl.service.RunScheduler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RunSchedulerTest {
+
+    private static final long MB = 1L << 20;
+
+    @Test
+    public void testLargestGrantedFirstAndSmallOnesBehindThem() {
+        RunScheduler scheduler = new RunScheduler(4, 100 * MB, 1000 * MB);
+        RunScheduler.Grant all = scheduler.request("all", 4, 100 * MB, 1000 * MB);
+        assertTrue(all.isGranted());
+
+        RunScheduler.Grant small1 = scheduler.request("small1", 1, 30 * MB, 100 * MB);
+        RunScheduler.Grant large1 = scheduler.request("large1", 2, 60 * MB, 300 * MB);
+        RunScheduler.Grant large2 = scheduler.request("large2", 2, 60 * MB, 300 * MB);
+        RunScheduler.Grant small2 = scheduler.request("small2", 1, 30 * MB, 100 * MB);
+        assertEquals(4, scheduler.getWaiting());
+
+        all.close();
+        // one large run, and the small ones wait behind the other large one though one would fit
+        assertTrue(large1.isGranted());
+        assertFalse(large2.isGranted());
+        assertFalse(small1.isGranted());
+        assertFalse(small2.isGranted());
+
+        large1.close();
+        // the other large run and a small one in the memory it leaves
+        assertTrue(large2.isGranted());
+        assertTrue(small1.isGranted());
+        assertFalse(small2.isGranted());
+
+        small1.close();
+        assertTrue(small2.isGranted());
+        assertEquals(0, scheduler.getWaiting());
+        large2.close();
+        small2.close();
+        // closing twice gives nothing back twice
+        large2.close();
+        RunScheduler.Grant again = scheduler.request("again", 4, 100 * MB, 1000 * MB);
+        assertTrue(again.isGranted());
+    }
+
+    @Test
+    public void testSmallRunsDoNotStarveALargeOne() {
+        RunScheduler scheduler = new RunScheduler(4, 100 * MB, 1000 * MB);
+        RunScheduler.Grant running = scheduler.request("small0", 1, 40 * MB, 100 * MB);
+        RunScheduler.Grant large = scheduler.request("large", 2, 70 * MB, 300 * MB);
+        assertTrue(running.isGranted());
+        assertFalse(large.isGranted());
+
+        // small runs keep arriving, each fitting in what the running one leaves, and none overtakes the large one
+        for (int i = 1; i <= 3; i++) {
+            RunScheduler.Grant next = scheduler.request("small" + i, 1, 40 * MB, 100 * MB);
+            assertFalse(next.isGranted());
+            running.close();
+            assertTrue(large.isGranted());
+            large.close();
+            assertTrue(next.isGranted());
+            running = next;
+            large = scheduler.request("large", 2, 70 * MB, 300 * MB);
+            assertFalse(large.isGranted());
+        }
+        running.close();
+        assertTrue(large.isGranted());
+        assertEquals(0, scheduler.getWaiting());
+    }
+
+    @Test
+    public void testRunInterruptedAsItIsGrantedGivesItBack() throws Exception {
+        RunScheduler scheduler = new RunScheduler(4, 100 * MB, 1000 * MB);
+        RunScheduler.Grant holder = scheduler.request("holder", 4, 100 * MB, 1000 * MB);
+        RunScheduler.Grant next = scheduler.request("next", 4, 100 * MB, 1000 * MB);
+        AtomicReference<Object> awaited = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                awaited.set(next.await());
+            } catch (InterruptedException e) {
+                awaited.set(e);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        synchronized (scheduler) {
+            // interrupted while waiting, and granted before it has the scheduler back
+            waiter.interrupt();
+            Thread.sleep(100);
+            holder.close();
+            assertTrue(next.isGranted());
+        }
+        waiter.join(10_000);
+        assertTrue(awaited.get() instanceof InterruptedException);
+        // the run never got its grant to close, so the scheduler took it back
+        assertTrue(scheduler.request("after", 4, 100 * MB, 1000 * MB).isGranted());
+    }
+
+    @Test
+    public void testOversizedRunIsCappedAndRunsAlone() throws Exception {
+        RunScheduler scheduler = new RunScheduler(4, 100 * MB, 1000 * MB);
+        RunScheduler.Grant huge = scheduler.request("huge", 16, 10_000 * MB, 100_000 * MB);
+        assertTrue(huge.isGranted());
+        assertEquals(4, huge.getThreads());
+        assertEquals(100 * MB, huge.getMemoryBytes());
+        assertEquals(1000 * MB, huge.getDiskBytes());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            RunScheduler.Grant tiny = scheduler.request("tiny", 1, MB, MB);
+            Future<RunScheduler.Grant> waiting = pool.submit(tiny::await);
+            Thread.sleep(100);
+            assertFalse(waiting.isDone());
+            huge.close();
+            assertSame(tiny, waiting.get(10, TimeUnit.SECONDS));
+            assertTrue(tiny.isGranted());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRequestSizedFromRecordCount() {
+        RunScheduler scheduler = new RunScheduler(8, 1024 * MB, 10_000 * MB);
+        // 4Mi records sort in 256MB, a quarter of the memory, so take a quarter of the threads
+        RunScheduler.Grant grant = scheduler.request("coding", 4 * MB);
+        assertTrue(grant.isGranted());
+        assertEquals(256 * MB, grant.getMemoryBytes());
+        assertEquals(2, grant.getThreads());
+        assertEquals(4 * MB * 96, grant.getDiskBytes());
+
+        // a few records still get a minimum to sort in, and a thread
+        RunScheduler.Grant small = scheduler.request("noncoding", 10);
+        assertEquals(64 * MB, small.getMemoryBytes());
+        assertEquals(1, small.getThreads());
+    }
+}
@@ -1,14 +1,38 @@
 package uk.ac.ebi.ena.dcap.scl;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.diff.BlockRing;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.service.FetchCheckpoint;
 import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+import uk.ac.ebi.ena.dcap.scl.sort.RowSink;
+import uk.ac.ebi.ena.dcap.scl.sort.RunCheckpoint;
+import uk.ac.ebi.ena.dcap.scl.sort.SortStats;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 public class SnapshotClientTest {
 
@@ -23,4 +47,253 @@ public class SnapshotClientTest {
         assertEquals("KAAA01000000\t2019-05-10", lines.get(1));
         assertEquals("accession\tlast_updated", lines.get(0));
     }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testSortSpillsAndMergesRuns(@TempDir File dir) {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        Collections.shuffle(rows.subList(1, rows.size()), new Random(1));
+        File input = new File(dir, "shuffled.tsv");
+        Files.write(input.toPath(), rows);
+        File expected = new File(dir, "single-run.tsv");
+        File output = new File(dir, "many-runs.tsv");
+        SortStats single = new ExternalSorter(1L << 30, 1, dir).sort(input, expected);
+        SortStats many = new ExternalSorter(16 * 1024, 2, dir).sort(input, output);
+
+        assertEquals(1, single.getRuns());
+        assertTrue(many.getRuns() > 5);
+        assertTrue(many.getSpillBytes().get() > input.length() / 2);
+        assertEquals(single.getRows(), many.getRows());
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(output.toPath()));
+        assertEquals(0, dir.listFiles((d, name) -> name.endsWith(".tmp")).length);
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testSortedInputIsNotResorted(@TempDir File dir) {
+        File sorted = new File(dir, "sorted.tsv");
+        new ExternalSorter(1L << 30, 1, dir).sort(new File("src/test/resources/tls_set_20240201.tsv.unsorted"),
+                sorted);
+        File output = new File(dir, "resorted.tsv");
+        SortStats stats = new ExternalSorter(16 * 1024, 2, dir).sort(sorted, output);
+
+        assertEquals(1, stats.getRuns());
+        assertTrue(stats.getChunks() > 5);
+        assertEquals(stats.getChunks(), stats.getPresortedChunks());
+        assertEquals(stats.getChunks() - 1, stats.getAppendedChunks());
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(output.toPath()));
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testSortResumesFromCheckpoint(@TempDir File dir) {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        Collections.shuffle(rows.subList(1, rows.size()), new Random(1));
+        File input = new File(dir, "shuffled.tsv");
+        Files.write(input.toPath(), rows);
+        File expected = new File(dir, "expected.tsv");
+        new ExternalSorter(1L << 30, 1, dir).sort(input, expected);
+
+        List<RunCheckpoint> checkpoints = new ArrayList<>();
+        long failAt = input.length() / 2;
+        try (InputStream in = new FilterInputStream(new FileInputStream(input)) {
+            long read;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (read >= failAt) {
+                    throw new IOException("connection reset");
+                }
+                int n = super.read(b, off, (int) Math.min(len, failAt - read));
+                read += n;
+                return n;
+            }
+        }) {
+            assertThrows(IOException.class, () -> new ExternalSorter(16 * 1024, 2, dir).createRuns(in, null,
+                    checkpoints::add));
+        }
+        RunCheckpoint last = checkpoints.get(checkpoints.size() - 1);
+        assertFalse(last.isComplete());
+        assertTrue(last.getBytes() > 0 && last.getBytes() <= failAt);
+        String read = new String(Files.readAllBytes(input.toPath()), StandardCharsets.ISO_8859_1)
+                .substring(0, (int) last.getBytes());
+        assertTrue(read.endsWith("\n" + last.getLastRow()));
+
+        ExternalSorter resumed = new ExternalSorter(16 * 1024, 2, dir);
+        File output = new File(dir, "output.tsv");
+        try (InputStream in = new FileInputStream(input)) {
+            IOUtils.skipFully(in, last.getBytes());
+            resumed.merge(resumed.createRuns(in, last, checkpoints::add), output);
+        }
+        assertTrue(checkpoints.get(checkpoints.size() - 1).isComplete());
+        assertEquals(rows.size() - 1, resumed.getStats().getRows());
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(output.toPath()));
+        assertEquals(0, dir.listFiles((d, name) -> name.endsWith(".tmp")).length);
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testSearchAndCountGoToConfiguredPortalApi(@TempDir File dir) {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            SnapshotClient.setPortalApiBase(stub.getBaseUrl() + "/");
+            File output = SnapshotClient.getLatestSnapshot(DataType.TLS_SET, new File(dir, "tls.tsv"), "tax_id=9606",
+                    false);
+
+            assertEquals(1, stub.searches.get());
+            List<String> expected = new ArrayList<>(rows);
+            Collections.sort(expected);
+            expected.add(0, "accession\tlast_updated");
+            assertEquals(expected, Files.readAllLines(output.toPath()));
+        } finally {
+            SnapshotClient.setPortalApiBase(null);
+        }
+    }
+
+    /**
+     * Fetches rows from the stub with a connection dropped halfway, which leaves a checkpoint, and returns it.
+     */
+    private static FetchCheckpoint droppedFetch(PortalApiStub stub, File output) throws Exception {
+        stub.drop.set(1);
+        assertThrows(Exception.class,
+                () -> SnapshotClient.fetchSortedRuns(DataType.TLS_SET, output, "tax_id=9606", false));
+        FetchCheckpoint checkpoint = new ObjectMapper().readValue(FetchCheckpoint.fileFor(output),
+                FetchCheckpoint.class);
+        assertEquals(stub.etag, checkpoint.getValidator());
+        assertTrue(checkpoint.getStream().getBytes() > 0);
+        assertFalse(checkpoint.getStream().isComplete());
+        return checkpoint;
+    }
+
+    private static List<String> shuffledRows(long seed) throws IOException {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        Collections.shuffle(rows, new Random(seed));
+        return rows;
+    }
+
+    private static void assertSnapshotOf(List<String> rows, File output) throws IOException {
+        List<String> expected = new ArrayList<>(rows);
+        Collections.sort(expected);
+        expected.add(0, "accession\tlast_updated");
+        assertEquals(expected, Files.readAllLines(output.toPath()));
+        assertFalse(FetchCheckpoint.fileFor(output).exists());
+        assertEquals(0, output.getParentFile().listFiles((d, name) -> name.endsWith(".tmp")).length);
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testDroppedDownloadResumesAtCheckpointedRow(@TempDir File dir) {
+        List<String> rows = shuffledRows(1);
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            SnapshotClient.setPortalApiBase(stub.getBaseUrl());
+            SnapshotClient.setSortMemoryBytes(16 * 1024);
+            SnapshotClient.setSortThreads(2);
+            stub.etag = "\"1\"";
+            File output = new File(dir, "tls.tsv");
+            RunCheckpoint resume = droppedFetch(stub, output).getStream();
+
+            stub.searches.set(0);
+            SnapshotClient.getLatestSnapshot(DataType.TLS_SET, output, "tax_id=9606", false);
+
+            assertEquals(1, stub.searches.get());
+            assertEquals(Collections.singletonList("bytes=" + (resume.getBytes() - resume.getLastRow().length()) +
+                    "-"), stub.ranges);
+            assertSnapshotOf(rows, output);
+        } finally {
+            SnapshotClient.setPortalApiBase(null);
+            SnapshotClient.setSortMemoryBytes(0);
+            SnapshotClient.setSortThreads(0);
+        }
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testChangedDownloadRestartsFromStart(@TempDir File dir) {
+        List<String> rows = shuffledRows(1);
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            SnapshotClient.setPortalApiBase(stub.getBaseUrl());
+            SnapshotClient.setSortMemoryBytes(16 * 1024);
+            SnapshotClient.setSortThreads(2);
+            stub.etag = "\"1\"";
+            File output = new File(dir, "tls.tsv");
+
+            // a new ETag: If-Range fails and the whole response comes back
+            droppedFetch(stub, output);
+            Collections.shuffle(rows, new Random(2));
+            stub.etag = "\"2\"";
+            stub.searches.set(0);
+            SnapshotClient.getLatestSnapshot(DataType.TLS_SET, output, "tax_id=9606", false);
+            assertEquals(1, stub.searches.get());
+            assertEquals(1, stub.ranges.size());
+            assertSnapshotOf(rows, output);
+
+            // the same ETag on changed rows: the range is served, but does not start with the checkpointed row
+            droppedFetch(stub, output);
+            Collections.shuffle(rows, new Random(3));
+            stub.searches.set(0);
+            SnapshotClient.getLatestSnapshot(DataType.TLS_SET, output, "tax_id=9606", false);
+            assertEquals(2, stub.searches.get());
+            assertEquals(2, stub.ranges.size());
+            assertSnapshotOf(rows, output);
+        } finally {
+            SnapshotClient.setPortalApiBase(null);
+            SnapshotClient.setSortMemoryBytes(0);
+            SnapshotClient.setSortThreads(0);
+        }
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testFailedMergeFailsRingAndAbortsSink(@TempDir File dir) {
+        ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+        ExternalSorter.Runs runs;
+        try (InputStream in = new FileInputStream("src/test/resources/tls_set_20240201.tsv.unsorted")) {
+            runs = sorter.createRuns(in);
+        }
+        BlockRing ring = new BlockRing();
+        AtomicBoolean aborted = new AtomicBoolean();
+        RowSink sink = new RowSink() {
+            @Override
+            public void row(byte[] line, int length) {
+                // an Error, which escapes catch (Exception e)
+                throw new OutOfMemoryError("sidecar");
+            }
+
+            @Override
+            public void abort() {
+                aborted.set(true);
+            }
+
+            @Override
+            public void close() {
+                fail("a failed merge completes no sink");
+            }
+        };
+        assertThrows(OutOfMemoryError.class, () -> sorter.merge(runs, new File(dir, "out.tsv"), ring, sink));
+        assertTrue(aborted.get());
+        IllegalStateException failure = assertThrows(IllegalStateException.class, () -> {
+            while (ring.take() != null) {
+                // drain what was published before the failure
+            }
+        });
+        assertTrue(failure.getCause() instanceof OutOfMemoryError);
+    }
+
+    @lombok.SneakyThrows
+    @Test
+    public void testSinkThatCannotBeOpenedFailsRing(@TempDir File dir) {
+        ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+        ExternalSorter.Runs runs;
+        try (InputStream in = new FileInputStream("src/test/resources/tls_set_20240201.tsv.unsorted")) {
+            runs = sorter.createRuns(in);
+        }
+        BlockRing ring = new BlockRing();
+        assertThrows(IOException.class, () -> sorter.merge(runs, new File(dir, "out.tsv"), ring, () -> {
+            throw new IOException("No space left on device");
+        }));
+        IllegalStateException failure = assertThrows(IllegalStateException.class, ring::take);
+        assertTrue(failure.getCause() instanceof IOException);
+    }
 }
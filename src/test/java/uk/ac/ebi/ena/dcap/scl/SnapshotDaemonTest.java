@@ -0,0 +1,117 @@
+package uk.ac.ebi.ena.dcap.scl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.model.DataType;
+import uk.ac.ebi.ena.dcap.scl.service.MainService;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotDaemon;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SnapshotDaemonTest {
+
+    @SneakyThrows
+    @Test
+    public void testDaemonRunsAndAnswersQueries(@TempDir File dir) {
+        List<String> rows = Files.readAllLines(new File("src/test/resources/tls_set_20240201.tsv.unsorted").toPath());
+        rows = new ArrayList<>(rows.subList(1, rows.size()));
+        List<String> prevLines = new ArrayList<>(rows);
+        Collections.sort(prevLines);
+        List<String> added = new ArrayList<>();
+        for (int i = prevLines.size() - 1; i >= 0; i -= 10) {
+            added.add(prevLines.remove(i));
+        }
+        Collections.sort(added);
+        prevLines.add("ZZZZ99999999\t2020-01-01");
+        prevLines.add(0, "accession\tlast_updated");
+        File prev = new File(dir, "tls_set_20200101.tsv");
+        Files.write(prev.toPath(), prevLines);
+        prev.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+
+        try (PortalApiStub stub = new PortalApiStub(rows)) {
+            SnapshotClient.setPortalApiBase(stub.getBaseUrl());
+            MainService service = new MainService();
+            service.setDiffEngine(MainService.DiffEngine.MERGE);
+            try (SnapshotDaemon daemon = new SnapshotDaemon(service, DataType.TLS_SET, new File(dir, "none.tsv"), dir,
+                    "tax_id=9606", false, 0, TimeUnit.DAYS.toMillis(1))) {
+                String base = "http://localhost:" + daemon.getPort();
+                daemon.start();
+                JsonNode status = new ObjectMapper().readTree(get(base + "/status").body);
+                for (int i = 0; i < 600 && status.get("lastRunEnded").isNull(); i++) {
+                    Thread.sleep(100);
+                    status = new ObjectMapper().readTree(get(base + "/status").body);
+                }
+                assertTrue(status.get("lastRunFailure").isNull());
+                assertEquals(rows.size(), status.get("records").asLong());
+                String today;
+                synchronized (MainRunner.DATE_FORMAT) {
+                    today = MainRunner.DATE_FORMAT.format(new Date());
+                }
+                assertEquals("tls_set_" + today + ".tsv", status.get("snapshot").asText());
+
+                String acc = added.get(0).substring(0, added.get(0).indexOf('\t'));
+                assertEquals("accession\tlast_updated\n" + added.get(0) + "\n", get(base + "/accessions/" + acc).body);
+                assertEquals(404, get(base + "/accessions/ZZZZ99999999").status);
+
+                String prefix = acc.substring(0, 2);
+                List<String> sorted = new ArrayList<>(rows);
+                Collections.sort(sorted);
+                sorted.removeIf(row -> !row.startsWith(prefix));
+                Response page = get(base + "/accessions?prefix=" + prefix + "&limit=2");
+                String[] lines = page.body.split("\n");
+                assertEquals(3, lines.length);
+                assertEquals(sorted.get(0), lines[1]);
+                assertEquals(sorted.get(2).substring(0, sorted.get(2).indexOf('\t')), page.nextFrom);
+                page = get(base + "/accessions?prefix=" + prefix + "&limit=1000000&from=" + page.nextFrom);
+                assertNull(page.nextFrom);
+                assertEquals(sorted.size() - 2, page.body.split("\n").length - 1);
+
+                StringBuilder expected = new StringBuilder("accession\tchange\n");
+                for (String row : added) {
+                    expected.append(row, 0, row.indexOf('\t')).append("\tnew_or_updated\n");
+                }
+                expected.append("ZZZZ99999999\tdeleted\n");
+                assertEquals(expected.toString(), get(base + "/changes?since=20200101").body);
+                assertEquals("accession\tchange\n", get(base + "/changes?since=" + today).body);
+                assertEquals(400, get(base + "/changes?since=yesterday").status);
+            }
+        } finally {
+            SnapshotClient.setPortalApiBase(null);
+        }
+    }
+
+    private static class Response {
+        int status;
+        String body;
+        String nextFrom;
+    }
+
+    @SneakyThrows
+    private static Response get(String url) {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+        response.nextFrom = connection.getHeaderField("X-Next-From");
+        response.body = IOUtils.toString(response.status < 400 ? connection.getInputStream() :
+                connection.getErrorStream(), StandardCharsets.US_ASCII);
+        return response;
+    }
+}
@@ -0,0 +1,96 @@
+package uk.ac.ebi.ena.dcap.scl.diff;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+import uk.ac.ebi.ena.dcap.scl.model.RecordBlock;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SnapshotReaderTest {
+
+    private static List<String> read(File file, int segmentBytes) {
+        return read(ring -> SnapshotReader.readTo(file, 0, Long.MAX_VALUE, ring, segmentBytes));
+    }
+
+    private static List<String> read(Consumer<BlockRing> source) {
+        BlockRing ring = new BlockRing(2, 3);
+        List<String> rows = new ArrayList<>();
+        Thread reader = new Thread(() -> source.accept(ring));
+        reader.start();
+        RecordCursor cursor = new RecordCursor(ring);
+        while (cursor.next()) {
+            rows.add(cursor.acc() + "=" + Long.toHexString(cursor.fingerprint()));
+        }
+        return rows;
+    }
+
+    private static List<String> expected(String... rows) {
+        List<String> expected = new ArrayList<>();
+        for (String row : rows) {
+            int tab = row.indexOf('\t');
+            expected.add((tab < 0 ? row : row.substring(0, tab)) + "=" +
+                    Long.toHexString(RecordBlock.fingerprint(row)));
+        }
+        return expected;
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSegmentBoundaries(@TempDir File dir) {
+        File file = new File(dir, "snapshot.tsv");
+        Files.write(file.toPath(), ("accession\tlast_updated\n" +
+                "AAAA01000000\t2019-05-10\n" +
+                "AAAAAAAA010000000001\t2020-01-01\r\n" +
+                "AAAB01000000\n" +
+                "AAAC01000000\tAAAC\t2019-05-10\n" +
+                "KAAA01000000\t2023-12-27").getBytes());
+
+        List<String> expected = expected("AAAA01000000\t2019-05-10", "AAAAAAAA010000000001\t2020-01-01",
+                "AAAB01000000", "AAAC01000000\tAAAC\t2019-05-10", "KAAA01000000\t2023-12-27");
+        assertEquals(expected, read(file, 1 << 20));
+        for (int segment = 40; segment < 80; segment++) {
+            assertEquals(expected, read(file, segment));
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testCompressedSnapshotBuffers(@TempDir File dir) {
+        byte[] content = ("accession\tlast_updated\n" +
+                "AAAA01000000\t2019-05-10\n" +
+                "AAAAAAAA010000000001\t2020-01-01\r\n" +
+                "AAAB01000000\n" +
+                "KAAA01000000\t2023-12-27\n").getBytes();
+        List<String> expected = expected("AAAA01000000\t2019-05-10", "AAAAAAAA010000000001\t2020-01-01",
+                "AAAB01000000", "KAAA01000000\t2023-12-27");
+        for (Codec codec : new Codec[]{Codec.GZIP, Codec.ZSTD}) {
+            File file = codec.name(new File(dir, "snapshot.tsv"));
+            try (OutputStream out = codec.create(file, false)) {
+                out.write(content);
+            }
+            assertEquals(codec, Codec.detect(file));
+            assertEquals(expected, read(ring -> SnapshotReader.readTo(file, ring)));
+            for (int buffer = 8; buffer < 48; buffer++) {
+                int bufferBytes = buffer;
+                assertEquals(expected, read(ring -> SnapshotReader.readStream(file, ring, bufferBytes)));
+            }
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    public void testEmptySnapshot(@TempDir File dir) {
+        File file = new File(dir, "empty.tsv");
+        file.createNewFile();
+        assertEquals(0, read(file, 64).size());
+    }
+}
@@ -0,0 +1,133 @@
+package uk.ac.ebi.ena.dcap.scl.history;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChangeHistoryTest {
+
+    @SneakyThrows
+    private static File list(File dir, String name, Iterable<String> accessions) {
+        File file = new File(dir, name);
+        List<String> lines = new ArrayList<>();
+        accessions.forEach(lines::add);
+        Collections.sort(lines);
+        Files.write(file.toPath(), lines);
+        return file;
+    }
+
+    @SneakyThrows
+    @Test
+    public void testNetChangesBetweenRuns(@TempDir File dir) {
+        ChangeHistory history = new ChangeHistory(new File(dir, "coding_history"), Codec.GZIP);
+        Random random = new Random(7);
+        TreeSet<String> live = new TreeSet<>();
+        for (int i = 0; i < 500; i++) {
+            live.add(String.format("AB%06d", i));
+        }
+        // the accessions alive after each run, to check the queries against
+        List<TreeSet<String>> states = new ArrayList<>();
+        List<Map<String, Boolean>> lists = new ArrayList<>();
+        states.add(new TreeSet<>(live));
+        String previous = "20210101";
+        List<String> runs = new ArrayList<>(Collections.singletonList(previous));
+        for (int run = 1; run <= 21; run++) {
+            String date = String.format("202102%02d", run);
+            TreeSet<String> changed = new TreeSet<>();
+            TreeSet<String> deleted = new TreeSet<>();
+            for (int i = 0; i < 30; i++) {
+                String acc = String.format("AB%06d", random.nextInt(700));
+                if (random.nextInt(3) == 0 && live.contains(acc)) {
+                    deleted.add(acc);
+                    changed.remove(acc);
+                } else if (!deleted.contains(acc)) {
+                    changed.add(acc);
+                }
+            }
+            live.addAll(changed);
+            live.removeAll(deleted);
+            states.add(new TreeSet<>(live));
+            assertTrue(history.append(date, previous, Collections.singletonList(list(dir, date + "_n.tsv", changed)),
+                    Collections.singletonList(list(dir, date + "_d.tsv", deleted))));
+            history.compact();
+            previous = date;
+            runs.add(date);
+        }
+        // 21 runs compact into tiers of 16, 4 and 1
+        assertEquals(3, history.segments(false).size());
+        assertFalse(history.append("20210215", "20210214", Collections.emptyList(), Collections.emptyList()));
+
+        for (int[] range : new int[][]{{0, 21}, {3, 9}, {5, 5}, {16, 21}, {0, 1}, {20, 21}}) {
+            TreeSet<String> before = states.get(range[0]);
+            TreeSet<String> after = states.get(range[1]);
+            Map<String, Boolean> net = new TreeMap<>();
+            long[] counts = history.query(runs.get(range[0]), runs.get(range[1]), net::put);
+            assertEquals(net.size(), counts[0] + counts[1]);
+            for (Map.Entry<String, Boolean> change : net.entrySet()) {
+                assertEquals(!after.contains(change.getKey()), change.getValue(), Arrays.toString(range));
+            }
+            for (String acc : after) {
+                if (!before.contains(acc)) {
+                    assertEquals(Boolean.FALSE, net.get(acc), acc);
+                }
+            }
+            for (String acc : before) {
+                if (!after.contains(acc)) {
+                    assertEquals(Boolean.TRUE, net.get(acc), acc);
+                }
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> history.query("20200101", "20210203", (a, d) -> {
+        }));
+        assertThrows(IllegalArgumentException.class, () -> history.query("20210205", "20210203", (a, d) -> {
+        }));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testGapsAndLeftovers(@TempDir File dir) {
+        File directory = new File(dir, "coding_history");
+        ChangeHistory history = new ChangeHistory(directory, Codec.NONE);
+        List<File> none = Collections.emptyList();
+        history.append("20210101", ChangeHistory.UNKNOWN, Collections.singletonList(list(dir, "n1",
+                Arrays.asList("A1", "A2"))), none);
+        history.append("20210102", "20210101", none, Collections.singletonList(list(dir, "d2",
+                Collections.singletonList("A1"))));
+        // compared against a snapshot the history never saw
+        history.append("20210104", "20210103", Collections.singletonList(list(dir, "n4",
+                Collections.singletonList("A3"))), none);
+        assertTrue(history.covers("20210101", "20210102"));
+        assertFalse(history.covers("20210101", "20210104"));
+        assertTrue(history.covers("20210104", "20210104"));
+
+        List<String> changes = new ArrayList<>();
+        history.query("20210101", "20210102", (acc, deleted) -> changes.add(acc + (deleted ? " D" : " N")));
+        assertEquals(Collections.singletonList("A1 D"), changes);
+
+        // a merge interrupted before its inputs were removed, and segments never catalogued, one older than runs that
+        // were
+        Files.copy(new File(directory, "20210101_20210101.tsv").toPath(),
+                new File(directory, "20210101_20210102.tsv").toPath());
+        new File(directory, "20210105_20210105.tsv").createNewFile();
+        Files.write(new File(directory, "20210103_20210103.tsv").toPath(),
+                Collections.singletonList("A2\t20210103\tD"));
+        assertEquals(2, history.segments(false).size());
+        history.compact();
+        assertEquals(new TreeSet<>(Arrays.asList("20210101_20210102.tsv", "20210104_20210104.tsv", "lock",
+                "runs.tsv")), new TreeSet<>(Arrays.asList(directory.list())));
+    }
+}
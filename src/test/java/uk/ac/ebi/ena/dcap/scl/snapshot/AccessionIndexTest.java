@@ -0,0 +1,82 @@
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.io.Codec;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessionIndexTest {
+
+    @SneakyThrows
+    @Test
+    public void testLookupsAndScans(@TempDir File dir) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            rows.add(String.format("AB%06d\t2021-01-01", i));
+            if (i % 100 == 0) {
+                // longer than the packed bytes, so ordered by their tails
+                rows.add(String.format("AAAA0100000000%06dB\t2021-02-01", i));
+                rows.add(String.format("AAAA0100000000%06dA\t2021-02-01", i));
+            }
+        }
+        Collections.sort(rows);
+        rows.add(0, "accession\tlast_updated");
+        File snapshot = Codec.GZIP.name(new File(dir, "sequence_20210101.tsv"));
+        try (OutputStream out = Codec.GZIP.create(snapshot, false)) {
+            out.write((String.join("\n", rows) + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        AccessionIndex index = AccessionIndex.load(snapshot);
+        assertEquals("accession\tlast_updated", index.getHeader());
+        assertEquals(rows.size() - 1, index.size());
+        for (int i = 1; i < rows.size(); i++) {
+            assertEquals(rows.get(i), index.row(i - 1));
+        }
+        assertEquals("AB012345\t2021-01-01", index.get("AB012345"));
+        assertEquals("AAAA0100000000001200A\t2021-02-01", index.get("AAAA0100000000001200A"));
+        assertNull(index.get("AAAA0100000000001200"));
+        assertNull(index.get("AB0123450"));
+        assertNull(index.get("AB"));
+
+        assertEquals(100, index.prefixEnd("AB0001") - index.lowerBound("AB0001"));
+        assertEquals("AB000100", index.accession(index.lowerBound("AB0001")));
+        assertEquals(400, index.prefixEnd("AAAA") - index.lowerBound("AAAA"));
+        assertEquals(index.size(), index.prefixEnd("AB"));
+        assertEquals(0, index.lowerBound(""));
+        assertEquals(index.size(), index.prefixEnd(""));
+        assertEquals(index.lowerBound("AB019990"), index.lowerBound("AB01999"));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testUnsortedSnapshotIsRejected(@TempDir File dir) {
+        File snapshot = new File(dir, "sequence_20210101.tsv");
+        Files.write(snapshot.toPath(), "accession\tlast_updated\nAB2\t2021-01-01\nAB1\t2021-01-01\n"
+                .getBytes(StandardCharsets.US_ASCII));
+        assertThrows(IllegalArgumentException.class, () -> AccessionIndex.load(snapshot));
+
+        Files.write(snapshot.toPath(), new byte[0]);
+        assertEquals(0, AccessionIndex.load(snapshot).size());
+    }
+
+    @Test
+    public void testChunksNeverSplitAReservation() {
+        AccessionIndex.Chunks chunks = new AccessionIndex.Chunks(100);
+        assertEquals(0, chunks.reserve(60));
+        assertEquals(100, chunks.reserve(60));
+        assertEquals(160, chunks.reserve(40));
+        assertEquals(200, chunks.reserve(1));
+        chunks.chunk(160).put(chunks.pos(160) + 39, (byte) 7);
+        assertEquals(7, chunks.chunk(199).get(chunks.pos(199)));
+    }
+}
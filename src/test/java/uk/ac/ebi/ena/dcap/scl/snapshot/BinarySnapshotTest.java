@@ -0,0 +1,127 @@
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.diff.BlockRing;
+import uk.ac.ebi.ena.dcap.scl.diff.RecordCursor;
+import uk.ac.ebi.ena.dcap.scl.model.DiffFiles;
+import uk.ac.ebi.ena.dcap.scl.service.MainService;
+import uk.ac.ebi.ena.dcap.scl.service.SnapshotClient;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinarySnapshotTest {
+
+    private static List<String> read(File binary, String from, String to) {
+        BlockRing ring = new BlockRing();
+        new Thread(() -> BinarySnapshot.readTo(binary, from, to, ring)).start();
+        RecordCursor cursor = new RecordCursor(ring);
+        List<String> accs = new ArrayList<>();
+        while (cursor.next()) {
+            accs.add(cursor.acc());
+        }
+        return accs;
+    }
+
+    @SneakyThrows
+    @Test
+    public void testTsvRoundTrip(@TempDir File dir) {
+        File sorted = new File(dir, "tls.tsv");
+        SnapshotClient.bigSortFile(new File("src/test/resources/tls_set_20240201.tsv.unsorted"), sorted);
+        File binary = BinarySnapshot.sidecarFor(sorted);
+        assertEquals(Files.readAllLines(sorted.toPath()).size() - 1, BinarySnapshot.fromTsv(sorted, binary));
+        assertTrue(BinarySnapshot.isBinary(binary));
+        assertFalse(BinarySnapshot.isBinary(sorted));
+        assertTrue(binary.length() < sorted.length() / 2);
+
+        File exported = new File(dir, "exported.tsv");
+        BinarySnapshot.toTsv(binary, exported);
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(exported.toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSidecarWrittenByMerge(@TempDir File dir) {
+        ExternalSorter sorter = new ExternalSorter(16 * 1024, 2, dir);
+        ExternalSorter.Runs runs;
+        try (InputStream in = new FileInputStream("src/test/resources/tls_set_20240201.tsv.unsorted")) {
+            runs = sorter.createRuns(in);
+        }
+        File sorted = new File(dir, "tls.tsv");
+        File sidecar = BinarySnapshot.sidecarFor(sorted);
+        sorter.merge(runs, sorted, null, new BinarySnapshotWriter(sidecar));
+
+        assertEquals(sidecar, BinarySnapshot.find(sorted));
+        File exported = new File(dir, "exported.tsv");
+        BinarySnapshot.toTsv(sidecar, exported);
+        assertArrayEquals(Files.readAllBytes(sorted.toPath()), Files.readAllBytes(exported.toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testParentColumnAndMissingDates(@TempDir File dir) {
+        File tsv = new File(dir, "coding.tsv");
+        StringBuilder rows = new StringBuilder("accession\tparent_accession\tlast_updated\r\n");
+        for (int i = 0; i < 3000; i++) {
+            rows.append(String.format("AAA%05d.%d\tAAAA0100000%d%s\t%s\r\n", i, i % 3, i % 7,
+                    i % 11 == 0 ? "LONGER_THAN_SIXTEEN" : "", i % 5 == 0 ? "" : "2020-01-0" + (1 + i % 9)));
+        }
+        Files.write(tsv.toPath(), rows.toString().getBytes());
+        File binary = BinarySnapshot.sidecarFor(tsv);
+        BinarySnapshot.fromTsv(tsv, binary);
+        File exported = new File(dir, "exported.tsv");
+        assertEquals(3000, BinarySnapshot.toTsv(binary, exported));
+        assertArrayEquals(Files.readAllBytes(tsv.toPath()), Files.readAllBytes(exported.toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSeekAndDiffFromBinary(@TempDir File dir) {
+        File sorted = new File(dir, "tls.tsv");
+        SnapshotClient.bigSortFile(new File("src/test/resources/tls_set_20240201.tsv.unsorted"), sorted);
+        List<String> lines = Files.readAllLines(sorted.toPath());
+        List<String> prevLines = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            if (i % 25 != 3) {
+                prevLines.add(i % 30 == 4 ? lines.get(i).replace("\t20", "\t19") : lines.get(i));
+            }
+        }
+        File prev = new File(dir, "prev.tsv");
+        Files.write(prev.toPath(), prevLines);
+        File prevBinary = new File(dir, "prev.snap");
+        BinarySnapshot.fromTsv(prev, prevBinary);
+
+        String from = prevLines.get(1500).split("\t")[0];
+        String to = prevLines.get(2600).split("\t")[0];
+        List<String> range = read(prevBinary, from, to);
+        assertEquals(1100, range.size());
+        assertEquals(from, range.get(0));
+        assertEquals(prevLines.size() - 1, read(prevBinary, null, null).size());
+
+        for (int threads : new int[]{1, 4}) {
+            MainService tsvDiff = new MainService();
+            tsvDiff.setDiffThreads(threads);
+            DiffFiles expected = tsvDiff.compareSnapshots(prev, sorted, dir, "tsv" + threads);
+            MainService binaryDiff = new MainService();
+            binaryDiff.setDiffThreads(threads);
+            DiffFiles actual = binaryDiff.compareSnapshots(prevBinary, sorted, dir, "binary" + threads);
+            assertTrue(Files.size(expected.getNewOrChangedList().toPath()) > 0);
+            assertArrayEquals(Files.readAllBytes(expected.getNewOrChangedList().toPath()),
+                    Files.readAllBytes(actual.getNewOrChangedList().toPath()));
+            assertArrayEquals(Files.readAllBytes(expected.getDeletedList().toPath()),
+                    Files.readAllBytes(actual.getDeletedList().toPath()));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package uk.ac.ebi.ena.dcap.scl.snapshot;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ebi.ena.dcap.scl.diff.ManifestDiff;
+import uk.ac.ebi.ena.dcap.scl.model.DiffFiles;
+import uk.ac.ebi.ena.dcap.scl.service.MainService;
+import uk.ac.ebi.ena.dcap.scl.sort.ExternalSorter;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockManifestTest {
+
+    private static final int ROWS = 400000;
+
+    @SneakyThrows
+    @Test
+    public void testOnlyChangedBlocksAreDiffed(@TempDir File dir) {
+        List<String> prevLines = new ArrayList<>();
+        List<String> nextLines = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            String acc = String.format("AAAA%08d", i);
+            prevLines.add(acc + "\t2020-01-01");
+            if (i == 120000) {
+                continue;
+            }
+            nextLines.add(acc + (i >= 50000 && i < 50010 ? "\t2021-01-01" : "\t2020-01-01"));
+            if (i == 300000) {
+                nextLines.add(acc + "A\t2021-01-01");
+            }
+        }
+        nextLines.add("ZZZZ00000000\t2021-01-01");
+        File prev = write(dir, "prev.tsv", prevLines);
+        File next = write(dir, "next.tsv", nextLines);
+
+        BlockManifest prevManifest = BlockManifest.find(prev);
+        BlockManifest nextManifest = BlockManifest.find(next);
+        assertNotNull(prevManifest);
+        assertNotNull(nextManifest);
+        assertTrue(prevManifest.getLeaves().size() > 20);
+        ManifestDiff.Changes changes = ManifestDiff.compare(prevManifest, nextManifest);
+        long changed = 0;
+        for (long[] range : changes.getLatest()) {
+            changed += range[1] - range[0];
+        }
+        assertTrue(changed > 0 && changed < next.length() / 4, changed + " of " + next.length() + " bytes changed");
+
+        // copies without manifests are diffed row by row
+        File prevCopy = new File(dir, "prev-copy.tsv");
+        File nextCopy = new File(dir, "next-copy.tsv");
+        Files.copy(prev.toPath(), prevCopy.toPath());
+        Files.copy(next.toPath(), nextCopy.toPath());
+        DiffFiles expected = new MainService().compareSnapshots(prevCopy, nextCopy, dir, "full");
+        DiffFiles actual = new MainService().compareSnapshots(prev, next, dir, "manifest");
+
+        assertEquals(Arrays.asList("AAAA00050000", "AAAA00050001", "AAAA00050002", "AAAA00050003",
+                "AAAA00050004", "AAAA00050005", "AAAA00050006", "AAAA00050007", "AAAA00050008", "AAAA00050009",
+                "AAAA00300000A", "ZZZZ00000000"), Files.readAllLines(actual.getNewOrChangedList().toPath()));
+        assertEquals(Arrays.asList("AAAA00120000"), Files.readAllLines(actual.getDeletedList().toPath()));
+        assertArrayEquals(Files.readAllBytes(expected.getNewOrChangedList().toPath()),
+                Files.readAllBytes(actual.getNewOrChangedList().toPath()));
+        assertArrayEquals(Files.readAllBytes(expected.getDeletedList().toPath()),
+                Files.readAllBytes(actual.getDeletedList().toPath()));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testIdenticalTreesAndStaleManifests(@TempDir File dir) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < ROWS / 4; i++) {
+            lines.add(String.format("BBBB%08d\t2020-01-01", i));
+        }
+        File a = write(dir, "a.tsv", lines);
+        File b = write(dir, "b.tsv", lines);
+
+        BlockManifest manifest = BlockManifest.find(a);
+        assertEquals(manifest.getRoot(), BlockManifest.find(b).getRoot());
+        assertTrue(manifest.tree().getLevel() > 0);
+        ManifestDiff.Changes changes = ManifestDiff.compare(manifest, BlockManifest.find(b));
+        assertTrue(changes.getPrevious().isEmpty());
+        assertTrue(changes.getLatest().isEmpty());
+
+        Files.write(b.toPath(), "BBBB99999999\t2020-01-01\r\n".getBytes(StandardCharsets.US_ASCII),
+                StandardOpenOption.APPEND);
+        assertNull(BlockManifest.find(b));
+    }
+
+    @SneakyThrows
+    private static File write(File dir, String name, List<String> rows) {
+        File snapshot = new File(dir, name);
+        ExternalSorter sorter = new ExternalSorter(1 << 20, 2, dir);
+        ExternalSorter.Runs runs;
+        String tsv = "accession\tlast_updated\n" + String.join("\n", rows) + "\n";
+        try (InputStream in = new ByteArrayInputStream(tsv.getBytes(StandardCharsets.US_ASCII))) {
+            runs = sorter.createRuns(in);
+        }
+        sorter.merge(runs, snapshot, null, new ManifestWriter(snapshot));
+        return snapshot;
+    }
+}